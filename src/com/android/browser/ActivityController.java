@@ -37,6 +37,8 @@ public interface ActivityController {
 
     void onLowMemory();
 
+    void onTrimMemory(int level);
+
     boolean onCreateOptionsMenu(Menu menu);
 
     boolean onPrepareOptionsMenu(Menu menu);
@@ -40,10 +40,12 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.Accounts;
 import android.text.TextUtils;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -84,6 +86,7 @@ public class AddBookmarkPage extends Activity
     private static final int MAX_CRUMBS_SHOWN = 2;
 
     private final String LOGTAG = "Bookmarks";
+    private static final boolean LOGD_ENABLED = Browser.LOGD_ENABLED;
 
     // IDs for the CursorLoaders that are used.
     private final int LOADER_ID_ACCOUNTS = 0;
@@ -745,6 +748,9 @@ public class AddBookmarkPage extends Activity
 
     /**
      * Runnable to save a bookmark, so it can be performed in its own thread.
+     * Only the bookmark row is written before the caller is told the save
+     * succeeded; the thumbnail is encoded and the touch icon fetched
+     * afterwards, in parallel, each updating the new row when done.
      */
     private class SaveBookmarkRunnable implements Runnable {
         // FIXME: This should be an async task.
@@ -755,28 +761,60 @@ public class AddBookmarkPage extends Activity
             mMessage = msg;
         }
         public void run() {
+            final long start = SystemClock.uptimeMillis();
             // Unbundle bookmark data.
             Bundle bundle = mMessage.getData();
             String title = bundle.getString(BrowserContract.Bookmarks.TITLE);
-            String url = bundle.getString(BrowserContract.Bookmarks.URL);
+            final String url = bundle.getString(BrowserContract.Bookmarks.URL);
             boolean invalidateThumbnail = bundle.getBoolean(REMOVE_THUMBNAIL);
-            Bitmap thumbnail = invalidateThumbnail ? null
+            final Bitmap thumbnail = invalidateThumbnail ? null
                     : (Bitmap) bundle.getParcelable(BrowserContract.Bookmarks.THUMBNAIL);
             String touchIconUrl = bundle.getString(TOUCH_ICON_URL);
 
-            // Save to the bookmarks DB.
-            try {
-                final ContentResolver cr = getContentResolver();
-                Bookmarks.addBookmark(AddBookmarkPage.this, false, url,
-                        title, thumbnail, mCurrentFolder);
-                if (touchIconUrl != null) {
-                    new DownloadTouchIcon(cr, url).execute(mTouchIconUrl);
-                }
-                mMessage.arg1 = 1;
-            } catch (IllegalStateException e) {
-                mMessage.arg1 = 0;
-            }
+            // Save the row to the bookmarks DB, without the thumbnail, and
+            // report back straight away.
+            final Uri uri = Bookmarks.addBookmark(mContext, false, url,
+                    title, null, mCurrentFolder);
+            mMessage.arg1 = uri != null ? 1 : 0;
             mMessage.sendToTarget();
+            logStage("insert", start);
+            if (uri == null) {
+                return;
+            }
+
+            if (thumbnail != null) {
+                BackgroundHandler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ContentValues values = new ContentValues();
+                        values.put(BrowserContract.Bookmarks.THUMBNAIL,
+                                Bookmarks.bitmapToBytes(thumbnail));
+                        try {
+                            mContext.getContentResolver().update(uri, values, null, null);
+                        } catch (IllegalStateException e) {
+                            Log.e(LOGTAG, "Failed to store thumbnail", e);
+                        }
+                        logStage("thumbnail", start);
+                    }
+                });
+            }
+            if (touchIconUrl != null) {
+                DownloadTouchIcon icon = new DownloadTouchIcon(mContext, url);
+                icon.setOnCompleteListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        logStage("touch icon", start);
+                    }
+                });
+                icon.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, touchIconUrl);
+            }
+        }
+
+        private void logStage(String stage, long start) {
+            if (LOGD_ENABLED) {
+                Log.d(LOGTAG, "Bookmark save " + stage + " done after "
+                        + (SystemClock.uptimeMillis() - start) + "ms");
+            }
         }
     }
 
@@ -937,7 +975,7 @@ public class AddBookmarkPage extends Activity
                     Message msg = Message.obtain(mHandler,
                             TOUCH_ICON_DOWNLOADED);
                     msg.setData(bundle);
-                    DownloadTouchIcon icon = new DownloadTouchIcon(msg,
+                    DownloadTouchIcon icon = new DownloadTouchIcon(this, msg,
                             mMap.getString(USER_AGENT));
                     icon.execute(mTouchIconUrl);
                 } else {
@@ -225,6 +225,11 @@ public abstract class BaseUi implements UI {
         onProgressChanged(tab);
     }
 
+    @Override
+    public boolean isTabVisible(Tab tab) {
+        return tab.inForeground();
+    }
+
     @Override
     public void onProgressChanged(Tab tab) {
         int progress = tab.getLoadProgress();
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.provider.BrowserContract;
+import android.provider.BrowserContract.Images;
+import android.util.LruCache;
+
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.provider.BrowserProvider2.ImageBatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Loads one image column for the rows of a list cursor that carries only
+ * BrowserProvider2.IMAGE_ID, so the cursor window holds no blobs and only
+ * the rows that are shown pay for their images.
+ *
+ * A row's image is fetched together with those of the rows after it, one
+ * query per screenful, and kept in a small cache until the list changes.
+ * Lists bound on the UI thread use {@link #load}, which fetches on a
+ * background thread; {@link #get} fetches on the calling thread.
+ */
+public class BatchImageLoader {
+
+    // About a screen of the bookmarks grid or history list
+    static final int BATCH_SIZE = 24;
+    // Well under SQLite's limit of 999 bound arguments
+    static final int MAX_IDS_PER_QUERY = 500;
+    private static final int CACHE_SIZE = 1024 * 1024;
+    // Cached for images without a blob in the column
+    private static final byte[] NONE = new byte[0];
+
+    /**
+     * Told on the UI thread when a batch started by {@link #load} is cached.
+     */
+    public interface Listener {
+        void onImagesLoaded();
+    }
+
+    private final ContentResolver mResolver;
+    private final String mColumn;
+    // Ids being fetched by load(), and the clear() they were started after
+    private final HashSet<Long> mLoading = new HashSet<Long>();
+    private int mGeneration;
+    private final LruCache<Long, byte[]> mBlobs = new LruCache<Long, byte[]>(CACHE_SIZE) {
+        @Override
+        protected int sizeOf(Long key, byte[] value) {
+            return value.length;
+        }
+    };
+
+    /**
+     * @param column the Images column to load, e.g. Images.THUMBNAIL
+     */
+    public BatchImageLoader(ContentResolver resolver, String column) {
+        mResolver = resolver;
+        mColumn = column;
+    }
+
+    /**
+     * Returns the image of the row the cursor is on, or null. If it is not
+     * cached it is fetched along with those of the next rows. The cursor
+     * is left on its row.
+     */
+    public byte[] get(Cursor c, int imageIdIndex) {
+        if (c.isNull(imageIdIndex)) {
+            return null;
+        }
+        long id = c.getLong(imageIdIndex);
+        byte[] blob = mBlobs.get(id);
+        if (blob == null) {
+            ArrayList<Long> ids = getBatch(c, imageIdIndex, id);
+            HashMap<Long, byte[]> blobs = fetch(mResolver, mColumn, ids);
+            cache(ids, blobs);
+            blob = blobs.get(id);
+        }
+        return blob != null && blob.length > 0 ? blob : null;
+    }
+
+    /**
+     * Returns the image of the row the cursor is on if it is cached, or
+     * null. If it is not, it is fetched on a background thread along with
+     * those of the next rows, and the listener is told once they are
+     * cached. Must be called on the UI thread. The cursor is left on its
+     * row.
+     */
+    public byte[] load(Cursor c, int imageIdIndex, final Listener listener) {
+        if (c.isNull(imageIdIndex)) {
+            return null;
+        }
+        long id = c.getLong(imageIdIndex);
+        byte[] blob = mBlobs.get(id);
+        if (blob != null) {
+            return blob.length > 0 ? blob : null;
+        }
+        if (mLoading.contains(id)) {
+            return null;
+        }
+        final ArrayList<Long> ids = getBatch(c, imageIdIndex, id);
+        mLoading.addAll(ids);
+        final int generation = mGeneration;
+        new AsyncTask<Void, Void, HashMap<Long, byte[]>>() {
+            @Override
+            protected HashMap<Long, byte[]> doInBackground(Void... params) {
+                return fetch(mResolver, mColumn, ids);
+            }
+
+            @Override
+            protected void onPostExecute(HashMap<Long, byte[]> blobs) {
+                if (generation != mGeneration) {
+                    // The images may have changed since
+                    return;
+                }
+                mLoading.removeAll(ids);
+                cache(ids, blobs);
+                listener.onImagesLoaded();
+            }
+        }.execute();
+        return null;
+    }
+
+    // The given id and those of the next rows whose images aren't cached
+    private ArrayList<Long> getBatch(Cursor c, int imageIdIndex, long id) {
+        ArrayList<Long> ids = new ArrayList<Long>(BATCH_SIZE);
+        ids.add(id);
+        int position = c.getPosition();
+        while (ids.size() < BATCH_SIZE && c.moveToNext()) {
+            if (!c.isNull(imageIdIndex)) {
+                long next = c.getLong(imageIdIndex);
+                if (mBlobs.get(next) == null && !mLoading.contains(next)) {
+                    ids.add(next);
+                }
+            }
+        }
+        c.moveToPosition(position);
+        return ids;
+    }
+
+    private void cache(List<Long> ids, HashMap<Long, byte[]> blobs) {
+        for (Long i : ids) {
+            byte[] b = blobs.get(i);
+            mBlobs.put(i, b != null ? b : NONE);
+        }
+    }
+
+    /**
+     * Drops the cached images. Call when the list's cursor changes, as an
+     * image may have changed under its id.
+     */
+    public void clear() {
+        mBlobs.evictAll();
+        mLoading.clear();
+        mGeneration++;
+    }
+
+    /**
+     * Returns the non-null blobs of the column for the images rows with
+     * the given ids, in one query per MAX_IDS_PER_QUERY ids.
+     */
+    public static HashMap<Long, byte[]> fetch(ContentResolver resolver, String column,
+            List<Long> ids) {
+        HashMap<Long, byte[]> blobs = new HashMap<Long, byte[]>(ids.size());
+        for (int start = 0; start < ids.size(); start += MAX_IDS_PER_QUERY) {
+            int end = Math.min(ids.size(), start + MAX_IDS_PER_QUERY);
+            StringBuilder selection = new StringBuilder(BrowserProvider2.IMAGE_ID + " IN (");
+            String[] args = new String[end - start];
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ",?");
+                args[i - start] = Long.toString(ids.get(i));
+            }
+            selection.append(")");
+            Cursor c = resolver.query(Images.CONTENT_URI,
+                    new String[] { BrowserProvider2.IMAGE_ID, column },
+                    selection.toString(), args, null);
+            if (c == null) {
+                continue;
+            }
+            try {
+                while (c.moveToNext()) {
+                    if (!c.isNull(1)) {
+                        blobs.put(c.getLong(0), c.getBlob(1));
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return blobs;
+    }
+
+    /**
+     * Returns the image of the row the cursor is on, or null, with a query
+     * of its own. For one-off uses such as sharing a bookmark.
+     */
+    public static byte[] fetch(ContentResolver resolver, String column, Cursor c,
+            int imageIdIndex) {
+        if (c.isNull(imageIdIndex)) {
+            return null;
+        }
+        ArrayList<Long> ids = new ArrayList<Long>(1);
+        ids.add(c.getLong(imageIdIndex));
+        return fetch(resolver, column, ids).get(ids.get(0));
+    }
+
+    /**
+     * Returns the non-null blobs of the column for the given urls, for
+     * callers that have urls rather than image ids. Asks the provider for
+     * up to ImageBatch.MAX_URLS urls per call.
+     */
+    public static HashMap<String, byte[]> fetchForUrls(ContentResolver resolver,
+            String column, List<String> urls) {
+        HashMap<String, byte[]> blobs = new HashMap<String, byte[]>(urls.size());
+        ArrayList<String> pending = new ArrayList<String>(urls);
+        while (!pending.isEmpty()) {
+            int count = Math.min(pending.size(), ImageBatch.MAX_URLS);
+            List<String> batch = pending.subList(0, count);
+            Bundle extras = new Bundle();
+            extras.putStringArray(ImageBatch.URLS, batch.toArray(new String[count]));
+            extras.putStringArray(ImageBatch.COLUMNS, new String[] { column });
+            Bundle result = resolver.call(BrowserContract.AUTHORITY_URI,
+                    ImageBatch.METHOD, null, extras);
+            batch.clear();
+            if (result == null) {
+                break;
+            }
+            Bundle images = result.getBundle(column);
+            for (String url : images.keySet()) {
+                blobs.put(url, images.getByteArray(url));
+            }
+            pending.addAll(0, Arrays.asList(result.getStringArray(ImageBatch.REMAINING)));
+        }
+        return blobs;
+    }
+}
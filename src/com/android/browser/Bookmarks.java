@@ -65,11 +65,13 @@ public class Bookmarks {
      *          This will usually be <code>true</code> except when bookmarks are
      *          added by a settings restore agent.
      *  @param parent ID of the parent folder.
+     *  @return The URI of the new bookmark, or null if it was not added.
      */
-    /* package */ static void addBookmark(Context context, boolean showToast, String url,
+    /* package */ static Uri addBookmark(Context context, boolean showToast, String url,
             String name, Bitmap thumbnail, long parent) {
         // Want to append to the beginning of the list
         ContentValues values = new ContentValues();
+        Uri uri = null;
         try {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
             values.put(BrowserContract.Bookmarks.TITLE, name);
@@ -78,7 +80,8 @@ public class Bookmarks {
             values.put(BrowserContract.Bookmarks.THUMBNAIL,
                     bitmapToBytes(thumbnail));
             values.put(BrowserContract.Bookmarks.PARENT, parent);
-            context.getContentResolver().insert(BrowserContract.Bookmarks.CONTENT_URI, values);
+            uri = context.getContentResolver().insert(
+                    BrowserContract.Bookmarks.CONTENT_URI, values);
         } catch (IllegalStateException e) {
             Log.e(LOGTAG, "addBookmark", e);
         }
@@ -86,6 +89,7 @@ public class Bookmarks {
             Toast.makeText(context, R.string.added_to_bookmarks,
                     Toast.LENGTH_LONG).show();
         }
+        return uri;
     }
 
     /**
@@ -130,7 +134,7 @@ public class Bookmarks {
         }
     }
 
-    private static byte[] bitmapToBytes(Bitmap bm) {
+    /* package */ static byte[] bitmapToBytes(Bitmap bm) {
         if (bm == null) {
             return null;
         }
@@ -21,6 +21,8 @@ import android.content.CursorLoader;
 import android.net.Uri;
 import android.provider.BrowserContract.Bookmarks;
 
+import com.android.browser.provider.BrowserProvider2;
+
 public class BookmarksLoader extends CursorLoader {
     public static final String ARG_ACCOUNT_TYPE = "acct_type";
     public static final String ARG_ACCOUNT_NAME = "acct_name";
@@ -28,24 +30,21 @@ public class BookmarksLoader extends CursorLoader {
     public static final int COLUMN_INDEX_ID = 0;
     public static final int COLUMN_INDEX_URL = 1;
     public static final int COLUMN_INDEX_TITLE = 2;
-    public static final int COLUMN_INDEX_FAVICON = 3;
-    public static final int COLUMN_INDEX_THUMBNAIL = 4;
-    public static final int COLUMN_INDEX_TOUCH_ICON = 5;
-    public static final int COLUMN_INDEX_IS_FOLDER = 6;
-    public static final int COLUMN_INDEX_PARENT = 8;
-    public static final int COLUMN_INDEX_TYPE = 9;
+    // The images are not in the projection, see BatchImageLoader
+    public static final int COLUMN_INDEX_IMAGE_ID = 3;
+    public static final int COLUMN_INDEX_IS_FOLDER = 4;
+    public static final int COLUMN_INDEX_PARENT = 6;
+    public static final int COLUMN_INDEX_TYPE = 7;
 
     public static final String[] PROJECTION = new String[] {
         Bookmarks._ID, // 0
         Bookmarks.URL, // 1
         Bookmarks.TITLE, // 2
-        Bookmarks.FAVICON, // 3
-        Bookmarks.THUMBNAIL, // 4
-        Bookmarks.TOUCH_ICON, // 5
-        Bookmarks.IS_FOLDER, // 6
-        Bookmarks.POSITION, // 7
-        Bookmarks.PARENT, // 8
-        Bookmarks.TYPE, // 9
+        BrowserProvider2.IMAGE_ID, // 3
+        Bookmarks.IS_FOLDER, // 4
+        Bookmarks.POSITION, // 5
+        Bookmarks.PARENT, // 6
+        Bookmarks.TYPE, // 7
     };
 
     String mAccountType;
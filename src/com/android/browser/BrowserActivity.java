@@ -35,6 +35,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewTreeObserver.OnPreDrawListener;
 import android.view.Window;
 
 import com.android.browser.stub.NullController;
@@ -80,6 +81,26 @@ public class BrowserActivity extends Activity
 
         Intent intent = (icicle == null) ? getIntent() : null;
         mController.start(intent);
+        notifyFirstPaint();
+    }
+
+    // Releases the deferred start-up steps once the first frame is drawn
+    private void notifyFirstPaint() {
+        final View decor = getWindow().getDecorView();
+        decor.getViewTreeObserver().addOnPreDrawListener(new OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decor.getViewTreeObserver().removeOnPreDrawListener(this);
+                // Posted so the steps start after the frame, not before it
+                decor.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        StartupScheduler.getInstance().onFirstPaint();
+                    }
+                });
+                return true;
+            }
+        });
     }
 
     public static boolean isTablet(Context context) {
@@ -208,6 +229,12 @@ public class BrowserActivity extends Activity
         mController.onLowMemory();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mController.onTrimMemory(level);
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
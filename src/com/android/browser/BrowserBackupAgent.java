@@ -19,9 +19,13 @@ package com.android.browser;
 import android.app.backup.BackupAgent;
 import android.app.backup.BackupDataInput;
 import android.app.backup.BackupDataOutput;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.Bookmarks;
 import android.util.Log;
@@ -34,6 +38,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.zip.CRC32;
 
 /**
@@ -51,6 +56,11 @@ public class BrowserBackupAgent extends BackupAgent {
     static final String BOOKMARK_KEY = "_bookmarks_";
     /** this version num MUST be incremented if the flattened-file schema ever changes */
     static final int BACKUP_AGENT_VERSION = 0;
+    /**
+     * Bookmarks inserted per applyBatch call during restore. Each call is one
+     * transaction; keeping them small bounds the binder parcel size.
+     */
+    static final int RESTORE_BATCH_SIZE = 200;
 
     /**
      * This simply preserves the existing state as we now prefer Chrome Sync
@@ -102,46 +112,9 @@ public class BrowserBackupAgent extends BackupAgent {
                     DataInputStream in = new DataInputStream(infstream);
 
                     try {
-                        int count = in.readInt();
-                        ArrayList<Bookmark> bookmarks = new ArrayList<Bookmark>(count);
-
-                        // Read all the bookmarks, then process later -- if we can't read
-                        // all the data successfully, we don't touch the bookmarks table
-                        for (int i = 0; i < count; i++) {
-                            Bookmark mark = new Bookmark();
-                            mark.url = in.readUTF();
-                            mark.visits = in.readInt();
-                            mark.date = in.readLong();
-                            mark.created = in.readLong();
-                            mark.title = in.readUTF();
-                            bookmarks.add(mark);
-                        }
-
-                        // Okay, we have all the bookmarks -- now see if we need to add
-                        // them to the browser's database
-                        int N = bookmarks.size();
-                        int nUnique = 0;
-                        if (DEBUG) Log.v(TAG, "Restoring " + N + " bookmarks");
-                        String[] urlCol = new String[] { Bookmarks.URL };
-                        for (int i = 0; i < N; i++) {
-                            Bookmark mark = bookmarks.get(i);
-
-                            // Does this URL exist in the bookmark table?
-                            Cursor cursor = getContentResolver().query(
-                                    Bookmarks.CONTENT_URI, urlCol,
-                                    Bookmarks.URL + " == ?",
-                                    new String[] { mark.url }, null);
-                            // if not, insert it
-                            if (cursor.getCount() <= 0) {
-                                if (DEBUG) Log.v(TAG, "Did not see url: " + mark.url);
-                                addBookmark(mark);
-                                nUnique++;
-                            } else {
-                                if (DEBUG) Log.v(TAG, "Skipping extant url: " + mark.url);
-                            }
-                            cursor.close();
-                        }
-                        Log.i(TAG, "Restored " + nUnique + " of " + N + " bookmarks");
+                        // If we can't read all the data successfully, we don't
+                        // touch the bookmarks table
+                        restoreBookmarks(getContentResolver(), in);
                     } catch (IOException ioe) {
                         Log.w(TAG, "Bad backup data; not restoring");
                         crc = -1;
@@ -162,14 +135,97 @@ public class BrowserBackupAgent extends BackupAgent {
         }
     }
 
-    void addBookmark(Bookmark mark) {
+    /**
+     * Reads a flattened bookmark list and inserts every bookmark whose URL is
+     * not already in the bookmarks table. The existing URLs are read with one
+     * query and the inserts are applied in batches, each batch being a
+     * single transaction.
+     *
+     * @return the number of bookmarks inserted
+     */
+    static int restoreBookmarks(ContentResolver cr, DataInputStream in)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        int count = in.readInt();
+        ArrayList<Bookmark> bookmarks = new ArrayList<Bookmark>(count);
+
+        // Read all the bookmarks, then process later
+        for (int i = 0; i < count; i++) {
+            Bookmark mark = new Bookmark();
+            mark.url = in.readUTF();
+            mark.visits = in.readInt();
+            mark.date = in.readLong();
+            mark.created = in.readLong();
+            mark.title = in.readUTF();
+            bookmarks.add(mark);
+        }
+
+        // Okay, we have all the bookmarks -- now see which ones are already
+        // in the browser's database
+        int N = bookmarks.size();
+        if (DEBUG) Log.v(TAG, "Restoring " + N + " bookmarks");
+        HashSet<String> urls = new HashSet<String>();
+        Cursor cursor = cr.query(Bookmarks.CONTENT_URI,
+                new String[] { Bookmarks.URL },
+                Bookmarks.URL + " IS NOT NULL", null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    urls.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(RESTORE_BATCH_SIZE);
+        int nUnique = 0;
+        for (int i = 0; i < N; i++) {
+            Bookmark mark = bookmarks.get(i);
+            // The set also catches duplicates within the backup itself
+            if (!urls.add(mark.url)) {
+                if (DEBUG) Log.v(TAG, "Skipping extant url: " + mark.url);
+                continue;
+            }
+            if (DEBUG) Log.v(TAG, "Did not see url: " + mark.url);
+            ops.add(ContentProviderOperation.newInsert(Bookmarks.CONTENT_URI)
+                    .withValues(bookmarkValues(mark))
+                    .build());
+            nUnique++;
+            if (ops.size() >= RESTORE_BATCH_SIZE) {
+                applyRestoreBatch(cr, ops);
+            }
+        }
+        applyRestoreBatch(cr, ops);
+        Log.i(TAG, "Restored " + nUnique + " of " + N + " bookmarks in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return nUnique;
+    }
+
+    private static void applyRestoreBatch(ContentResolver cr,
+            ArrayList<ContentProviderOperation> ops) throws IOException {
+        if (ops.isEmpty()) {
+            return;
+        }
+        try {
+            cr.applyBatch(BrowserContract.AUTHORITY, ops);
+        } catch (RemoteException e) {
+            throw new IOException("Failed to restore bookmarks", e);
+        } catch (OperationApplicationException e) {
+            throw new IOException("Failed to restore bookmarks", e);
+        }
+        ops.clear();
+    }
+
+    static ContentValues bookmarkValues(Bookmark mark) {
         ContentValues values = new ContentValues();
         values.put(Bookmarks.TITLE, mark.title);
         values.put(Bookmarks.URL, mark.url);
         values.put(Bookmarks.IS_FOLDER, 0);
         values.put(Bookmarks.DATE_CREATED, mark.created);
         values.put(Bookmarks.DATE_MODIFIED, mark.date);
-        getContentResolver().insert(Bookmarks.CONTENT_URI, values);
+        return values;
     }
 
     static class Bookmark {
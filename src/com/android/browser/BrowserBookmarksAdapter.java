@@ -21,6 +21,7 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.Images;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -36,6 +37,7 @@ public class BrowserBookmarksAdapter extends
 
     LayoutInflater mInflater;
     Context mContext;
+    BatchImageLoader mThumbnails;
 
     /**
      *  Create a new BrowserBookmarksAdapter.
@@ -46,6 +48,13 @@ public class BrowserBookmarksAdapter extends
         super(context, null);
         mInflater = LayoutInflater.from(context);
         mContext = context;
+        mThumbnails = new BatchImageLoader(context.getContentResolver(), Images.THUMBNAIL);
+    }
+
+    @Override
+    public void changeCursor(Cursor cursor) {
+        super.changeCursor(cursor);
+        mThumbnails.clear();
     }
 
     @Override
@@ -109,8 +118,8 @@ public class BrowserBookmarksAdapter extends
             item = new BrowserBookmarksAdapterItem();
         }
         Bitmap thumbnail = item.thumbnail != null ? item.thumbnail.getBitmap() : null;
-        thumbnail = BrowserBookmarksPage.getBitmap(c,
-                BookmarksLoader.COLUMN_INDEX_THUMBNAIL, thumbnail);
+        thumbnail = BrowserBookmarksPage.decodeBitmap(
+                mThumbnails.get(c, BookmarksLoader.COLUMN_INDEX_IMAGE_ID), thumbnail);
         item.has_thumbnail = thumbnail != null;
         if (thumbnail != null
                 && (item.thumbnail == null || item.thumbnail.getBitmap() != thumbnail)) {
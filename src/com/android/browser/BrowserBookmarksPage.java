@@ -202,8 +202,8 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
             Controller.sharePage(activity,
                     cursor.getString(BookmarksLoader.COLUMN_INDEX_TITLE),
                     cursor.getString(BookmarksLoader.COLUMN_INDEX_URL),
-                    getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_FAVICON),
-                    getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_THUMBNAIL));
+                    getBitmap(activity, cursor, BrowserContract.Images.FAVICON),
+                    getBitmap(activity, cursor, BrowserContract.Images.THUMBNAIL));
             break;
         }
         case R.id.copy_url_context_menu_id:
@@ -230,8 +230,14 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
         return true;
     }
 
-    static Bitmap getBitmap(Cursor cursor, int columnIndex) {
-        return getBitmap(cursor, columnIndex, null);
+    /**
+     * Returns the image in the given Images column of the bookmark the
+     * cursor is on. BookmarksLoader.PROJECTION leaves the images out, so it
+     * is fetched by its image id.
+     */
+    static Bitmap getBitmap(Context context, Cursor cursor, String column) {
+        return decodeBitmap(BatchImageLoader.fetch(context.getContentResolver(), column,
+                cursor, BookmarksLoader.COLUMN_INDEX_IMAGE_ID), null);
     }
 
     static ThreadLocal<Options> sOptions = new ThreadLocal<Options>() {
@@ -240,8 +246,7 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
             return new Options();
         };
     };
-    static Bitmap getBitmap(Cursor cursor, int columnIndex, Bitmap inBitmap) {
-        byte[] data = cursor.getBlob(columnIndex);
+    static Bitmap decodeBitmap(byte[] data, Bitmap inBitmap) {
         if (data == null) {
             return null;
         }
@@ -316,7 +321,7 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
         } else {
             String url = cursor.getString(BookmarksLoader.COLUMN_INDEX_URL);
             item.setUrl(url);
-            Bitmap bitmap = getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_FAVICON);
+            Bitmap bitmap = getBitmap(getActivity(), cursor, BrowserContract.Images.FAVICON);
             item.setFavicon(bitmap);
         }
     }
@@ -455,8 +460,8 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
     /* package */ static Intent createShortcutIntent(Context context, Cursor cursor) {
         String url = cursor.getString(BookmarksLoader.COLUMN_INDEX_URL);
         String title = cursor.getString(BookmarksLoader.COLUMN_INDEX_TITLE);
-        Bitmap touchIcon = getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_TOUCH_ICON);
-        Bitmap favicon = getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_FAVICON);
+        Bitmap touchIcon = getBitmap(context, cursor, BrowserContract.Images.TOUCH_ICON);
+        Bitmap favicon = getBitmap(context, cursor, BrowserContract.Images.FAVICON);
         return BookmarkUtils.createAddToHomeIntent(context, url, title, touchIcon, favicon);
     }
 
@@ -516,10 +521,9 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
                 cursor.getString(BookmarksLoader.COLUMN_INDEX_TITLE));
         item.putString(BrowserContract.Bookmarks.URL,
                 cursor.getString(BookmarksLoader.COLUMN_INDEX_URL));
-        byte[] data = cursor.getBlob(BookmarksLoader.COLUMN_INDEX_FAVICON);
-        if (data != null) {
-            item.putParcelable(BrowserContract.Bookmarks.FAVICON,
-                    BitmapFactory.decodeByteArray(data, 0, data.length));
+        Bitmap favicon = getBitmap(getActivity(), cursor, BrowserContract.Images.FAVICON);
+        if (favicon != null) {
+            item.putParcelable(BrowserContract.Bookmarks.FAVICON, favicon);
         }
         item.putLong(BrowserContract.Bookmarks._ID,
                 cursor.getLong(BookmarksLoader.COLUMN_INDEX_ID));
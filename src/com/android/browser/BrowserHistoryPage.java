@@ -16,6 +16,8 @@
 
 package com.android.browser;
 
+import com.android.browser.provider.BrowserProvider2;
+
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
@@ -40,6 +42,7 @@ import android.os.Bundle;
 import android.provider.Browser;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.Combined;
+import android.provider.BrowserContract.Images;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.LayoutInflater;
@@ -90,7 +93,7 @@ public class BrowserHistoryPage extends Fragment
                 Combined.DATE_LAST_VISITED, // 1
                 Combined.TITLE, // 2
                 Combined.URL, // 3
-                Combined.FAVICON, // 4
+                BrowserProvider2.IMAGE_ID, // 4
                 Combined.VISITS, // 5
                 Combined.IS_BOOKMARK, // 6
         };
@@ -99,7 +102,7 @@ public class BrowserHistoryPage extends Fragment
         static final int INDEX_DATE_LAST_VISITED = 1;
         static final int INDEX_TITE = 2;
         static final int INDEX_URL = 3;
-        static final int INDEX_FAVICON = 4;
+        static final int INDEX_IMAGE_ID = 4;
         static final int INDEX_VISITS = 5;
         static final int INDEX_IS_BOOKMARK = 6;
     }
@@ -518,20 +521,24 @@ public class BrowserHistoryPage extends Fragment
 
     }
 
-    private class HistoryAdapter extends DateSortedExpandableListAdapter {
+    private class HistoryAdapter extends DateSortedExpandableListAdapter
+            implements BatchImageLoader.Listener {
 
         private Cursor mMostVisited, mHistoryCursor;
+        private BatchImageLoader mFavicons;
         Drawable mFaviconBackground;
 
         HistoryAdapter(Context context) {
             super(context, HistoryQuery.INDEX_DATE_LAST_VISITED);
             mFaviconBackground = BookmarkUtils.createListFaviconBackground(context);
+            mFavicons = new BatchImageLoader(context.getContentResolver(), Images.FAVICON);
         }
 
         @Override
         public void changeCursor(Cursor cursor) {
             mHistoryCursor = cursor;
             super.changeCursor(cursor);
+            mFavicons.clear();
         }
 
         void changeMostVisitedCursor(Cursor cursor) {
@@ -543,12 +550,18 @@ public class BrowserHistoryPage extends Fragment
                 mMostVisited.close();
             }
             mMostVisited = cursor;
+            mFavicons.clear();
             if (mMostVisited != null) {
                 mMostVisited.registerDataSetObserver(mDataSetObserver);
             }
             notifyDataSetChanged();
         }
 
+        @Override
+        public void onImagesLoaded() {
+            notifyDataSetChanged();
+        }
+
         @Override
         public long getChildId(int groupPosition, int childPosition) {
             if (moveCursorToChildPosition(groupPosition, childPosition)) {
@@ -654,7 +667,8 @@ public class BrowserHistoryPage extends Fragment
             item.setName(cursor.getString(HistoryQuery.INDEX_TITE));
             String url = cursor.getString(HistoryQuery.INDEX_URL);
             item.setUrl(url);
-            byte[] data = cursor.getBlob(HistoryQuery.INDEX_FAVICON);
+            // Rebound with the favicon once its batch is loaded
+            byte[] data = mFavicons.load(cursor, HistoryQuery.INDEX_IMAGE_ID, this);
             if (data != null) {
                 item.setFavicon(BitmapFactory.decodeByteArray(data, 0,
                         data.length));
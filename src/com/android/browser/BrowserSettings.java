@@ -30,6 +30,7 @@ import android.preference.PreferenceManager;
 import android.provider.Browser;
 import android.provider.Settings;
 import android.util.DisplayMetrics;
+import android.util.Log;
 import android.webkit.CookieManager;
 import android.webkit.GeolocationPermissions;
 import android.webkit.WebIconDatabase;
@@ -48,8 +49,10 @@ import com.android.browser.search.SearchEngine;
 import com.android.browser.search.SearchEngines;
 
 import java.lang.ref.WeakReference;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Set;
 import java.util.WeakHashMap;
 
 /**
@@ -58,6 +61,10 @@ import java.util.WeakHashMap;
 public class BrowserSettings implements OnSharedPreferenceChangeListener,
         PreferenceKeys {
 
+    private static final boolean LOGD_ENABLED =
+            com.android.browser.Browser.LOGD_ENABLED;
+    private static final String LOGTAG = "BrowserSettings";
+
     // TODO: Do something with this UserAgent stuff
     private static final String DESKTOP_USERAGENT = "Mozilla/5.0 (X11; " +
         "Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) " +
@@ -110,6 +117,14 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     private Controller mController;
     private WebStorageSizeManager mWebStorageSizeManager;
     private WeakHashMap<WebSettings, String> mCustomUserAgents;
+    // What was last applied to each managed WebSettings, guarded by
+    // mManagedSettings
+    private WeakHashMap<WebSettings, WebSettingsSnapshot> mAppliedSettings;
+    // Setter calls made and skipped by syncs because the value was unchanged
+    private int mSetterCalls;
+    private int mSetterCallsAvoided;
+    // Last cookie setting pushed to the tabs, null if never pushed
+    private Boolean mAppliedAcceptCookies;
     private static boolean sInitialized = false;
     private boolean mNeedsSharedSync = true;
     private float mFontSizeMult = 1.0f;
@@ -122,7 +137,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     private String mAppCachePath;
 
     // Cached settings
-    private SearchEngine mSearchEngine;
+    private volatile SearchEngine mSearchEngine;
 
     private static String sFactoryResetUrl;
 
@@ -139,11 +154,22 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
         mManagedSettings = new LinkedList<WeakReference<WebSettings>>();
         mCustomUserAgents = new WeakHashMap<WebSettings, String>();
-        BackgroundHandler.execute(mSetup);
+        mAppliedSettings = new WeakHashMap<WebSettings, WebSettingsSnapshot>();
+        StartupScheduler scheduler = StartupScheduler.getInstance();
+        scheduler.add(StartupScheduler.STEP_SETTINGS, mSetup, 0);
+        // Loading the search engine reads its resources, which the first page
+        // doesn't need
+        scheduler.add(StartupScheduler.STEP_SEARCH_ENGINE, new Runnable() {
+            @Override
+            public void run() {
+                getSearchEngine();
+            }
+        }, StartupScheduler.FLAG_DEFERRED, StartupScheduler.STEP_SETTINGS);
     }
 
     public void setController(Controller controller) {
         mController = controller;
+        mAppliedAcceptCookies = null;
         if (sInitialized) {
             syncSharedSettings();
         }
@@ -157,7 +183,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
 
         synchronized (mManagedSettings) {
             syncStaticSettings(settings);
-            syncSetting(settings);
+            syncSetting(settings, snapshotSettings());
             mManagedSettings.add(new WeakReference<WebSettings>(settings));
         }
     }
@@ -168,6 +194,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
             WeakReference<WebSettings> ref = iter.next();
             if (ref.get() == settings) {
                 iter.remove();
+                mAppliedSettings.remove(settings);
                 return;
             }
         }
@@ -188,6 +215,8 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
             mWebStorageSizeManager = new WebStorageSizeManager(mContext,
                     new WebStorageSizeManager.StatFsDiskInfo(getAppCachePath()),
                     new WebStorageSizeManager.WebKitAppCacheInfo(getAppCachePath()));
+            mWebStorageSizeManager.setEvictor(new WebStorageEvictor(mContext,
+                    mWebStorageSizeManager, mOpenTabHosts));
             // Workaround b/5254577
             mPrefs.registerOnSharedPreferenceChangeListener(BrowserSettings.this);
             if (Build.VERSION.CODENAME.equals("REL")) {
@@ -233,6 +262,23 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         }
     };
 
+    private final WebStorageEvictor.OpenTabHosts mOpenTabHosts =
+            new WebStorageEvictor.OpenTabHosts() {
+        @Override
+        public Set<String> getOpenTabHosts() {
+            HashSet<String> hosts = new HashSet<String>();
+            if (mController != null) {
+                for (Tab tab : mController.getTabs()) {
+                    String host = UrlUtils.getHost(tab.getUrl());
+                    if (host != null) {
+                        hosts.add(host);
+                    }
+                }
+            }
+            return hosts;
+        }
+    };
+
     private static void requireInitialization() {
         synchronized (BrowserSettings.class) {
             while (!sInitialized) {
@@ -245,33 +291,48 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     }
 
     /**
-     * Syncs all the settings that have a Preference UI
+     * Reads the current values of all the settings that have a Preference UI
      */
-    private void syncSetting(WebSettings settings) {
-        settings.setGeolocationEnabled(enableGeolocation());
-        settings.setJavaScriptEnabled(enableJavascript());
-        settings.setLightTouchEnabled(enableLightTouch());
-        settings.setNavDump(enableNavDump());
-        settings.setDefaultTextEncodingName(getDefaultTextEncoding());
-        settings.setDefaultZoom(getDefaultZoom());
-        settings.setMinimumFontSize(getMinimumFontSize());
-        settings.setMinimumLogicalFontSize(getMinimumFontSize());
-        settings.setPluginState(getPluginState());
-        settings.setTextZoom(getTextZoom());
-        settings.setLayoutAlgorithm(getLayoutAlgorithm());
-        settings.setJavaScriptCanOpenWindowsAutomatically(!blockPopupWindows());
-        settings.setLoadsImagesAutomatically(loadImages());
-        settings.setLoadWithOverviewMode(loadPageInOverviewMode());
-        settings.setSavePassword(rememberPasswords());
-        settings.setSaveFormData(saveFormdata());
-        settings.setUseWideViewPort(isWideViewport());
+    private WebSettingsSnapshot snapshotSettings() {
+        WebSettingsSnapshot snapshot = new WebSettingsSnapshot();
+        snapshot.geolocationEnabled = enableGeolocation();
+        snapshot.javaScriptEnabled = enableJavascript();
+        snapshot.lightTouchEnabled = enableLightTouch();
+        snapshot.navDump = enableNavDump();
+        snapshot.defaultTextEncoding = getDefaultTextEncoding();
+        snapshot.defaultZoom = getDefaultZoom();
+        snapshot.minimumFontSize = getMinimumFontSize();
+        snapshot.pluginState = getPluginState();
+        snapshot.textZoom = getTextZoom();
+        snapshot.layoutAlgorithm = getLayoutAlgorithm();
+        snapshot.javaScriptCanOpenWindows = !blockPopupWindows();
+        snapshot.loadsImages = loadImages();
+        snapshot.loadWithOverviewMode = loadPageInOverviewMode();
+        snapshot.savePassword = rememberPasswords();
+        snapshot.saveFormData = saveFormdata();
+        snapshot.useWideViewPort = isWideViewport();
+        snapshot.userAgent = USER_AGENTS[getUserAgent()];
+        return snapshot;
+    }
 
+    /**
+     * Syncs all the settings that have a Preference UI, calling only the
+     * setters whose value differs from what was last applied to settings.
+     * Must be called with mManagedSettings held.
+     */
+    private void syncSetting(WebSettings settings, WebSettingsSnapshot current) {
+        WebSettingsSnapshot applied = mAppliedSettings.get(settings);
+        if (applied == null) {
+            applied = new WebSettingsSnapshot();
+            mAppliedSettings.put(settings, applied);
+        }
         String ua = mCustomUserAgents.get(settings);
-        if (ua != null) {
-            settings.setUserAgentString(ua);
-        } else {
-            settings.setUserAgentString(USER_AGENTS[getUserAgent()]);
+        if (ua == null) {
+            ua = current.userAgent;
         }
+        int calls = applied.applyTo(settings, current, ua);
+        mSetterCalls += calls;
+        mSetterCallsAvoided += WebSettingsSnapshot.SETTER_COUNT - calls;
     }
 
     /**
@@ -309,10 +370,17 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
 
     private void syncSharedSettings() {
         mNeedsSharedSync = false;
-        CookieManager.getInstance().setAcceptCookie(acceptCookies());
+        boolean acceptCookies = acceptCookies();
+        CookieManager.getInstance().setAcceptCookie(acceptCookies);
         if (mController != null) {
-            for (Tab tab : mController.getTabs()) {
-                tab.setAcceptThirdPartyCookies(acceptCookies());
+            // New tabs pick the setting up from the CookieManager, so the
+            // open tabs only need updating when it changes
+            if (mAppliedAcceptCookies == null
+                    || mAppliedAcceptCookies != acceptCookies) {
+                mAppliedAcceptCookies = acceptCookies;
+                for (Tab tab : mController.getTabs()) {
+                    tab.setAcceptThirdPartyCookies(acceptCookies);
+                }
             }
             mController.setShouldShowErrorConsole(enableJavascriptConsole());
         }
@@ -320,7 +388,10 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
 
     private void syncManagedSettings() {
         syncSharedSettings();
+        // Read the preferences once rather than once per WebSettings
+        WebSettingsSnapshot current = snapshotSettings();
         synchronized (mManagedSettings) {
+            int calls = mSetterCalls;
             Iterator<WeakReference<WebSettings>> iter = mManagedSettings.iterator();
             while (iter.hasNext()) {
                 WeakReference<WebSettings> ref = iter.next();
@@ -329,11 +400,26 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
                     iter.remove();
                     continue;
                 }
-                syncSetting(settings);
+                syncSetting(settings, current);
+            }
+            if (LOGD_ENABLED) {
+                Log.d(LOGTAG, "syncManagedSettings: " + (mSetterCalls - calls)
+                        + " setter calls; " + getSyncStats());
             }
         }
     }
 
+    /**
+     * Returns the setter calls made and avoided by settings syncs since
+     * startup, for debugging.
+     */
+    String getSyncStats() {
+        synchronized (mManagedSettings) {
+            return "setterCalls=" + mSetterCalls
+                    + " setterCallsAvoided=" + mSetterCallsAvoided;
+        }
+    }
+
     @Override
     public void onSharedPreferenceChanged(
             SharedPreferences sharedPreferences, String key) {
@@ -461,6 +547,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
 
     public void clearDatabases() {
         WebStorage.getInstance().deleteAllData();
+        getWebStorageSizeManager().getAccounting().invalidate();
     }
 
     public void clearLocationAccess() {
@@ -495,12 +582,21 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
             return;
         }
         WebSettings settings = view.getSettings();
+        String ua;
         if (mCustomUserAgents.get(settings) != null) {
             mCustomUserAgents.remove(settings);
-            settings.setUserAgentString(USER_AGENTS[getUserAgent()]);
+            ua = USER_AGENTS[getUserAgent()];
         } else {
             mCustomUserAgents.put(settings, DESKTOP_USERAGENT);
-            settings.setUserAgentString(DESKTOP_USERAGENT);
+            ua = DESKTOP_USERAGENT;
+        }
+        synchronized (mManagedSettings) {
+            WebSettingsSnapshot applied = mAppliedSettings.get(settings);
+            if (applied != null) {
+                applied.setUserAgent(settings, ua);
+            } else {
+                settings.setUserAgentString(ua);
+            }
         }
     }
 
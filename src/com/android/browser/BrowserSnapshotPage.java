@@ -23,6 +23,7 @@ import android.app.Fragment;
 import android.app.LoaderManager.LoaderCallbacks;
 import android.content.ContentResolver;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.CursorLoader;
 import android.content.Loader;
@@ -202,9 +203,23 @@ public class BrowserSnapshotPage extends Fragment implements
 
     }
 
+    void touchSnapshot(long id) {
+        final Uri uri = ContentUris.withAppendedId(Snapshots.CONTENT_URI, id);
+        final ContentResolver cr = getActivity().getContentResolver();
+        new Thread() {
+            @Override
+            public void run() {
+                ContentValues values = new ContentValues();
+                values.put(Snapshots.DATE_ACCESSED, System.currentTimeMillis());
+                cr.update(uri, values, null, null);
+            }
+        }.start();
+    }
+
     @Override
     public void onItemClick(AdapterView<?> parent, View view, int position,
             long id) {
+        touchSnapshot(id);
         mCallback.openSnapshot(id);
     }
 
@@ -18,8 +18,11 @@ package com.android.browser;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.view.View;
+import android.view.inputmethod.EditorInfo;
+import android.view.inputmethod.InputConnection;
 import android.webkit.WebChromeClient;
 import android.webkit.WebSettings;
 import android.webkit.WebStorage;
@@ -43,6 +46,8 @@ public class BrowserWebView extends WebView {
     private WebChromeClient mWebChromeClient;
     private WebViewClient mWebViewClient;
     private boolean mPrivateBrowsing = false;
+    private boolean mFormInteraction = false;
+    private long mLastScrollTime;
 
     /**
      * @param context
@@ -136,6 +141,7 @@ public class BrowserWebView extends WebView {
     @Override
     protected void onScrollChanged(int l, int t, int oldl, int oldt) {
         super.onScrollChanged(l, t, oldl, oldt);
+        mLastScrollTime = SystemClock.uptimeMillis();
         if (mTitleBar != null) {
             mTitleBar.onScrollChanged();
         }
@@ -144,10 +150,40 @@ public class BrowserWebView extends WebView {
         }
     }
 
+    /**
+     * Returns the uptime of the last scroll, used to hold off work that would
+     * compete with scrolling.
+     */
+    public long getLastScrollTime() {
+        return mLastScrollTime;
+    }
+
     public void setOnScrollChangedListener(OnScrollChangedListener listener) {
         mOnScrollChangedListener = listener;
     }
 
+    @Override
+    public InputConnection onCreateInputConnection(EditorInfo outAttrs) {
+        InputConnection ic = super.onCreateInputConnection(outAttrs);
+        if (ic != null) {
+            // An editable element has focus
+            mFormInteraction = true;
+        }
+        return ic;
+    }
+
+    /**
+     * @return True if an editable field was focused since the last call to
+     *         {@link #clearFormInteraction()}.
+     */
+    public boolean hasFormInteraction() {
+        return mFormInteraction;
+    }
+
+    public void clearFormInteraction() {
+        mFormInteraction = false;
+    }
+
     @Override
     public boolean showContextMenuForChild(View originalView) {
         return false;
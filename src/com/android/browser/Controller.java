@@ -21,6 +21,7 @@ import android.app.Dialog;
 import android.app.DownloadManager;
 import android.app.ProgressDialog;
 import android.content.ClipboardManager;
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -47,6 +48,7 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
 import android.preference.PreferenceActivity;
 import android.provider.Browser;
 import android.provider.BrowserContract;
@@ -165,9 +167,10 @@ public class Controller
 
     private Activity mActivity;
     private UI mUi;
+    private UiUpdateCoalescer mUiUpdates;
     private TabControl mTabControl;
     private BrowserSettings mSettings;
-    private WebViewFactory mFactory;
+    private WebViewPool mFactory;
 
     private WakeLock mWakeLock;
 
@@ -237,7 +240,7 @@ public class Controller
         mSettings.setController(this);
         mCrashRecoveryHandler = CrashRecoveryHandler.initialize(this);
         mCrashRecoveryHandler.preloadCrashState();
-        mFactory = new BrowserWebViewFactory(browser);
+        mFactory = new WebViewPool(browser, new BrowserWebViewFactory(browser));
 
         mUrlHandler = new UrlHandler(this);
         mIntentHandler = new IntentHandler(mActivity, this);
@@ -258,10 +261,20 @@ public class Controller
                 BrowserContract.Bookmarks.CONTENT_URI, true, mBookmarksObserver);
 
         mNetworkHandler = new NetworkStateHandler(mActivity, this);
-        // Start watching the default geolocation permissions
+        // Start watching the default geolocation permissions once the first
+        // page is showing
         mSystemAllowGeolocationOrigins =
                 new SystemAllowGeolocationOrigins(mActivity.getApplicationContext());
-        mSystemAllowGeolocationOrigins.start();
+        StartupScheduler.getInstance().add(StartupScheduler.STEP_GEOLOCATION_ORIGINS,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        // Null if the activity was destroyed before first paint
+                        if (mSystemAllowGeolocationOrigins != null) {
+                            mSystemAllowGeolocationOrigins.start();
+                        }
+                    }
+                }, StartupScheduler.FLAG_DEFERRED | StartupScheduler.FLAG_UI_THREAD);
 
         openIconDatabase();
     }
@@ -273,6 +286,7 @@ public class Controller
     }
 
     void doStart(final Bundle icicle, final Intent intent) {
+        final long start = SystemClock.uptimeMillis();
         // Unless the last browser usage was within 24 hours, destroy any
         // remaining incognito tabs.
 
@@ -300,8 +314,14 @@ public class Controller
         GoogleAccountLogin.startLoginIfNeeded(mActivity,
                 new Runnable() {
                     @Override public void run() {
+                        StartupScheduler scheduler = StartupScheduler.getInstance();
+                        long preloginFinished = SystemClock.uptimeMillis();
+                        scheduler.record(StartupScheduler.STEP_PRELOGIN, start,
+                                preloginFinished);
                         onPreloginFinished(icicle, intent, currentTabId,
                                 restoreIncognitoTabs);
+                        scheduler.record(StartupScheduler.STEP_FIRST_TAB, preloginFinished,
+                                SystemClock.uptimeMillis());
                     }
                 });
     }
@@ -309,7 +329,8 @@ public class Controller
     private void onPreloginFinished(Bundle icicle, Intent intent, long currentTabId,
             boolean restoreIncognitoTabs) {
         if (currentTabId == -1) {
-            BackgroundHandler.execute(new PruneThumbnails(mActivity, null));
+            StartupScheduler.getInstance().add(StartupScheduler.STEP_PRUNE_THUMBNAILS,
+                    new PruneThumbnails(mActivity, null), StartupScheduler.FLAG_DEFERRED);
             if (intent == null) {
                 // This won't happen under common scenarios. The icicle is
                 // not null, but there aren't any tabs to restore.
@@ -347,11 +368,13 @@ public class Controller
             for (Tab t : tabs) {
                 restoredTabs.add(t.getId());
             }
-            BackgroundHandler.execute(new PruneThumbnails(mActivity, restoredTabs));
+            StartupScheduler.getInstance().add(StartupScheduler.STEP_PRUNE_THUMBNAILS,
+                    new PruneThumbnails(mActivity, restoredTabs), StartupScheduler.FLAG_DEFERRED);
             if (tabs.size() == 0) {
                 openTabToHomePage();
             }
             mUi.updateTabs(tabs);
+            DataController.getInstance(mActivity).loadFavicons(tabs);
             // TabControl.restoreState() will create a new tab even if
             // restoring the state fails.
             setActiveTab(mTabControl.getCurrentTab());
@@ -415,7 +438,7 @@ public class Controller
     public void createSubWindow(Tab tab) {
         endActionMode();
         WebView mainView = tab.getWebView();
-        WebView subView = mFactory.createWebView((mainView == null)
+        WebView subView = mFactory.createSubWebView((mainView == null)
                 ? false
                 : mainView.isPrivateBrowsingEnabled());
         mUi.createSubWindow(tab, subView);
@@ -433,6 +456,7 @@ public class Controller
 
     void setUi(UI ui) {
         mUi = ui;
+        mUiUpdates = new UiUpdateCoalescer(ui);
     }
 
     @Override
@@ -467,13 +491,13 @@ public class Controller
     private void openIconDatabase() {
         // We have to call getInstance on the UI thread
         final WebIconDatabase instance = WebIconDatabase.getInstance();
-        BackgroundHandler.execute(new Runnable() {
+        StartupScheduler.getInstance().add(StartupScheduler.STEP_ICON_DATABASE, new Runnable() {
 
             @Override
             public void run() {
                 instance.open(mActivity.getDir("icons", 0).getPath());
             }
-        });
+        }, 0);
     }
 
     private void startHandler() {
@@ -547,7 +571,11 @@ public class Controller
                     case UPDATE_BOOKMARK_THUMBNAIL:
                         Tab tab = (Tab) msg.obj;
                         if (tab != null) {
+                            long start = SystemClock.uptimeMillis();
                             updateScreenshot(tab);
+                            Performance.addTabPageCost(tab.getId(),
+                                    PageLoadTracer.COST_THUMBNAIL,
+                                    SystemClock.uptimeMillis() - start);
                         }
                         break;
                 }
@@ -770,6 +798,7 @@ public class Controller
         mActivity.getContentResolver().unregisterContentObserver(mBookmarksObserver);
         // Destroy all the tabs
         mTabControl.destroy();
+        mFactory.destroy();
         WebIconDatabase.getInstance().close();
         // Stop watching the default geolocation permissions
         mSystemAllowGeolocationOrigins.stop();
@@ -782,9 +811,18 @@ public class Controller
 
     @Override
     public void onLowMemory() {
+        mFactory.trimMemory();
         mTabControl.freeMemory();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mFactory.trimMemory();
+        }
+        mTabControl.onTrimMemory(level);
+    }
+
     @Override
     public boolean shouldShowErrorConsole() {
         return mShouldShowErrorConsole;
@@ -848,13 +886,14 @@ public class Controller
         mLoadStopped = false;
         endActionMode();
 
-        mUi.onTabDataChanged(tab);
+        mUiUpdates.markDirty(tab, UiUpdateCoalescer.DIRTY_URL);
 
         String url = tab.getUrl();
         // update the bookmark database for favicon
         maybeUpdateFavicon(tab, null, url, favicon);
 
         Performance.tracePageStart(url);
+        Performance.onTabPageStarted(tab);
 
         // Performance probe
         if (false) {
@@ -866,7 +905,9 @@ public class Controller
     @Override
     public void onPageFinished(Tab tab) {
         mCrashRecoveryHandler.backupState();
-        mUi.onTabDataChanged(tab);
+        mUiUpdates.markDirty(tab, UiUpdateCoalescer.DIRTY_URL);
+        Performance.onTabPageEvent(tab.getId(), PageLoadTracer.EVENT_FINISH);
+        mSettings.getWebStorageSizeManager().checkStorage();
 
         // Performance probe
         if (false) {
@@ -879,6 +920,7 @@ public class Controller
     @Override
     public void onProgressChanged(Tab tab) {
         int newProgress = tab.getLoadProgress();
+        Performance.onTabPageEvent(tab.getId(), PageLoadTracer.EVENT_FIRST_PROGRESS);
 
         if (newProgress == 100) {
             CookieSyncManager.getInstance().sync();
@@ -921,17 +963,18 @@ public class Controller
                 updateInLoadMenuItems(mCachedMenu, tab);
             }
         }
-        mUi.onProgressChanged(tab);
+        mUiUpdates.markDirty(tab, UiUpdateCoalescer.DIRTY_PROGRESS);
     }
 
     @Override
     public void onUpdatedSecurityState(Tab tab) {
-        mUi.onTabDataChanged(tab);
+        mUiUpdates.markDirty(tab, UiUpdateCoalescer.DIRTY_SECURITY);
     }
 
     @Override
     public void onReceivedTitle(Tab tab, final String title) {
-        mUi.onTabDataChanged(tab);
+        mUiUpdates.markDirty(tab, UiUpdateCoalescer.DIRTY_TITLE);
+        Performance.onTabPageEvent(tab.getId(), PageLoadTracer.EVENT_TITLE);
         final String pageUrl = tab.getOriginalUrl();
         if (TextUtils.isEmpty(pageUrl) || pageUrl.length()
                 >= SQLiteDatabase.SQLITE_MAX_LIKE_PATTERN_LENGTH) {
@@ -945,7 +988,7 @@ public class Controller
 
     @Override
     public void onFavicon(Tab tab, WebView view, Bitmap icon) {
-        mUi.onTabDataChanged(tab);
+        mUiUpdates.markDirty(tab, UiUpdateCoalescer.DIRTY_FAVICON);
         maybeUpdateFavicon(tab, view.getOriginalUrl(), view.getUrl(), icon);
     }
 
@@ -993,18 +1036,7 @@ public class Controller
 
     @Override
     public void getVisitedHistory(final ValueCallback<String[]> callback) {
-        AsyncTask<Void, Void, String[]> task =
-                new AsyncTask<Void, Void, String[]>() {
-            @Override
-            public String[] doInBackground(Void... unused) {
-                return Browser.getVisitedHistory(mActivity.getContentResolver());
-            }
-            @Override
-            public void onPostExecute(String[] result) {
-                callback.onReceiveValue(result);
-            }
-        };
-        task.execute();
+        VisitedLinks.getInstance(mActivity).getVisitedHistory(callback);
     }
 
     @Override
@@ -2230,6 +2262,7 @@ public class Controller
     }
 
     protected void removeTab(Tab tab) {
+        mUiUpdates.remove(tab);
         mUi.removeTab(tab);
         mTabControl.removeTab(tab);
         mCrashRecoveryHandler.backupState();
@@ -48,7 +48,6 @@ public class CrashRecoveryHandler {
 
     private static final int MSG_WRITE_STATE = 1;
     private static final int MSG_CLEAR_STATE = 2;
-    private static final int MSG_PRELOAD_STATE = 3;
 
     private static CrashRecoveryHandler sInstance;
 
@@ -95,19 +94,23 @@ public class CrashRecoveryHandler {
                         state.delete();
                     }
                     break;
-                case MSG_PRELOAD_STATE:
-                    mRecoveryState = loadCrashState();
-                    synchronized (CrashRecoveryHandler.this) {
-                        mIsPreloading = false;
-                        mDidPreload = true;
-                        CrashRecoveryHandler.this.notifyAll();
-                    }
-                    break;
                 }
             }
         };
     }
 
+    private final Runnable mPreloadState = new Runnable() {
+        @Override
+        public void run() {
+            mRecoveryState = loadCrashState();
+            synchronized (CrashRecoveryHandler.this) {
+                mIsPreloading = false;
+                mDidPreload = true;
+                CrashRecoveryHandler.this.notifyAll();
+            }
+        }
+    };
+
     public void backupState() {
         mForegroundHandler.postDelayed(mCreateState, BACKUP_DELAY);
     }
@@ -212,7 +215,9 @@ public class CrashRecoveryHandler {
             }
             mIsPreloading = true;
         }
-        mBackgroundHandler.sendEmptyMessage(MSG_PRELOAD_STATE);
+        // Run on the start-up executor rather than the background looper, so
+        // the restore doesn't queue behind other background work
+        StartupScheduler.getInstance().add(StartupScheduler.STEP_CRASH_STATE, mPreloadState, 0);
     }
 
     /**
@@ -24,16 +24,25 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.History;
+import android.provider.BrowserContract.Images;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.browser.provider.BrowserProvider2.Thumbnails;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -46,6 +55,7 @@ public class DataController {
     private static final int TAB_LOAD_THUMBNAIL = 201;
     private static final int TAB_SAVE_THUMBNAIL = 202;
     private static final int TAB_DELETE_THUMBNAIL = 203;
+    private static final int TAB_LOAD_FAVICONS = 204;
     private static DataController sInstance;
 
     private Context mContext;
@@ -94,6 +104,18 @@ public class DataController {
                         cb.onQueryUrlIsBookmark(url, isBookmark);
                         break;
                     }
+                    case TAB_LOAD_FAVICONS: {
+                        List<Tab> tabs = (List<Tab>) cc.replyTo;
+                        List<String> urls = (List<String>) cc.args[0];
+                        Map<String, Bitmap> favicons = (Map<String, Bitmap>) cc.args[1];
+                        for (int i = 0; i < tabs.size(); i++) {
+                            Bitmap favicon = favicons.get(urls.get(i));
+                            if (favicon != null) {
+                                tabs.get(i).setStoredFavicon(urls.get(i), favicon);
+                            }
+                        }
+                        break;
+                    }
                 }
             }
         };
@@ -128,6 +150,27 @@ public class DataController {
         mDataHandler.sendMessage(TAB_SAVE_THUMBNAIL, tab);
     }
 
+    /**
+     * Shows the stored favicons of tabs that have none, such as restored
+     * tabs whose page has not loaded yet. The favicons of all the tabs are
+     * read with one provider call.
+     */
+    public void loadFavicons(List<Tab> tabs) {
+        ArrayList<Tab> missing = new ArrayList<Tab>(tabs.size());
+        ArrayList<String> urls = new ArrayList<String>(tabs.size());
+        for (Tab tab : tabs) {
+            String url = tab.getUrl();
+            if (!tab.hasFavicon() && !tab.isPrivateBrowsingEnabled()
+                    && !TextUtils.isEmpty(url)) {
+                missing.add(tab);
+                urls.add(url);
+            }
+        }
+        if (!missing.isEmpty()) {
+            mDataHandler.sendMessage(TAB_LOAD_FAVICONS, urls, missing);
+        }
+    }
+
     // The standard Handler and Message classes don't allow the queue manipulation
     // we want (such as peeking). So we use our own queue.
     class DataControllerHandler extends Thread {
@@ -164,7 +207,10 @@ public class DataController {
         private void handleMessage(DCMessage msg) {
             switch (msg.what) {
             case HISTORY_UPDATE_VISITED:
+                long start = SystemClock.uptimeMillis();
                 doUpdateVisitedHistory((String) msg.obj);
+                Performance.addUrlPageCost((String) msg.obj,
+                        PageLoadTracer.COST_HISTORY_WRITE, SystemClock.uptimeMillis() - start);
                 break;
             case HISTORY_UPDATE_TITLE:
                 String[] args = (String[]) msg.obj;
@@ -190,12 +236,17 @@ public class DataController {
             case TAB_SAVE_THUMBNAIL:
                 doSaveThumbnail((Tab)msg.obj);
                 break;
+            case TAB_LOAD_FAVICONS:
+                doLoadFavicons((List<String>) msg.obj, msg.replyTo);
+                break;
             }
         }
 
         private byte[] getCaptureBlob(Tab tab) {
-            synchronized (tab) {
-                Bitmap capture = tab.getScreenshot();
+            // Pins the capture instead of locking the tab, so the UI thread
+            // can keep capturing into its other buffer meanwhile
+            Bitmap capture = tab.acquireCapture();
+            try {
                 if (capture == null) {
                     return null;
                 }
@@ -205,6 +256,8 @@ public class DataController {
                 capture.copyPixelsToBuffer(mBuffer);
                 mBuffer.rewind();
                 return mBuffer.array();
+            } finally {
+                tab.releaseCapture();
             }
         }
 
@@ -240,6 +293,24 @@ public class DataController {
             }
         }
 
+        private void doLoadFavicons(List<String> urls, Object replyTo) {
+            HashMap<String, byte[]> blobs = BatchImageLoader.fetchForUrls(
+                    mContext.getContentResolver(), Images.FAVICON,
+                    new ArrayList<String>(new HashSet<String>(urls)));
+            HashMap<String, Bitmap> favicons = new HashMap<String, Bitmap>(blobs.size());
+            for (Map.Entry<String, byte[]> blob : blobs.entrySet()) {
+                byte[] data = blob.getValue();
+                Bitmap favicon = BitmapFactory.decodeByteArray(data, 0, data.length);
+                if (favicon != null) {
+                    favicons.put(blob.getKey(), favicon);
+                }
+            }
+            CallbackContainer cc = new CallbackContainer();
+            cc.replyTo = replyTo;
+            cc.args = new Object[] { urls, favicons };
+            mCbHandler.obtainMessage(TAB_LOAD_FAVICONS, cc).sendToTarget();
+        }
+
         private void doUpdateVisitedHistory(String url) {
             ContentResolver cr = mContext.getContentResolver();
             Cursor c = null;
@@ -16,10 +16,6 @@
 
 package com.android.browser;
 
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -34,16 +30,17 @@ import android.provider.BrowserContract.Images;
 import android.webkit.WebView;
 
 import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
 
 class DownloadTouchIcon extends AsyncTask<String, Void, Void> {
 
     private final ContentResolver mContentResolver;
+    private final TouchIconCache mIconCache;
     private Cursor mCursor;
     private final String mOriginalUrl;
     private final String mUrl;
     private final String mUserAgent; // Sites may serve a different icon to different UAs
     private Message mMessage;
+    private Runnable mOnComplete;
 
     /* package */ Tab mTab;
 
@@ -52,9 +49,10 @@ class DownloadTouchIcon extends AsyncTask<String, Void, Void> {
      * the originalUrl so we take account of redirects. Used when the user
      * bookmarks a page from outside the bookmarks activity.
      */
-    public DownloadTouchIcon(Tab tab, ContentResolver cr, WebView view) {
+    public DownloadTouchIcon(Tab tab, Context context, WebView view) {
         mTab = tab;
-        mContentResolver = cr;
+        mContentResolver = context.getContentResolver();
+        mIconCache = TouchIconCache.getInstance(context);
         // Store these in case they change.
         mOriginalUrl = view.getOriginalUrl();
         mUrl = view.getUrl();
@@ -68,9 +66,10 @@ class DownloadTouchIcon extends AsyncTask<String, Void, Void> {
      * TODO: Would be nice to set the user agent here so that there is no
      * potential for the three different ctors here to return different icons.
      */
-    public DownloadTouchIcon(ContentResolver cr, String url) {
+    public DownloadTouchIcon(Context context, String url) {
         mTab = null;
-        mContentResolver = cr;
+        mContentResolver = context.getContentResolver();
+        mIconCache = TouchIconCache.getInstance(context);
         mOriginalUrl = null;
         mUrl = url;
         mUserAgent = null;
@@ -81,14 +80,23 @@ class DownloadTouchIcon extends AsyncTask<String, Void, Void> {
      * the passed Message's data bundle with the key
      * {@link BrowserContract.Bookmarks#TOUCH_ICON} and then send the message.
      */
-    public DownloadTouchIcon(Message msg, String userAgent) {
+    public DownloadTouchIcon(Context context, Message msg, String userAgent) {
         mMessage = msg;
         mContentResolver = null;
+        mIconCache = TouchIconCache.getInstance(context);
         mOriginalUrl = null;
         mUrl = null;
         mUserAgent = userAgent;
     }
 
+    /**
+     * Sets a callback run on the UI thread once the icon has been fetched
+     * and stored, whether or not that succeeded.
+     */
+    public void setOnCompleteListener(Runnable onComplete) {
+        mOnComplete = onComplete;
+    }
+
     @Override
     public Void doInBackground(String... values) {
         if (mContentResolver != null) {
@@ -99,38 +107,15 @@ class DownloadTouchIcon extends AsyncTask<String, Void, Void> {
         boolean inDatabase = mCursor != null && mCursor.getCount() > 0;
 
         if (inDatabase || mMessage != null) {
-            HttpURLConnection connection = null;
-            try {
-                URL url = new URL(values[0]);
-                connection = (HttpURLConnection) url.openConnection();
-                if (mUserAgent != null) {
-                    connection.addRequestProperty("User-Agent", mUserAgent);
-                }
-
-                if (connection.getResponseCode() == 200) {
-                    InputStream content = connection.getInputStream();
-                    Bitmap icon = null;
-                    try {
-                        icon = BitmapFactory.decodeStream(
-                                content, null, null);
-                    } finally {
-                        try {
-                            content.close();
-                        } catch (IOException ignored) {
-                        }
-                    }
-
-                    if (inDatabase) {
-                        storeIcon(icon);
-                    } else if (mMessage != null) {
-                        Bundle b = mMessage.getData();
-                        b.putParcelable(BrowserContract.Bookmarks.TOUCH_ICON, icon);
-                    }
-                }
-            } catch (IOException ignored) {
-            } finally {
-                if (connection != null) {
-                    connection.disconnect();
+            // Served from the icon cache when it has the icon
+            byte[] data = mIconCache.get(values[0], mUserAgent);
+            if (data != null) {
+                Bitmap icon = BitmapFactory.decodeByteArray(data, 0, data.length);
+                if (inDatabase) {
+                    storeIcon(icon);
+                } else if (mMessage != null) {
+                    Bundle b = mMessage.getData();
+                    b.putParcelable(BrowserContract.Bookmarks.TOUCH_ICON, icon);
                 }
             }
         }
@@ -146,6 +131,13 @@ class DownloadTouchIcon extends AsyncTask<String, Void, Void> {
         return null;
     }
 
+    @Override
+    protected void onPostExecute(Void result) {
+        if (mOnComplete != null) {
+            mOnComplete.run();
+        }
+    }
+
     @Override
     protected void onCancelled() {
         if (mCursor != null) {
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Ranks omnibox candidates by frecency: how often and how recently a url
+ * was visited, with typed visits and bookmarks counting extra.
+ *
+ * A visit's weight halves every HALF_LIFE, so a url visited often long
+ * ago falls behind one visited a few times this week. Only the best k
+ * candidates are kept while scanning, in a heap of size k, so ranking
+ * n candidates costs O(n log k) rather than a full sort.
+ *
+ * The constants are shared with the score BrowserProvider2 stores for
+ * each suggestion, so the provider's best rows are the ones worth ranking.
+ */
+class FrecencyRanker {
+
+    static final long DAY = 24 * 60 * 60 * 1000;
+    // Time for the weight of a visit to halve
+    static final long HALF_LIFE = OmniboxSuggestions.SCORE_HALF_LIFE;
+    // Typed urls are more likely to be typed again than followed links
+    static final double TYPED_BONUS = OmniboxSuggestions.SCORE_TYPED_BONUS;
+    // A bookmark counts as this many fresh visits, so new bookmarks rank
+    // ahead of stale history
+    static final double BOOKMARK_BONUS = OmniboxSuggestions.SCORE_BOOKMARK_BONUS;
+
+    /**
+     * A url that may be suggested, with what is known about its use.
+     */
+    static class Candidate {
+        final String url;
+        final String title;
+        final boolean bookmark;
+        final int visits;
+        final long lastVisited;
+        final boolean typed;
+        double score;
+
+        Candidate(String url, String title, boolean bookmark, int visits,
+                long lastVisited, boolean typed) {
+            this.url = url;
+            this.title = title;
+            this.bookmark = bookmark;
+            this.visits = visits;
+            this.lastVisited = lastVisited;
+            this.typed = typed;
+        }
+    }
+
+    // Lowest score first, ties broken towards the less recent visit, then
+    // by url so the order is stable
+    private static final Comparator<Candidate> ASCENDING = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate lhs, Candidate rhs) {
+            int c = Double.compare(lhs.score, rhs.score);
+            if (c != 0) {
+                return c;
+            }
+            if (lhs.lastVisited != rhs.lastVisited) {
+                return lhs.lastVisited < rhs.lastVisited ? -1 : 1;
+            }
+            return rhs.url.compareTo(lhs.url);
+        }
+    };
+
+    private final long mNow;
+
+    /**
+     * @param now the time recency is measured from, in ms since the epoch
+     */
+    FrecencyRanker(long now) {
+        mNow = now;
+    }
+
+    double score(Candidate c) {
+        double score = 0;
+        if (c.visits > 0) {
+            long age = Math.max(0, mNow - c.lastVisited);
+            double decay = Math.pow(0.5, (double) age / HALF_LIFE);
+            score = c.visits * decay * (c.typed ? TYPED_BONUS : 1);
+        }
+        if (c.bookmark) {
+            score += BOOKMARK_BONUS;
+        }
+        return score;
+    }
+
+    /**
+     * Returns the k best candidates, best first. Sets the score of every
+     * candidate.
+     */
+    List<Candidate> topK(Iterable<Candidate> candidates, int k) {
+        if (k <= 0) {
+            return new ArrayList<Candidate>(0);
+        }
+        PriorityQueue<Candidate> heap = new PriorityQueue<Candidate>(k, ASCENDING);
+        for (Candidate c : candidates) {
+            c.score = score(c);
+            if (heap.size() < k) {
+                heap.add(c);
+            } else if (ASCENDING.compare(c, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(c);
+            }
+        }
+        ArrayList<Candidate> top = new ArrayList<Candidate>(heap.size());
+        while (!heap.isEmpty()) {
+            top.add(heap.poll());
+        }
+        Collections.reverse(top);
+        return top;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records a timeline for every page load: when each phase was reached, how
+ * much UI thread time was spent in it, and the cost of the work the browser
+ * does for the load, such as writing history and capturing thumbnails.
+ *
+ * Finished timelines are kept in a fixed size ring buffer, and can be
+ * exported as JSON together with per-host percentiles of the load times.
+ * The url of a load is only kept to match costs to it; the export has
+ * just its host.
+ * Times are passed in by the caller, so this class can be unit tested.
+ * {@link Performance} feeds it from the UI thread and the history writer.
+ */
+public class PageLoadTracer {
+
+    // Phases of a page load, in the order they normally happen
+    public static final int EVENT_START = 0;
+    public static final int EVENT_FIRST_PROGRESS = 1;
+    public static final int EVENT_TITLE = 2;
+    public static final int EVENT_FIRST_PICTURE = 3;
+    public static final int EVENT_FINISH = 4;
+    static final int EVENT_COUNT = 5;
+    private static final String[] EVENT_NAMES = {
+            "start", "firstProgress", "title", "firstPicture", "finish" };
+
+    // Work done for a page load, accumulated in ms
+    public static final int COST_HISTORY_WRITE = 0;
+    public static final int COST_THUMBNAIL = 1;
+    static final int COST_COUNT = 2;
+    private static final String[] COST_NAMES = { "historyWrite", "thumbnail" };
+
+    private static final int[] PERCENTILES = { 50, 90, 99 };
+
+    /**
+     * One page load. Event times are uptime ms, -1 if the event did not
+     * happen; UI times are the UI thread's CPU time ms when it did.
+     */
+    public static class Timeline {
+        public final long tabId;
+        public final String url;
+        public final String host;
+        /** Wall clock time the load started */
+        public final long startWallTime;
+        final long[] mTimes = new long[EVENT_COUNT];
+        final long[] mUiTimes = new long[EVENT_COUNT];
+        final long[] mCosts = new long[COST_COUNT];
+
+        Timeline(long tabId, String url, long startWallTime) {
+            this.tabId = tabId;
+            this.url = url;
+            this.host = UrlUtils.getHost(url);
+            this.startWallTime = startWallTime;
+            Arrays.fill(mTimes, -1);
+            Arrays.fill(mUiTimes, -1);
+        }
+
+        /**
+         * Returns ms from the start of the load to the event, or -1.
+         */
+        public long getOffset(int event) {
+            return mTimes[event] < 0 ? -1 : mTimes[event] - mTimes[EVENT_START];
+        }
+
+        /**
+         * Returns the UI thread ms spent between the event and the previous
+         * event that happened, or -1 if the event did not happen.
+         */
+        public long getUiTime(int event) {
+            if (mUiTimes[event] < 0) {
+                return -1;
+            }
+            for (int i = event - 1; i >= 0; i--) {
+                if (mUiTimes[i] >= 0) {
+                    return mUiTimes[event] - mUiTimes[i];
+                }
+            }
+            return 0;
+        }
+
+        public long getCost(int cost) {
+            return mCosts[cost];
+        }
+
+        public boolean isFinished() {
+            return mTimes[EVENT_FINISH] >= 0;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject o = new JSONObject();
+            o.put("tab", tabId);
+            o.put("host", host);
+            o.put("startTime", startWallTime);
+            JSONObject offsets = new JSONObject();
+            JSONObject ui = new JSONObject();
+            for (int i = 0; i < EVENT_COUNT; i++) {
+                if (mTimes[i] >= 0) {
+                    offsets.put(EVENT_NAMES[i], getOffset(i));
+                    ui.put(EVENT_NAMES[i], getUiTime(i));
+                }
+            }
+            o.put("offsets", offsets);
+            o.put("uiThread", ui);
+            JSONObject costs = new JSONObject();
+            for (int i = 0; i < COST_COUNT; i++) {
+                costs.put(COST_NAMES[i], mCosts[i]);
+            }
+            o.put("costs", costs);
+            return o;
+        }
+    }
+
+    /**
+     * Load time percentiles of one host.
+     */
+    public static class HostSummary {
+        public final String host;
+        public final int count;
+        /** Finish offsets at the 50th, 90th and 99th percentiles */
+        public final long[] loadTimes;
+        /** Total UI thread time at the same percentiles */
+        public final long[] uiTimes;
+
+        HostSummary(String host, long[] loadTimes, long[] uiTimes) {
+            this.host = host;
+            this.count = loadTimes.length;
+            Arrays.sort(loadTimes);
+            Arrays.sort(uiTimes);
+            this.loadTimes = new long[PERCENTILES.length];
+            this.uiTimes = new long[PERCENTILES.length];
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                this.loadTimes[i] = percentile(loadTimes, PERCENTILES[i]);
+                this.uiTimes[i] = percentile(uiTimes, PERCENTILES[i]);
+            }
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject o = new JSONObject();
+            o.put("host", host);
+            o.put("count", count);
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                o.put("loadP" + PERCENTILES[i], loadTimes[i]);
+                o.put("uiThreadP" + PERCENTILES[i], uiTimes[i]);
+            }
+            return o;
+        }
+    }
+
+    private final Timeline[] mRing;
+    private int mNext = 0;
+    private int mCount = 0;
+    // Loads in progress, by tab id
+    private final HashMap<Long, Timeline> mActive = new HashMap<Long, Timeline>();
+
+    public PageLoadTracer(int capacity) {
+        mRing = new Timeline[capacity];
+    }
+
+    /**
+     * Starts a new timeline for the tab, dropping its unfinished one.
+     */
+    public synchronized void onPageStarted(long tabId, String url, long time, long uiTime,
+            long wallTime) {
+        Timeline t = new Timeline(tabId, url, wallTime);
+        t.mTimes[EVENT_START] = time;
+        t.mUiTimes[EVENT_START] = uiTime;
+        mActive.put(tabId, t);
+    }
+
+    /**
+     * Records the first occurrence of an event in the tab's current load.
+     * Finishing the load moves its timeline into the ring buffer.
+     */
+    public synchronized void onEvent(long tabId, int event, long time, long uiTime) {
+        Timeline t = mActive.get(tabId);
+        if (t == null || t.mTimes[event] >= 0) {
+            return;
+        }
+        t.mTimes[event] = time;
+        t.mUiTimes[event] = uiTime;
+        if (event == EVENT_FINISH) {
+            mActive.remove(tabId);
+            mRing[mNext] = t;
+            mNext = (mNext + 1) % mRing.length;
+            mCount = Math.min(mCount + 1, mRing.length);
+        }
+    }
+
+    /**
+     * Adds the cost of work done for the tab's current or last load.
+     */
+    public synchronized void addCost(long tabId, int cost, long ms) {
+        Timeline t = mActive.get(tabId);
+        if (t == null) {
+            t = findFinished(tabId, null);
+        }
+        if (t != null) {
+            t.mCosts[cost] += ms;
+        }
+    }
+
+    /**
+     * Adds the cost of work done for a url, for callers that don't know
+     * the tab, such as the history writer.
+     */
+    public synchronized void addCost(String url, int cost, long ms) {
+        Timeline t = null;
+        for (Timeline active : mActive.values()) {
+            if (active.url != null && active.url.equals(url)) {
+                t = active;
+                break;
+            }
+        }
+        if (t == null) {
+            t = findFinished(-1, url);
+        }
+        if (t != null) {
+            t.mCosts[cost] += ms;
+        }
+    }
+
+    // Newest finished timeline of the tab, or of the url if tabId is -1
+    private Timeline findFinished(long tabId, String url) {
+        for (int i = 1; i <= mCount; i++) {
+            Timeline t = mRing[(mNext - i + mRing.length) % mRing.length];
+            if (tabId >= 0 ? t.tabId == tabId : url.equals(t.url)) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the finished timelines, oldest first.
+     */
+    public synchronized List<Timeline> getTimelines() {
+        ArrayList<Timeline> timelines = new ArrayList<Timeline>(mCount);
+        for (int i = mCount; i > 0; i--) {
+            timelines.add(mRing[(mNext - i + mRing.length) % mRing.length]);
+        }
+        return timelines;
+    }
+
+    /**
+     * Returns load time percentiles of every host with finished loads,
+     * sorted by host.
+     */
+    public List<HostSummary> getHostSummaries() {
+        TreeMap<String, ArrayList<Timeline>> byHost = new TreeMap<String, ArrayList<Timeline>>();
+        for (Timeline t : getTimelines()) {
+            String host = t.host != null ? t.host : "";
+            ArrayList<Timeline> list = byHost.get(host);
+            if (list == null) {
+                list = new ArrayList<Timeline>();
+                byHost.put(host, list);
+            }
+            list.add(t);
+        }
+        ArrayList<HostSummary> summaries = new ArrayList<HostSummary>(byHost.size());
+        for (Map.Entry<String, ArrayList<Timeline>> e : byHost.entrySet()) {
+            ArrayList<Timeline> list = e.getValue();
+            long[] loadTimes = new long[list.size()];
+            long[] uiTimes = new long[list.size()];
+            for (int i = 0; i < loadTimes.length; i++) {
+                Timeline t = list.get(i);
+                loadTimes[i] = t.getOffset(EVENT_FINISH);
+                uiTimes[i] = t.mUiTimes[EVENT_FINISH] - t.mUiTimes[EVENT_START];
+            }
+            summaries.add(new HostSummary(e.getKey(), loadTimes, uiTimes));
+        }
+        return summaries;
+    }
+
+    /**
+     * Returns the finished timelines and the host summaries as JSON, tagged
+     * with the build so exports from different builds can be compared.
+     */
+    public String toJson(String build) {
+        try {
+            JSONObject root = new JSONObject();
+            root.put("build", build);
+            JSONArray timelines = new JSONArray();
+            for (Timeline t : getTimelines()) {
+                timelines.put(t.toJson());
+            }
+            root.put("timelines", timelines);
+            JSONArray hosts = new JSONArray();
+            for (HostSummary s : getHostSummaries()) {
+                hosts.put(s.toJson());
+            }
+            root.put("hosts", hosts);
+            return root.toString(2);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(mRing, null);
+        mNext = 0;
+        mCount = 0;
+        mActive.clear();
+    }
+
+    /**
+     * Returns the nearest-rank percentile of sorted values, or -1 if empty.
+     */
+    static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return -1;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
@@ -55,6 +55,47 @@ public class Performance {
 
     private static long mUiStart;
 
+    // Number of finished page loads whose timelines are kept
+    private static final int PAGE_LOAD_HISTORY = 200;
+    private static final PageLoadTracer sPageLoads = new PageLoadTracer(PAGE_LOAD_HISTORY);
+
+    /**
+     * Returns the timelines of the recent page loads.
+     */
+    public static PageLoadTracer getPageLoadTracer() {
+        return sPageLoads;
+    }
+
+    /**
+     * Starts the timeline of the tab's page load. Loads are only traced
+     * with the debug settings enabled, and never those of private tabs.
+     * Later events and costs of an untraced load are ignored.
+     */
+    static void onTabPageStarted(Tab tab) {
+        if (tab.isPrivateBrowsingEnabled()
+                || !BrowserSettings.getInstance().isDebugEnabled()) {
+            return;
+        }
+        sPageLoads.onPageStarted(tab.getId(), tab.getUrl(), SystemClock.uptimeMillis(),
+                SystemClock.currentThreadTimeMillis(), System.currentTimeMillis());
+    }
+
+    /**
+     * Records a page load event of the tab, must be called on the UI thread.
+     */
+    static void onTabPageEvent(long tabId, int event) {
+        sPageLoads.onEvent(tabId, event, SystemClock.uptimeMillis(),
+                SystemClock.currentThreadTimeMillis());
+    }
+
+    static void addTabPageCost(long tabId, int cost, long ms) {
+        sPageLoads.addCost(tabId, cost, ms);
+    }
+
+    static void addUrlPageCost(String url, int cost, long ms) {
+        sPageLoads.addCost(url, cost, ms);
+    }
+
     static void tracePageStart(String url) {
         if (BrowserSettings.getInstance().isTracing()) {
             String host;
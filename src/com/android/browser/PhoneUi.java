@@ -97,6 +97,12 @@ public class PhoneUi extends BaseUi {
         return super.onBackKey();
     }
 
+    @Override
+    public boolean isTabVisible(Tab tab) {
+        // The nav screen covers the title bar; hiding it refreshes the tab
+        return super.isTabVisible(tab) && !showingNavScreen();
+    }
+
     private boolean showingNavScreen() {
         return mNavScreen != null && mNavScreen.getVisibility() == View.VISIBLE;
     }
@@ -78,6 +78,7 @@ public interface PreferenceKeys {
     static final String PREF_SMALL_SCREEN = "small_screen";
     static final String PREF_WIDE_VIEWPORT = "wide_viewport";
     static final String PREF_RESET_PRELOGIN = "reset_prelogin";
+    static final String PREF_EXPORT_PAGE_LOADS = "export_page_loads";
 
     // ----------------------
     // Keys for lab_preferences.xml
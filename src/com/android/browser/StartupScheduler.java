@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the browser's start-up steps. Each step names the steps it depends
+ * on and starts as soon as they have finished, so independent steps run in
+ * parallel on a small executor. Steps that are not needed to show the first
+ * page are deferred until the first frame has been drawn.
+ *
+ * The time every step waited and ran is recorded, so launch tests can
+ * report where start-up time goes.
+ */
+public class StartupScheduler {
+
+    private static final String LOGTAG = "StartupScheduler";
+    private static final boolean LOGD_ENABLED = Browser.LOGD_ENABLED;
+
+    // Step names
+    static final String STEP_SETTINGS = "settings";
+    static final String STEP_CRASH_STATE = "crash_state";
+    static final String STEP_ICON_DATABASE = "icon_database";
+    static final String STEP_PRELOGIN = "prelogin";
+    static final String STEP_FIRST_TAB = "first_tab";
+    static final String STEP_SEARCH_ENGINE = "search_engine";
+    static final String STEP_PRUNE_THUMBNAILS = "prune_thumbnails";
+    static final String STEP_GEOLOCATION_ORIGINS = "geolocation_origins";
+
+    /** The step only runs after the first frame is drawn */
+    public static final int FLAG_DEFERRED = 1;
+    /** The step runs on the UI thread */
+    public static final int FLAG_UI_THREAD = 1 << 1;
+
+    private static final int THREAD_COUNT = 2;
+    // Deferred steps start anyway if no frame is drawn by then, e.g. when
+    // the activity finishes right away
+    private static final long FIRST_PAINT_TIMEOUT = 5000;
+
+    /**
+     * When a step was added, started and finished, in uptime ms.
+     */
+    public static class Timing {
+        public final String name;
+        public final boolean deferred;
+        public final long added;
+        public final long started;
+        public final long finished;
+
+        Timing(String name, boolean deferred, long added, long started, long finished) {
+            this.name = name;
+            this.deferred = deferred;
+            this.added = added;
+            this.started = started;
+            this.finished = finished;
+        }
+
+        public long getWaitTime() {
+            return started - added;
+        }
+
+        public long getRunTime() {
+            return finished - started;
+        }
+
+        @Override
+        public String toString() {
+            return name + (deferred ? " (deferred)" : "") + ": waited " + getWaitTime()
+                    + "ms, ran " + getRunTime() + "ms";
+        }
+    }
+
+    private class Step implements Runnable {
+        final String name;
+        final Runnable runnable;
+        final int flags;
+        final String[] dependencies;
+        final long added = SystemClock.uptimeMillis();
+        long started;
+
+        Step(String name, Runnable runnable, int flags, String[] dependencies) {
+            this.name = name;
+            this.runnable = runnable;
+            this.flags = flags;
+            this.dependencies = dependencies;
+        }
+
+        @Override
+        public void run() {
+            if ((flags & FLAG_UI_THREAD) == 0) {
+                // Steps the first frame waits on compete with the UI thread
+                // as equals, deferred ones yield to it
+                Process.setThreadPriority((flags & FLAG_DEFERRED) != 0
+                        ? Process.THREAD_PRIORITY_BACKGROUND
+                        : Process.THREAD_PRIORITY_DEFAULT);
+            }
+            started = SystemClock.uptimeMillis();
+            try {
+                runnable.run();
+            } finally {
+                onStepFinished(this);
+            }
+        }
+    }
+
+    private static StartupScheduler sInstance;
+
+    private final ExecutorService mExecutor;
+    private final Handler mUiHandler;
+    private final long mCreated = SystemClock.uptimeMillis();
+    // Guarded by this
+    private final ArrayList<Step> mPending = new ArrayList<Step>();
+    private final HashSet<String> mFinished = new HashSet<String>();
+    private final ArrayList<Timing> mTimings = new ArrayList<Timing>();
+    private int mRunning = 0;
+    private boolean mFirstPaint = false;
+
+    public static synchronized StartupScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new StartupScheduler();
+        }
+        return sInstance;
+    }
+
+    StartupScheduler() {
+        mExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                // Each step sets the priority it runs at
+                return new Thread(r, "StartupScheduler");
+            }
+        });
+        mUiHandler = new Handler(Looper.getMainLooper());
+        mUiHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                onFirstPaint();
+            }
+        }, FIRST_PAINT_TIMEOUT);
+    }
+
+    /**
+     * Adds a step, which runs once the given steps have finished. Steps may
+     * be added at any time; a dependency that is never added blocks the step.
+     */
+    public void add(String name, Runnable runnable, int flags, String... dependencies) {
+        Step step = new Step(name, runnable, flags, dependencies);
+        synchronized (this) {
+            mPending.add(step);
+            mRunning++;
+        }
+        dispatchReadySteps();
+    }
+
+    /**
+     * Records a step that was run and timed by the caller, such as one that
+     * completes through a callback.
+     */
+    public void record(String name, long started, long finished) {
+        synchronized (this) {
+            mTimings.add(new Timing(name, false, started, started, finished));
+            mFinished.add(name);
+        }
+        dispatchReadySteps();
+    }
+
+    /**
+     * Called when the first frame has been drawn, releasing the deferred
+     * steps.
+     */
+    public void onFirstPaint() {
+        synchronized (this) {
+            if (mFirstPaint) {
+                return;
+            }
+            mFirstPaint = true;
+            if (LOGD_ENABLED) {
+                Log.d(LOGTAG, "First paint " + (SystemClock.uptimeMillis() - mCreated)
+                        + "ms after start-up");
+            }
+        }
+        dispatchReadySteps();
+    }
+
+    public synchronized boolean isFinished(String name) {
+        return mFinished.contains(name);
+    }
+
+    /**
+     * Returns the timings of the finished steps, in the order they finished.
+     */
+    public synchronized List<Timing> getTimings() {
+        return Collections.unmodifiableList(new ArrayList<Timing>(mTimings));
+    }
+
+    /**
+     * Waits until every added step has finished, must not be called on the
+     * UI thread if any step runs there.
+     * @return false if the timeout expired first
+     */
+    public synchronized boolean awaitIdle(long timeoutMs) {
+        long end = SystemClock.uptimeMillis() + timeoutMs;
+        while (mRunning > 0) {
+            long remaining = end - SystemClock.uptimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void dispatchReadySteps() {
+        ArrayList<Step> ready = new ArrayList<Step>();
+        synchronized (this) {
+            for (int i = 0; i < mPending.size(); i++) {
+                Step step = mPending.get(i);
+                if (isReady(step)) {
+                    ready.add(step);
+                    mPending.remove(i--);
+                }
+            }
+        }
+        for (Step step : ready) {
+            if ((step.flags & FLAG_UI_THREAD) != 0) {
+                mUiHandler.post(step);
+            } else {
+                mExecutor.execute(step);
+            }
+        }
+    }
+
+    // Must hold the lock
+    private boolean isReady(Step step) {
+        if ((step.flags & FLAG_DEFERRED) != 0 && !mFirstPaint) {
+            return false;
+        }
+        for (String dependency : step.dependencies) {
+            if (!mFinished.contains(dependency)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void onStepFinished(Step step) {
+        Timing timing = new Timing(step.name, (step.flags & FLAG_DEFERRED) != 0,
+                step.added, step.started, SystemClock.uptimeMillis());
+        if (LOGD_ENABLED) {
+            Log.d(LOGTAG, timing.toString());
+        }
+        synchronized (this) {
+            mTimings.add(timing);
+            mFinished.add(step.name);
+            mRunning--;
+            notifyAll();
+        }
+        dispatchReadySteps();
+    }
+}
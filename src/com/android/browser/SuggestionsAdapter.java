@@ -56,9 +56,15 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             OmniboxSuggestions._ID,
             OmniboxSuggestions.TITLE,
             OmniboxSuggestions.URL,
-            OmniboxSuggestions.IS_BOOKMARK
+            OmniboxSuggestions.IS_BOOKMARK,
+            OmniboxSuggestions.VISITS,
+            OmniboxSuggestions.DATE_LAST_VISITED,
+            OmniboxSuggestions.USER_ENTERED
             };
 
+    // Candidates fetched, by stored score, for FrecencyRanker to re-rank
+    private static final int COMBINED_CANDIDATES = 50;
+
     private static final String COMBINED_SELECTION =
             "(url LIKE ? OR url LIKE ? OR url LIKE ? OR url LIKE ? OR title LIKE ?)";
 
@@ -411,28 +417,44 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
     }
 
     /**
-     * combined bookmark & history source
+     * combined bookmark & history source, ranked by frecency
      */
     class CombinedCursor extends CursorSource {
 
+        private List<FrecencyRanker.Candidate> mRanked;
+        private int mPosition;
+
         @Override
         public SuggestItem getItem() {
-            if ((mCursor != null) && (!mCursor.isAfterLast())) {
-                String title = mCursor.getString(1);
-                String url = mCursor.getString(2);
-                boolean isBookmark = (mCursor.getInt(3) == 1);
-                return new SuggestItem(getTitle(title, url), getUrl(title, url),
-                        isBookmark ? TYPE_BOOKMARK : TYPE_HISTORY);
+            if (mRanked != null && mPosition < mRanked.size()) {
+                FrecencyRanker.Candidate c = mRanked.get(mPosition);
+                return new SuggestItem(getTitle(c.title, c.url), getUrl(c.title, c.url),
+                        c.bookmark ? TYPE_BOOKMARK : TYPE_HISTORY);
             }
             return null;
         }
 
+        @Override
+        boolean moveToNext() {
+            mPosition++;
+            return mRanked != null && mPosition < mRanked.size();
+        }
+
+        @Override
+        public int getCount() {
+            return (mRanked != null) ? mRanked.size() : 0;
+        }
+
+        @Override
+        public void close() {
+            mRanked = null;
+        }
+
         @Override
         public void runQuery(CharSequence constraint) {
             // constraint != null
-            if (mCursor != null) {
-                mCursor.close();
-            }
+            mRanked = null;
+            mPosition = 0;
             String like = constraint + "%";
             String[] args = null;
             String selection = null;
@@ -450,15 +472,30 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
                 args[4] = like;
                 selection = COMBINED_SELECTION;
             }
+            // The stored score follows FrecencyRanker's model but was
+            // computed when the row was written, so the best few by it are
+            // re-ranked as of now
             Uri.Builder ub = OmniboxSuggestions.CONTENT_URI.buildUpon();
             ub.appendQueryParameter(BrowserContract.PARAM_LIMIT,
-                    Integer.toString(Math.max(mLinesLandscape, mLinesPortrait)));
-            mCursor =
-                    mContext.getContentResolver().query(ub.build(), COMBINED_PROJECTION,
-                            selection, (constraint != null) ? args : null, null);
-            if (mCursor != null) {
-                mCursor.moveToFirst();
+                    Integer.toString(COMBINED_CANDIDATES));
+            Cursor c = mContext.getContentResolver().query(ub.build(), COMBINED_PROJECTION,
+                    selection, (constraint != null) ? args : null, null);
+            if (c == null) {
+                return;
+            }
+            List<FrecencyRanker.Candidate> candidates =
+                    new ArrayList<FrecencyRanker.Candidate>(c.getCount());
+            try {
+                while (c.moveToNext()) {
+                    candidates.add(new FrecencyRanker.Candidate(c.getString(2),
+                            c.getString(1), c.getInt(3) == 1, c.getInt(4), c.getLong(5),
+                            c.getInt(6) != 0));
+                }
+            } finally {
+                c.close();
             }
+            mRanked = new FrecencyRanker(System.currentTimeMillis()).topK(candidates,
+                    Math.max(mLinesLandscape, mLinesPortrait));
         }
 
         /**
@@ -18,7 +18,6 @@ package com.android.browser;
 
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -103,6 +102,14 @@ class Tab implements PictureListener {
 
     private static final int MSG_CAPTURE = 42;
     private static final int CAPTURE_DELAY = 100;
+    // Captures are deferred while a page loads or scrolls, as the thumbnail
+    // would be stale by the time it is shown
+    private static final int CAPTURE_DELAY_LOADING = 1000;
+    private static final int CAPTURE_SCROLL_IDLE = 300;
+    // The interval between captures grows with what a capture costs, so a
+    // heavy page spends at most 1/CAPTURE_COST_FACTOR of the UI thread on it
+    private static final int CAPTURE_COST_FACTOR = 10;
+    private static final long CAPTURE_STATS_INTERVAL = 60 * 1000;
     private static final int INITIAL_PROGRESS = 5;
 
     private static Bitmap sDefaultFavicon;
@@ -162,6 +169,9 @@ class Tab implements PictureListener {
     // If true, the tab is in page loading state (after onPageStarted,
     // before onPageFinsihed)
     private boolean mInPageLoad;
+    // If true, the tab is showing fullscreen media or capturing audio/video
+    private boolean mShowingCustomView;
+    private boolean mCapturingMedia;
     private boolean mDisableOverrideUrlLoading;
     // If true, the current page is the most visited page
     private boolean mInMostVisitedPage;
@@ -193,7 +203,24 @@ class Tab implements PictureListener {
     private BrowserSettings mSettings;
     private int mCaptureWidth;
     private int mCaptureHeight;
-    private Bitmap mCapture;
+    // The capture is double buffered: the UI thread renders into the back
+    // buffer and then swaps it with the front one, which is what readers see.
+    // mCaptureLock only guards the swap, never the drawing or the copying.
+    private final Object mCaptureLock = new Object();
+    private volatile Bitmap mCapture;
+    private Bitmap mCaptureBack;
+    // The front buffer being read off the UI thread, which must not become
+    // the render target until it is released
+    private Bitmap mCapturePinned;
+    private Canvas mCaptureCanvas;
+    private long mLastCaptureTime;
+    private long mLastCaptureCost;
+
+    // UI thread time spent capturing, shared by every tab
+    private static long sCaptureStatsStart;
+    private static long sCaptureTimeMs;
+    private static int sCaptureCount;
+    private static int sCaptureSkipped;
     private Handler mHandler;
     private boolean mUpdateThumbnail;
 
@@ -345,6 +372,10 @@ class Tab implements PictureListener {
         @Override
         public void onPageStarted(WebView view, String url, Bitmap favicon) {
             mInPageLoad = true;
+            mCapturingMedia = false;
+            if (view instanceof BrowserWebView) {
+                ((BrowserWebView) view).clearFormInteraction();
+            }
             mUpdateThumbnail = true;
             mPageLoadProgress = INITIAL_PROGRESS;
             mCurrentState = new PageState(mContext,
@@ -838,7 +869,6 @@ class Tab implements PictureListener {
         @Override
         public void onReceivedTouchIconUrl(WebView view, String url,
                 boolean precomposed) {
-            final ContentResolver cr = mContext.getContentResolver();
             // Let precomposed icons take precedence over non-composed
             // icons.
             if (precomposed && mTouchIconLoader != null) {
@@ -847,7 +877,7 @@ class Tab implements PictureListener {
             }
             // Have only one async task at a time.
             if (mTouchIconLoader == null) {
-                mTouchIconLoader = new DownloadTouchIcon(Tab.this, cr, view);
+                mTouchIconLoader = new DownloadTouchIcon(Tab.this, mContext, view);
                 mTouchIconLoader.execute(url);
             }
         }
@@ -864,12 +894,16 @@ class Tab implements PictureListener {
         @Override
         public void onShowCustomView(View view, int requestedOrientation,
                 WebChromeClient.CustomViewCallback callback) {
-            if (mInForeground) mWebViewController.showCustomView(Tab.this, view,
-                    requestedOrientation, callback);
+            if (mInForeground) {
+                mShowingCustomView = true;
+                mWebViewController.showCustomView(Tab.this, view,
+                        requestedOrientation, callback);
+            }
         }
 
         @Override
         public void onHideCustomView() {
+            mShowingCustomView = false;
             if (mInForeground) mWebViewController.hideCustomView();
         }
 
@@ -941,6 +975,12 @@ class Tab implements PictureListener {
         @Override
         public void onPermissionRequest(PermissionRequest request) {
             if (!mInForeground) return;
+            for (String resource : request.getResources()) {
+                if (PermissionRequest.RESOURCE_AUDIO_CAPTURE.equals(resource)
+                        || PermissionRequest.RESOURCE_VIDEO_CAPTURE.equals(resource)) {
+                    mCapturingMedia = true;
+                }
+            }
             getPermissionsPrompt().show(request);
         }
 
@@ -1209,7 +1249,10 @@ class Tab implements PictureListener {
             public void handleMessage(Message m) {
                 switch (m.what) {
                 case MSG_CAPTURE:
-                    capture();
+                    long wait = captureWhenIdle();
+                    if (wait > 0) {
+                        sendEmptyMessageDelayed(MSG_CAPTURE, wait);
+                    }
                     break;
                 }
             }
@@ -1231,19 +1274,23 @@ class Tab implements PictureListener {
 
     public void updateShouldCaptureThumbnails() {
         if (mWebViewController.shouldCaptureThumbnails()) {
-            synchronized (Tab.this) {
+            synchronized (mCaptureLock) {
                 if (mCapture == null) {
-                    mCapture = Bitmap.createBitmap(mCaptureWidth, mCaptureHeight,
+                    Bitmap front = Bitmap.createBitmap(mCaptureWidth, mCaptureHeight,
                             Bitmap.Config.RGB_565);
-                    mCapture.eraseColor(Color.WHITE);
+                    front.eraseColor(Color.WHITE);
+                    mCaptureBack = Bitmap.createBitmap(mCaptureWidth, mCaptureHeight,
+                            Bitmap.Config.RGB_565);
+                    mCapture = front;
                     if (mInForeground) {
                         postCapture();
                     }
                 }
             }
         } else {
-            synchronized (Tab.this) {
+            synchronized (mCaptureLock) {
                 mCapture = null;
+                mCaptureBack = null;
                 deleteThumbnail();
             }
         }
@@ -1332,6 +1379,20 @@ class Tab implements PictureListener {
         }
     }
 
+    /**
+     * Detach the tab's main WebView without destroying it, so it can be
+     * handed back to the WebView pool. The subWindow, if any, is destroyed.
+     * @return The detached WebView or null if the tab had none.
+     */
+    WebView releaseWebView() {
+        WebView webView = mMainView;
+        if (webView != null) {
+            dismissSubWindow();
+            setWebView(null);
+        }
+        return webView;
+    }
+
     /**
      * Remove the tab from the parent
      */
@@ -1659,6 +1720,21 @@ class Tab implements PictureListener {
         return getDefaultFavicon(mContext);
     }
 
+    boolean hasFavicon() {
+        return mCurrentState.mFavicon != null;
+    }
+
+    /**
+     * Shows the favicon stored for the url until the page provides one,
+     * unless the tab has moved on to another url meanwhile.
+     */
+    void setStoredFavicon(String url, Bitmap favicon) {
+        if (mCurrentState.mFavicon == null && TextUtils.equals(url, getUrl())) {
+            mCurrentState.mFavicon = favicon;
+            mWebViewController.onFavicon(this, mMainView, favicon);
+        }
+    }
+
     public boolean isBookmarkedSite() {
         return mCurrentState.mIsBookmarkedSite;
     }
@@ -1720,6 +1796,23 @@ class Tab implements PictureListener {
         return mInPageLoad;
     }
 
+    /**
+     * @return True if the tab is playing fullscreen media or has asked to
+     *         capture audio or video since the page started loading.
+     */
+    boolean hasActiveMedia() {
+        return mShowingCustomView || mCapturingMedia;
+    }
+
+    /**
+     * @return True if the user has focused an editable field on the current
+     *         page, meaning a reload could lose what they typed.
+     */
+    boolean hasFormInteraction() {
+        return (mMainView instanceof BrowserWebView)
+                && ((BrowserWebView) mMainView).hasFormInteraction();
+    }
+
     /**
      * @return The Bundle with the tab's state if it can be saved, otherwise null
      */
@@ -1777,10 +1870,8 @@ class Tab implements PictureListener {
         boolean incognito = b.getBoolean(INCOGNITO);
         mCurrentState = new PageState(mContext, incognito, url, null);
         mCurrentState.mTitle = title;
-        synchronized (Tab.this) {
-            if (mCapture != null) {
-                DataController.getInstance(mContext).loadThumbnail(this);
-            }
+        if (mCapture != null) {
+            DataController.getInstance(mContext).loadThumbnail(this);
         }
     }
 
@@ -1810,8 +1901,24 @@ class Tab implements PictureListener {
     };
 
     public Bitmap getScreenshot() {
-        synchronized (Tab.this) {
-            return mCapture;
+        return mCapture;
+    }
+
+    /**
+     * Returns the current capture and keeps the UI thread from drawing into
+     * it until {@link #releaseCapture()} is called, so it can be read off the
+     * UI thread without holding any lock.
+     */
+    Bitmap acquireCapture() {
+        synchronized (mCaptureLock) {
+            mCapturePinned = mCapture;
+            return mCapturePinned;
+        }
+    }
+
+    void releaseCapture() {
+        synchronized (mCaptureLock) {
+            mCapturePinned = null;
         }
     }
 
@@ -1887,7 +1994,22 @@ class Tab implements PictureListener {
         if (mMainView.getContentWidth() <= 0 || mMainView.getContentHeight() <= 0) {
             return;
         }
-        Canvas c = new Canvas(mCapture);
+        Bitmap target;
+        synchronized (mCaptureLock) {
+            target = mCaptureBack != mCapturePinned ? mCaptureBack : null;
+        }
+        if (target == null) {
+            // The back buffer is still being read, try again later
+            sCaptureSkipped++;
+            postCapture();
+            return;
+        }
+        final long start = SystemClock.uptimeMillis();
+        if (mCaptureCanvas == null) {
+            mCaptureCanvas = new Canvas();
+        }
+        Canvas c = mCaptureCanvas;
+        c.setBitmap(target);
         final int left = mMainView.getScrollX();
         final int top = mMainView.getScrollY() + mMainView.getVisibleTitleHeight();
         int state = c.save();
@@ -1901,13 +2023,21 @@ class Tab implements PictureListener {
         }
         c.restoreToCount(state);
         // manually anti-alias the edges for the tilt
-        c.drawRect(0, 0, 1, mCapture.getHeight(), sAlphaPaint);
-        c.drawRect(mCapture.getWidth() - 1, 0, mCapture.getWidth(),
-                mCapture.getHeight(), sAlphaPaint);
-        c.drawRect(0, 0, mCapture.getWidth(), 1, sAlphaPaint);
-        c.drawRect(0, mCapture.getHeight() - 1, mCapture.getWidth(),
-                mCapture.getHeight(), sAlphaPaint);
+        c.drawRect(0, 0, 1, target.getHeight(), sAlphaPaint);
+        c.drawRect(target.getWidth() - 1, 0, target.getWidth(),
+                target.getHeight(), sAlphaPaint);
+        c.drawRect(0, 0, target.getWidth(), 1, sAlphaPaint);
+        c.drawRect(0, target.getHeight() - 1, target.getWidth(),
+                target.getHeight(), sAlphaPaint);
         c.setBitmap(null);
+        synchronized (mCaptureLock) {
+            if (mCaptureBack != target) {
+                // Thumbnails were turned off while drawing
+                return;
+            }
+            mCaptureBack = mCapture;
+            mCapture = target;
+        }
         mHandler.removeMessages(MSG_CAPTURE);
         persistThumbnail();
         TabControl tc = mWebViewController.getTabControl();
@@ -1918,10 +2048,64 @@ class Tab implements PictureListener {
                 updateListener.onThumbnailUpdated(this);
             }
         }
+        mLastCaptureTime = SystemClock.uptimeMillis();
+        mLastCaptureCost = mLastCaptureTime - start;
+        updateCaptureStats(mLastCaptureTime, mLastCaptureCost);
+        Performance.addTabPageCost(mId, PageLoadTracer.COST_THUMBNAIL, mLastCaptureCost);
+    }
+
+    private static void updateCaptureStats(long now, long cost) {
+        if (sCaptureStatsStart == 0) {
+            sCaptureStatsStart = now;
+        }
+        sCaptureTimeMs += cost;
+        sCaptureCount++;
+        if (now - sCaptureStatsStart >= CAPTURE_STATS_INTERVAL) {
+            if (LOGD_ENABLED) {
+                Log.d(LOGTAG, "Thumbnail capture: " + sCaptureCount + " captures, "
+                        + sCaptureSkipped + " skipped, "
+                        + (sCaptureTimeMs * CAPTURE_STATS_INTERVAL
+                                / (now - sCaptureStatsStart))
+                        + " UI thread ms per minute");
+            }
+            sCaptureStatsStart = now;
+            sCaptureTimeMs = 0;
+            sCaptureCount = 0;
+            sCaptureSkipped = 0;
+        }
+    }
+
+    // Called when a scheduled capture is due: captures now, or returns how
+    // long to wait before trying again
+    private long captureWhenIdle() {
+        if (!mInForeground) {
+            // Only the foreground tab changes; background tabs keep the
+            // capture taken when they were put in the background
+            sCaptureSkipped++;
+            return 0;
+        }
+        long now = SystemClock.uptimeMillis();
+        long wait = 0;
+        if (mInPageLoad) {
+            wait = CAPTURE_DELAY_LOADING;
+        }
+        if (mMainView instanceof BrowserWebView) {
+            long sinceScroll = now - ((BrowserWebView) mMainView).getLastScrollTime();
+            wait = Math.max(wait, CAPTURE_SCROLL_IDLE - sinceScroll);
+        }
+        wait = Math.max(wait,
+                mLastCaptureTime + mLastCaptureCost * CAPTURE_COST_FACTOR - now);
+        if (wait > 0) {
+            sCaptureSkipped++;
+            return wait;
+        }
+        capture();
+        return 0;
     }
 
     @Override
     public void onNewPicture(WebView view, Picture picture) {
+        Performance.onTabPageEvent(mId, PageLoadTracer.EVENT_FIRST_PICTURE);
         postCapture();
     }
 
@@ -1971,19 +2155,21 @@ class Tab implements PictureListener {
     }
 
     void updateCaptureFromBlob(byte[] blob) {
-        synchronized (Tab.this) {
-            if (mCapture == null) {
-                return;
-            }
-            ByteBuffer buffer = ByteBuffer.wrap(blob);
-            try {
-                mCapture.copyPixelsFromBuffer(buffer);
-            } catch (RuntimeException rex) {
-                Log.e(LOGTAG, "Load capture has mismatched sizes; buffer: "
-                        + buffer.capacity() + " blob: " + blob.length
-                        + "capture: " + mCapture.getByteCount());
-                throw rex;
-            }
+        Bitmap capture = acquireCapture();
+        if (capture == null) {
+            releaseCapture();
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(blob);
+        try {
+            capture.copyPixelsFromBuffer(buffer);
+        } catch (RuntimeException rex) {
+            Log.e(LOGTAG, "Load capture has mismatched sizes; buffer: "
+                    + buffer.capacity() + " blob: " + blob.length
+                    + "capture: " + capture.getByteCount());
+            throw rex;
+        } finally {
+            releaseCapture();
         }
     }
 
@@ -17,13 +17,14 @@
 package com.android.browser;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.webkit.WebView;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Vector;
 
 class TabControl {
     // Log Tag
@@ -52,6 +53,13 @@ class TabControl {
 
     private OnThumbnailUpdatedListener mOnThumbnailUpdatedListener;
 
+    // Chooses which background tab to free under memory pressure
+    private final TabEvictionPolicy mEvictionPolicy = new TabEvictionPolicy();
+    // Used to evict tabs one per message so the UI thread isn't blocked
+    private final Handler mHandler = new Handler();
+    // Estimated bytes the background tabs may keep, or -1 if not evicting
+    private long mEvictionBudget = -1;
+
     /**
      * Construct a new TabControl object
      */
@@ -251,13 +259,20 @@ class TabControl {
             mCurrentTab = getTabPosition(current);
         }
 
-        // destroy the tab
-        t.destroy();
+        // destroy the tab, giving an unused WebView back to the pool
+        WebViewFactory factory = mController.getWebViewFactory();
+        if (factory instanceof WebViewPool && t.getWebView() != null
+                && ((WebViewPool) factory).canRecycle(t.getWebView())) {
+            ((WebViewPool) factory).recycle(t.releaseWebView());
+        } else {
+            t.destroy();
+        }
         // clear it's references to parent and children
         t.removeFromTree();
 
         // Remove it from the queue of viewed tabs.
         mTabQueue.remove(t);
+        mEvictionPolicy.onRemoved(t);
         return true;
     }
 
@@ -265,6 +280,8 @@ class TabControl {
      * Destroy all the tabs and subwindows
      */
     void destroy() {
+        mHandler.removeCallbacks(mEvictNextTab);
+        mEvictionBudget = -1;
         for (Tab t : mTabs) {
             t.destroy();
         }
@@ -445,22 +462,26 @@ class TabControl {
     }
 
     /**
-     * Free the memory in this order, 1) free the background tabs; 2) free the
-     * WebView cache;
+     * Free the memory in this order, 1) free half of the background tabs'
+     * estimated memory, chosen by the eviction policy; 2) free the WebView
+     * cache;
      */
     void freeMemory() {
         if (getTabCount() == 0) return;
 
-        // free the least frequently used background tabs
-        Vector<Tab> tabs = getHalfLeastUsedTabs(getCurrentTab());
-        if (tabs.size() > 0) {
-            Log.w(LOGTAG, "Free " + tabs.size() + " tabs in the browser");
-            for (Tab t : tabs) {
-                // store the WebView's state.
-                t.saveState();
-                // destroy the tab
-                t.destroy();
+        Tab current = getCurrentTab();
+        long budget = TabEvictionPolicy.backgroundBytes(mTabs, current) / 2;
+        int freed = 0;
+        while (TabEvictionPolicy.backgroundBytes(mTabs, current) > budget) {
+            Tab victim = mEvictionPolicy.pickVictim(mTabs, mTabQueue, current);
+            if (victim == null) {
+                break;
             }
+            evictTab(victim);
+            freed++;
+        }
+        if (freed > 0) {
+            Log.w(LOGTAG, "Free " + freed + " tabs in the browser");
             return;
         }
 
@@ -472,38 +493,58 @@ class TabControl {
         }
     }
 
-    private Vector<Tab> getHalfLeastUsedTabs(Tab current) {
-        Vector<Tab> tabsToGo = new Vector<Tab>();
-
-        // Don't do anything if we only have 1 tab or if the current tab is
-        // null.
-        if (getTabCount() == 1 || current == null) {
-            return tabsToGo;
+    /**
+     * Reacts to onTrimMemory by evicting background tabs, one at a time,
+     * until their estimated memory fits the budget for the given level.
+     */
+    void onTrimMemory(int level) {
+        float retain = TabEvictionPolicy.retainFractionForLevel(level);
+        if (retain >= 1f || getTabCount() <= 1) {
+            return;
         }
-
-        if (mTabQueue.size() == 0) {
-            return tabsToGo;
+        long budget = (long) (TabEvictionPolicy.backgroundBytes(
+                mTabs, getCurrentTab()) * retain);
+        // Keep the tighter budget if several levels arrive before we catch up
+        if (mEvictionBudget < 0 || budget < mEvictionBudget) {
+            mEvictionBudget = budget;
         }
+        mHandler.removeCallbacks(mEvictNextTab);
+        mHandler.post(mEvictNextTab);
+    }
 
-        // Rip through the queue starting at the beginning and tear down half of
-        // available tabs which are not the current tab or the parent of the
-        // current tab.
-        int openTabCount = 0;
-        for (Tab t : mTabQueue) {
-            if (t != null && t.getWebView() != null) {
-                openTabCount++;
-                if (t != current && t != current.getParent()) {
-                    tabsToGo.add(t);
-                }
+    private final Runnable mEvictNextTab = new Runnable() {
+        @Override
+        public void run() {
+            if (mEvictionBudget < 0) {
+                return;
             }
+            Tab current = getCurrentTab();
+            Tab victim = null;
+            if (TabEvictionPolicy.backgroundBytes(mTabs, current) > mEvictionBudget) {
+                victim = mEvictionPolicy.pickVictim(mTabs, mTabQueue, current);
+            }
+            if (victim == null) {
+                mEvictionBudget = -1;
+                return;
+            }
+            evictTab(victim);
+            mHandler.post(this);
         }
+    };
 
-        openTabCount /= 2;
-        if (tabsToGo.size() > openTabCount) {
-            tabsToGo.setSize(openTabCount);
-        }
-
-        return tabsToGo;
+    /**
+     * Saves the tab's state and thumbnail and destroys its WebView. The tab
+     * stays in the list and is restored from the saved state when shown.
+     */
+    private void evictTab(Tab t) {
+        long bytes = TabEvictionPolicy.estimateMemory(t);
+        // store the WebView's state.
+        t.saveState();
+        // keep the thumbnail for the tab switcher
+        t.persistThumbnail();
+        // destroy the tab
+        t.destroy();
+        mEvictionPolicy.onEvicted(t, bytes);
     }
 
     Tab getLeastUsedTab(Tab current) {
@@ -666,9 +707,11 @@ class TabControl {
         WebView mainView = newTab.getWebView();
         boolean needRestore = mainView == null;
         if (needRestore) {
+            long start = SystemClock.uptimeMillis();
             // Same work as in createNewTab() except don't do new Tab()
             mainView = createNewWebView();
             newTab.setWebView(mainView);
+            mEvictionPolicy.onRestored(newTab, SystemClock.uptimeMillis() - start);
         }
         newTab.putInForeground();
         return true;
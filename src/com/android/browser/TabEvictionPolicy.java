@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+import android.webkit.WebView;
+
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Decides which background tab to tear down when the system asks the browser
+ * to trim its memory. Tabs are scored on how recently they were viewed, how
+ * much memory they are likely to hold and how much the user would lose if
+ * they had to be reloaded; the highest score is evicted first.
+ */
+class TabEvictionPolicy {
+
+    private static final String LOGTAG = "TabEvictionPolicy";
+
+    // Rough cost of a WebView before any content is rendered
+    private static final long BASE_WEBVIEW_BYTES = 8 * 1024 * 1024;
+    // Pages taller than this many screens don't keep more tiles around
+    private static final float MAX_SCREENS = 4f;
+
+    // Score weights. Higher scores are evicted first.
+    private static final float WEIGHT_RECENCY = 1.0f;
+    private static final float WEIGHT_MEMORY = 0.5f;
+    private static final float PENALTY_LOADING = 1.0f;
+    private static final float PENALTY_FORMS = 0.75f;
+    private static final float PENALTY_CHILD_OF_CURRENT = 0.25f;
+    // Recency for tabs that were opened in the background and never viewed
+    private static final float RECENCY_NEVER_VIEWED = 0.5f;
+
+    // Ids of tabs evicted by this policy, so restores can be attributed
+    private final HashSet<Long> mEvictedIds = new HashSet<Long>();
+    private int mEvictionCount;
+    private int mRestoreCount;
+    private long mTotalRestoreMs;
+    private long mMaxRestoreMs;
+    private long mBytesFreed;
+
+    /**
+     * Estimates how much memory the tab's WebView is holding. This is a
+     * heuristic based on the view size and how many screens of content the
+     * page has, since the WebView doesn't report its real footprint.
+     */
+    static long estimateMemory(Tab t) {
+        WebView w = t.getWebView();
+        if (w == null) {
+            return 0;
+        }
+        long screenBytes = (long) w.getWidth() * w.getHeight() * 4;
+        float screens = 1f;
+        if (w.getHeight() > 0) {
+            screens = w.getContentHeight() * w.getScale() / w.getHeight();
+            screens = Math.max(1f, Math.min(MAX_SCREENS, screens));
+        }
+        return BASE_WEBVIEW_BYTES + (long) (screenBytes * screens);
+    }
+
+    /**
+     * Returns the fraction of the background tabs' memory that may be kept
+     * for the given onTrimMemory level.
+     */
+    static float retainFractionForLevel(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Only the UI went away, nothing to free yet
+            return 1f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return 0.75f;
+        }
+        return 1f;
+    }
+
+    /**
+     * Returns true if the tab may be torn down at all.
+     */
+    static boolean isEvictable(Tab t, Tab current) {
+        if (t == null || t == current || t.getWebView() == null) {
+            return false;
+        }
+        if (current != null && t == current.getParent()) {
+            // The back button of the current tab leads here
+            return false;
+        }
+        // Tearing down a tab that plays media is visible to the user
+        return !t.hasActiveMedia();
+    }
+
+    /**
+     * Scores an evictable tab.
+     * @param queueIndex position in the most-recently-viewed queue, 0 being
+     *        the least recent, or -1 if the tab was never viewed
+     */
+    static float score(Tab t, Tab current, int queueIndex, int queueSize,
+            long bytes, long maxBytes) {
+        float recency;
+        if (queueIndex < 0 || queueSize == 0) {
+            recency = RECENCY_NEVER_VIEWED;
+        } else {
+            recency = 1f - (queueIndex / (float) queueSize);
+        }
+        float score = WEIGHT_RECENCY * recency;
+        if (maxBytes > 0) {
+            score += WEIGHT_MEMORY * (bytes / (float) maxBytes);
+        }
+        if (t.inPageLoad()) {
+            score -= PENALTY_LOADING;
+        }
+        if (t.hasFormInteraction()) {
+            score -= PENALTY_FORMS;
+        }
+        if (current != null && t.getParent() == current) {
+            score -= PENALTY_CHILD_OF_CURRENT;
+        }
+        return score;
+    }
+
+    /**
+     * Picks the next tab to evict, or null if no tab may be evicted.
+     */
+    Tab pickVictim(List<Tab> tabs, List<Tab> queue, Tab current) {
+        long maxBytes = 0;
+        for (Tab t : tabs) {
+            maxBytes = Math.max(maxBytes, estimateMemory(t));
+        }
+        Tab victim = null;
+        float best = -Float.MAX_VALUE;
+        for (Tab t : tabs) {
+            if (!isEvictable(t, current)) {
+                continue;
+            }
+            float s = score(t, current, queue.indexOf(t), queue.size(),
+                    estimateMemory(t), maxBytes);
+            if (s > best) {
+                best = s;
+                victim = t;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Sums the estimated memory of every tab other than the current one.
+     */
+    static long backgroundBytes(List<Tab> tabs, Tab current) {
+        long total = 0;
+        for (Tab t : tabs) {
+            if (t != current) {
+                total += estimateMemory(t);
+            }
+        }
+        return total;
+    }
+
+    void onEvicted(Tab t, long bytes) {
+        mEvictedIds.add(t.getId());
+        mEvictionCount++;
+        mBytesFreed += bytes;
+        Log.i(LOGTAG, "Evicted tab " + t.getId() + " (~" + (bytes / 1024) + "KB); "
+                + getStats());
+    }
+
+    void onRestored(Tab t, long elapsedMs) {
+        if (!mEvictedIds.remove(t.getId())) {
+            return;
+        }
+        mRestoreCount++;
+        mTotalRestoreMs += elapsedMs;
+        mMaxRestoreMs = Math.max(mMaxRestoreMs, elapsedMs);
+        Log.i(LOGTAG, "Restored tab " + t.getId() + " in " + elapsedMs + "ms; "
+                + getStats());
+    }
+
+    void onRemoved(Tab t) {
+        mEvictedIds.remove(t.getId());
+    }
+
+    String getStats() {
+        long avg = mRestoreCount > 0 ? mTotalRestoreMs / mRestoreCount : 0;
+        return "evictions=" + mEvictionCount
+                + " freed~" + (mBytesFreed / 1024) + "KB"
+                + " restores=" + mRestoreCount
+                + " restoreAvgMs=" + avg
+                + " restoreMaxMs=" + mMaxRestoreMs;
+    }
+}
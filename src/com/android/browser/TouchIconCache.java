@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A disk cache of touch icons keyed by icon URL and user agent, as a site
+ * may serve different icons to the mobile and desktop user agents. Each
+ * entry keeps the ETag
+ * and Last-Modified validators the server sent, so a cached icon is served
+ * without a network round trip and revalidated in the background with a
+ * conditional request once it is older than the revalidation interval.
+ *
+ * Concurrent requests for the same icon share one download. The blocking
+ * methods must not be called on the UI thread.
+ */
+class TouchIconCache {
+
+    private static final String LOGTAG = "TouchIconCache";
+    private static final String CACHE_DIR = "touch_icons";
+    // Entry file format version, bump when the header changes
+    private static final int FORMAT_VERSION = 2;
+
+    // Cached icons are revalidated when served after this long
+    static final long REVALIDATE_INTERVAL = 24 * 60 * 60 * 1000;
+    private static final long MAX_CACHE_BYTES = 2 * 1024 * 1024;
+    private static final int MAX_ICON_BYTES = 512 * 1024;
+    private static final int TIMEOUT_MS = 15 * 1000;
+
+    /**
+     * A cached icon and its validators.
+     */
+    static class Entry {
+        final byte[] data;
+        final String etag;
+        final String lastModified;
+        /** Wall clock time the icon was last fetched or revalidated */
+        final long validated;
+
+        Entry(byte[] data, String etag, String lastModified, long validated) {
+            this.data = data;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.validated = validated;
+        }
+    }
+
+    private static TouchIconCache sInstance;
+
+    private final File mDir;
+    private final Executor mExecutor;
+    private final long mRevalidateInterval;
+    // Downloads in progress by cache key, guarded by itself
+    private final HashMap<String, FutureTask<Entry>> mInFlight =
+            new HashMap<String, FutureTask<Entry>>();
+    // Network requests made and served from the cache, for testing
+    private int mRequests;
+    private int mHits;
+
+    static synchronized TouchIconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TouchIconCache(
+                    new File(context.getApplicationContext().getCacheDir(), CACHE_DIR),
+                    new Executor() {
+                        @Override
+                        public void execute(Runnable command) {
+                            BackgroundHandler.execute(command);
+                        }
+                    }, REVALIDATE_INTERVAL);
+        }
+        return sInstance;
+    }
+
+    TouchIconCache(File dir, Executor executor, long revalidateInterval) {
+        mDir = dir;
+        mExecutor = executor;
+        mRevalidateInterval = revalidateInterval;
+    }
+
+    /**
+     * Returns the icon at the URL, from the cache if it has it, or null if
+     * it could not be fetched.
+     * @param userAgent sent with the request, may be null. Icons fetched
+     *     with different user agents are cached separately.
+     */
+    byte[] get(String url, String userAgent) {
+        String key = cacheKey(url, userAgent);
+        Entry entry = read(key);
+        if (entry != null) {
+            synchronized (this) {
+                mHits++;
+            }
+            if (System.currentTimeMillis() - entry.validated >= mRevalidateInterval) {
+                revalidateAsync(url, userAgent, key, entry);
+            }
+            return entry.data;
+        }
+        entry = fetch(url, userAgent, key, null);
+        return entry != null ? entry.data : null;
+    }
+
+    synchronized int getRequestCount() {
+        return mRequests;
+    }
+
+    synchronized int getHitCount() {
+        return mHits;
+    }
+
+    // The URL and user agent, which both decide what icon is served
+    private static String cacheKey(String url, String userAgent) {
+        return url + "\n" + (userAgent != null ? userAgent : "");
+    }
+
+    private void revalidateAsync(final String url, final String userAgent,
+            final String key, final Entry cached) {
+        synchronized (mInFlight) {
+            if (mInFlight.containsKey(key)) {
+                return;
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                fetch(url, userAgent, key, cached);
+            }
+        });
+    }
+
+    // Downloads the icon, or joins the download already in progress
+    private Entry fetch(final String url, final String userAgent, final String key,
+            final Entry cached) {
+        FutureTask<Entry> task;
+        boolean owner = false;
+        synchronized (mInFlight) {
+            task = mInFlight.get(key);
+            if (task == null) {
+                task = new FutureTask<Entry>(new Callable<Entry>() {
+                    @Override
+                    public Entry call() {
+                        return download(url, userAgent, key, cached);
+                    }
+                });
+                mInFlight.put(key, task);
+                owner = true;
+            }
+        }
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (mInFlight) {
+                    mInFlight.remove(key);
+                }
+            }
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            return null;
+        } catch (ExecutionException e) {
+            Log.w(LOGTAG, "Failed to fetch " + url, e.getCause());
+            return null;
+        }
+    }
+
+    private Entry download(String url, String userAgent, String key, Entry cached) {
+        synchronized (this) {
+            mRequests++;
+        }
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            if (userAgent != null) {
+                connection.addRequestProperty("User-Agent", userAgent);
+            }
+            if (cached != null) {
+                if (cached.etag != null) {
+                    connection.addRequestProperty("If-None-Match", cached.etag);
+                }
+                if (cached.lastModified != null) {
+                    connection.addRequestProperty("If-Modified-Since", cached.lastModified);
+                }
+            }
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                Entry entry = new Entry(cached.data, cached.etag, cached.lastModified,
+                        System.currentTimeMillis());
+                write(key, entry);
+                return entry;
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                return cached;
+            }
+            byte[] data = readFully(connection.getInputStream());
+            if (data == null) {
+                return cached;
+            }
+            Entry entry = new Entry(data, connection.getHeaderField("ETag"),
+                    connection.getHeaderField("Last-Modified"), System.currentTimeMillis());
+            write(key, entry);
+            return entry;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to fetch " + url + ": " + e);
+            return cached;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    // Returns the content, or null if it is larger than an icon can be
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+                if (out.size() > MAX_ICON_BYTES) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private Entry read(String key) {
+        File file = fileFor(key);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != FORMAT_VERSION || !key.equals(in.readUTF())) {
+                // Old format or a hash collision
+                return null;
+            }
+            String etag = readOptionalUTF(in);
+            String lastModified = readOptionalUTF(in);
+            long validated = in.readLong();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return new Entry(data, etag, lastModified, validated);
+        } catch (IOException e) {
+            file.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private synchronized void write(String key, Entry entry) {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            return;
+        }
+        File file = fileFor(key);
+        File tmp = new File(mDir, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmp));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(key);
+            writeOptionalUTF(out, entry.etag);
+            writeOptionalUTF(out, entry.lastModified);
+            out.writeLong(entry.validated);
+            out.writeInt(entry.data.length);
+            out.write(entry.data);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to cache " + key + ": " + e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        trim();
+    }
+
+    // Deletes the least recently written entries until the cache fits
+    private void trim() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File f : files) {
+            size += f.length();
+        }
+        if (size <= MAX_CACHE_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File f : files) {
+            if (size <= MAX_CACHE_BYTES) {
+                break;
+            }
+            size -= f.length();
+            f.delete();
+        }
+    }
+
+    private File fileFor(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(mDir, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String readOptionalUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeOptionalUTF(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+}
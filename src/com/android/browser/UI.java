@@ -76,6 +76,12 @@ public interface UI {
 
     public void onTabDataChanged(Tab tab);
 
+    /**
+     * Returns whether any view currently shows the tab's data, such as the
+     * title bar or the tab bar.
+     */
+    public boolean isTabVisible(Tab tab);
+
     public void onPageStopped(Tab tab);
 
     public void onProgressChanged(Tab tab);
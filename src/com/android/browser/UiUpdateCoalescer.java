@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the tab changes reported by the WebView callbacks and applies
+ * them to the UI at most once per frame. A heavy page reports hundreds of
+ * progress changes during a load; only the latest state of each tab is
+ * drawn.
+ *
+ * Changes to tabs the UI is not showing are dropped rather than deferred,
+ * as the UI refreshes a tab in full when it becomes visible. Must be used
+ * on the UI thread.
+ */
+class UiUpdateCoalescer implements Choreographer.FrameCallback {
+
+    private static final String LOGTAG = "UiUpdateCoalescer";
+    private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
+
+    // Per-tab dirty flags
+    static final int DIRTY_PROGRESS = 1;
+    static final int DIRTY_TITLE = 1 << 1;
+    static final int DIRTY_FAVICON = 1 << 2;
+    static final int DIRTY_SECURITY = 1 << 3;
+    // A page started or finished loading
+    static final int DIRTY_URL = 1 << 4;
+    // Changes that need the whole tab data refreshed, not just the progress
+    private static final int DIRTY_TAB_DATA =
+            DIRTY_TITLE | DIRTY_FAVICON | DIRTY_SECURITY | DIRTY_URL;
+
+    private final UI mUi;
+    private final LinkedHashMap<Tab, Integer> mDirty = new LinkedHashMap<Tab, Integer>();
+    private boolean mFrameScheduled = false;
+    // Changes reported and UI updates made, for logging
+    private int mChanges;
+    private int mUpdates;
+
+    UiUpdateCoalescer(UI ui) {
+        mUi = ui;
+    }
+
+    /**
+     * Marks part of the tab's state as changed, to be shown on the next frame.
+     */
+    void markDirty(Tab tab, int flags) {
+        mChanges++;
+        Integer dirty = mDirty.get(tab);
+        mDirty.put(tab, dirty == null ? flags : dirty | flags);
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Drops the pending changes of a tab, e.g. when it is closed.
+     */
+    void remove(Tab tab) {
+        mDirty.remove(tab);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFrameScheduled = false;
+        // The UI calls may report further changes, which go to the next frame
+        ArrayList<Map.Entry<Tab, Integer>> dirty =
+                new ArrayList<Map.Entry<Tab, Integer>>(mDirty.entrySet());
+        mDirty.clear();
+        for (Map.Entry<Tab, Integer> e : dirty) {
+            Tab tab = e.getKey();
+            if (!mUi.isTabVisible(tab)) {
+                continue;
+            }
+            mUpdates++;
+            if ((e.getValue() & DIRTY_TAB_DATA) != 0) {
+                // Also updates the progress
+                mUi.onTabDataChanged(tab);
+            } else {
+                mUi.onProgressChanged(tab);
+            }
+        }
+        if (LOGV_ENABLED) {
+            Log.v(LOGTAG, "Coalesced " + mChanges + " tab changes into " + mUpdates
+                    + " UI updates");
+        }
+    }
+}
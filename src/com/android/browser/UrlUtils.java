@@ -20,6 +20,7 @@ import android.net.Uri;
 import android.util.Patterns;
 import android.webkit.URLUtil;
 
+import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -161,6 +162,31 @@ public class UrlUtils {
         return inUrl;
     }
 
+    /**
+     * Returns the lower-cased host of the url, or null if it has no scheme.
+     * Unlike {@link Uri#getHost()} any user info is kept, so the host is the
+     * one the browser provider indexes bookmarks by.
+     */
+    public static String getHost(String url) {
+        if (url == null) {
+            return null;
+        }
+        int start = url.indexOf("://");
+        if (start < 0) {
+            return null;
+        }
+        start += 3;
+        int end = start;
+        while (end < url.length()) {
+            char c = url.charAt(end);
+            if (c == '/' || c == ':' || c == '?' || c == '#') {
+                break;
+            }
+            end++;
+        }
+        return url.substring(start, end).toLowerCase(Locale.US);
+    }
+
     // Returns the filtered URL. Cannot return null, but can return an empty string
     /* package */ static String filteredUrl(String inUrl) {
         if (inUrl == null) {
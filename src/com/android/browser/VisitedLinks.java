@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import com.android.browser.provider.BrowserProvider2.VisitedUrls;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.BrowserContract.History;
+import android.provider.BrowserContract.Settings;
+import android.util.Log;
+import android.webkit.ValueCallback;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Visited URLs handed to the WebView for link coloring.
+ *
+ * The URLs live in a compact binary file in the cache dir rather than in
+ * memory, which only holds a sorted array of their 64-bit hashes. The file
+ * is written from the history table once and then follows it through
+ * BrowserProvider2.VisitedUrls: history rows inserted since are appended,
+ * and any other change to history makes the next request read the table
+ * again. Each WebView request gets an array read from the file, which is
+ * not kept.
+ */
+public class VisitedLinks {
+
+    private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
+    private static final String LOGTAG = "VisitedLinks";
+    private static final String STATE_FILE = "visited_links.bin";
+    private static final int FILE_MAGIC = 0x564c4e4b; // "VLNK"
+    private static final int FILE_VERSION = 2;
+    // Magic, version, generation, highest history _id read, url count
+    private static final int MAX_ID_OFFSET = 16;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final String[] HISTORY_PROJECTION = new String[] {
+        History._ID, History.URL
+    };
+    private static final String VISITED_SELECTION = History.VISITS + " > 0";
+    private static final String ADDED_SELECTION =
+            History._ID + " > ? AND " + VISITED_SELECTION;
+
+    private static VisitedLinks sInstance;
+
+    private final Context mContext;
+    private final File mStateFile;
+    private final Handler mForegroundHandler;
+    private final Handler mBackgroundHandler;
+
+    // Only used on the background looper. mHashes is null until the file
+    // has been read or written.
+    private long[] mHashes;
+    private int mHashCount;
+    private int mUrlCount;
+    private long mGeneration;
+    private long mMaxId;
+    private boolean mStale = true;
+
+    // Guarded by this
+    private ArrayList<ValueCallback<String[]>> mPendingCallbacks =
+            new ArrayList<ValueCallback<String[]>>();
+
+    public static synchronized VisitedLinks getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new VisitedLinks(context);
+        }
+        return sInstance;
+    }
+
+    private VisitedLinks(Context context) {
+        mContext = context.getApplicationContext();
+        mStateFile = new File(mContext.getCacheDir(), STATE_FILE);
+        mForegroundHandler = new Handler(Looper.getMainLooper());
+        mBackgroundHandler = new Handler(BackgroundHandler.getLooper());
+        mContext.getContentResolver().registerContentObserver(VisitedUrls.CONTENT_URI, false,
+                new ContentObserver(mBackgroundHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        mStale = true;
+                    }
+                });
+    }
+
+    /**
+     * Delivers the visited URLs to the callback on the UI thread, after
+     * reading them on the background looper.
+     */
+    public void getVisitedHistory(ValueCallback<String[]> callback) {
+        synchronized (this) {
+            mPendingCallbacks.add(callback);
+            if (mPendingCallbacks.size() > 1) {
+                return;
+            }
+        }
+        mBackgroundHandler.post(mLoadRunnable);
+    }
+
+    private final Runnable mLoadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final ArrayList<ValueCallback<String[]>> callbacks;
+            synchronized (VisitedLinks.this) {
+                callbacks = mPendingCallbacks;
+                mPendingCallbacks = new ArrayList<ValueCallback<String[]>>();
+            }
+            long start = System.currentTimeMillis();
+            final String[] urls = loadUrls();
+            if (LOGV_ENABLED) {
+                Log.v(LOGTAG, "Loaded " + urls.length + " urls in "
+                        + (System.currentTimeMillis() - start) + "ms");
+            }
+            mForegroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (ValueCallback<String[]> cb : callbacks) {
+                        cb.onReceiveValue(urls);
+                    }
+                }
+            });
+        }
+    };
+
+    private String[] loadUrls() {
+        String[] urls = null;
+        if (mStale || mHashes == null) {
+            mStale = false;
+            long generation = queryGeneration();
+            if (mHashes == null) {
+                urls = readState();
+            }
+            if (mHashes == null || mGeneration != generation) {
+                return rebuild(generation);
+            }
+            if (appendAdded()) {
+                urls = null;
+            }
+        }
+        if (urls == null) {
+            urls = readState();
+        }
+        if (urls == null) {
+            // The cache dir was cleared
+            urls = rebuild(queryGeneration());
+        }
+        return urls;
+    }
+
+    private long queryGeneration() {
+        Cursor c = mContext.getContentResolver().query(Settings.CONTENT_URI,
+                new String[] { Settings.VALUE }, Settings.KEY + "=?",
+                new String[] { VisitedUrls.KEY_GENERATION }, null);
+        if (c == null) {
+            return 0;
+        }
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Reads every visited url out of the history table and writes the file.
+     */
+    private String[] rebuild(long generation) {
+        mHashes = null;
+        ArrayList<String> urls = new ArrayList<String>();
+        long maxId = 0;
+        Cursor c = mContext.getContentResolver().query(History.CONTENT_URI,
+                HISTORY_PROJECTION, VISITED_SELECTION, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    maxId = Math.max(maxId, c.getLong(0));
+                    urls.add(c.getString(1));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        String[] result = urls.toArray(new String[urls.size()]);
+        File temp = new File(mContext.getCacheDir(), STATE_FILE + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp), BUFFER_SIZE));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeLong(generation);
+            out.writeLong(maxId);
+            out.writeInt(result.length);
+            for (String url : result) {
+                writeUrl(out, url);
+            }
+            out.close();
+            out = null;
+            if (temp.renameTo(mStateFile)) {
+                mGeneration = generation;
+                mMaxId = maxId;
+                mUrlCount = result.length;
+                setHashes(result);
+            } else {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to save visited links", e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {}
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Appends the urls of history rows inserted since the file was brought
+     * up to date. Returns whether the file changed.
+     */
+    private boolean appendAdded() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        long maxId = mMaxId;
+        int added = 0;
+        Cursor c = mContext.getContentResolver().query(History.CONTENT_URI,
+                HISTORY_PROJECTION, ADDED_SELECTION,
+                new String[] { Long.toString(mMaxId) }, null);
+        if (c == null) {
+            return false;
+        }
+        try {
+            while (c.moveToNext()) {
+                maxId = Math.max(maxId, c.getLong(0));
+                String url = c.getString(1);
+                if (addHash(hash(url))) {
+                    writeUrl(data, url);
+                    added++;
+                }
+            }
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+        } finally {
+            c.close();
+        }
+        if (maxId == mMaxId) {
+            return false;
+        }
+        // Records first, so a crash leaves urls to be appended again rather
+        // than a header counting urls that are not there
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mStateFile, "rw");
+            file.seek(file.length());
+            file.write(bytes.toByteArray());
+            file.seek(MAX_ID_OFFSET);
+            file.writeLong(maxId);
+            file.writeInt(mUrlCount + added);
+            mUrlCount += added;
+            mMaxId = maxId;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to save visited links", e);
+            mHashes = null;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {}
+            }
+        }
+        return added > 0;
+    }
+
+    /**
+     * Reads the urls out of the file, and the rest of the state too if it
+     * has not been read yet. Returns null if there is no valid file.
+     */
+    private String[] readState() {
+        if (!mStateFile.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mStateFile), BUFFER_SIZE));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                return null;
+            }
+            long generation = in.readLong();
+            long maxId = in.readLong();
+            int count = in.readInt();
+            String[] urls = new String[count];
+            byte[] buf = new byte[256];
+            for (int i = 0; i < count; i++) {
+                int len = in.readInt();
+                if (len > buf.length) {
+                    buf = new byte[len];
+                }
+                in.readFully(buf, 0, len);
+                urls[i] = new String(buf, 0, len, StandardCharsets.UTF_8);
+            }
+            if (mHashes == null) {
+                mGeneration = generation;
+                mMaxId = maxId;
+                mUrlCount = count;
+                setHashes(urls);
+            }
+            return urls;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to read visited links", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    private static void writeUrl(DataOutputStream out, String url) throws IOException {
+        byte[] data = url.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private void setHashes(String[] urls) {
+        long[] hashes = new long[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            hashes[i] = hash(urls[i]);
+        }
+        Arrays.sort(hashes);
+        int count = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (count == 0 || hashes[count - 1] != hashes[i]) {
+                hashes[count++] = hashes[i];
+            }
+        }
+        mHashes = hashes;
+        mHashCount = count;
+    }
+
+    // Returns false if the hash was already there
+    private boolean addHash(long hash) {
+        int i = Arrays.binarySearch(mHashes, 0, mHashCount, hash);
+        if (i >= 0) {
+            return false;
+        }
+        i = -i - 1;
+        if (mHashCount == mHashes.length) {
+            mHashes = Arrays.copyOf(mHashes, mHashCount * 3 / 2 + 16);
+        }
+        System.arraycopy(mHashes, i, mHashes, i + 1, mHashCount - i);
+        mHashes[i] = hash;
+        mHashCount++;
+        return true;
+    }
+
+    // 64-bit FNV-1a
+    static long hash(String url) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < url.length(); i++) {
+            hash = (hash ^ url.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.text.TextUtils;
+import android.webkit.WebSettings;
+import android.webkit.WebSettings.LayoutAlgorithm;
+import android.webkit.WebSettings.PluginState;
+import android.webkit.WebSettings.ZoomDensity;
+
+/**
+ * The values of the WebSettings that have a Preference UI.
+ *
+ * BrowserSettings reads the preferences into one snapshot per sync, and keeps
+ * one snapshot per managed WebSettings recording what was last applied to it,
+ * so a preference change only calls the setters whose value changed.
+ */
+class WebSettingsSnapshot {
+
+    /** Number of WebSettings setters a full sync calls. */
+    static final int SETTER_COUNT = 18;
+
+    boolean geolocationEnabled;
+    boolean javaScriptEnabled;
+    boolean lightTouchEnabled;
+    boolean navDump;
+    String defaultTextEncoding;
+    ZoomDensity defaultZoom;
+    int minimumFontSize;
+    PluginState pluginState;
+    int textZoom;
+    LayoutAlgorithm layoutAlgorithm;
+    boolean javaScriptCanOpenWindows;
+    boolean loadsImages;
+    boolean loadWithOverviewMode;
+    boolean savePassword;
+    boolean saveFormData;
+    boolean useWideViewPort;
+    String userAgent;
+
+    // False until the first apply, after which every field mirrors the
+    // WebSettings this snapshot was applied to
+    private boolean mApplied = false;
+
+    /**
+     * Applies the values of {@code target} that differ from this snapshot to
+     * {@code settings}, using {@code userAgent} in place of the target's user
+     * agent, and records them here.
+     *
+     * @return the number of setters called
+     */
+    int applyTo(WebSettings settings, WebSettingsSnapshot target,
+            String userAgent) {
+        boolean all = !mApplied;
+        mApplied = true;
+        int calls = 0;
+        if (all || geolocationEnabled != target.geolocationEnabled) {
+            geolocationEnabled = target.geolocationEnabled;
+            settings.setGeolocationEnabled(geolocationEnabled);
+            calls++;
+        }
+        if (all || javaScriptEnabled != target.javaScriptEnabled) {
+            javaScriptEnabled = target.javaScriptEnabled;
+            settings.setJavaScriptEnabled(javaScriptEnabled);
+            calls++;
+        }
+        if (all || lightTouchEnabled != target.lightTouchEnabled) {
+            lightTouchEnabled = target.lightTouchEnabled;
+            settings.setLightTouchEnabled(lightTouchEnabled);
+            calls++;
+        }
+        if (all || navDump != target.navDump) {
+            navDump = target.navDump;
+            settings.setNavDump(navDump);
+            calls++;
+        }
+        if (all || !TextUtils.equals(defaultTextEncoding, target.defaultTextEncoding)) {
+            defaultTextEncoding = target.defaultTextEncoding;
+            settings.setDefaultTextEncodingName(defaultTextEncoding);
+            calls++;
+        }
+        if (all || defaultZoom != target.defaultZoom) {
+            defaultZoom = target.defaultZoom;
+            settings.setDefaultZoom(defaultZoom);
+            calls++;
+        }
+        if (all || minimumFontSize != target.minimumFontSize) {
+            minimumFontSize = target.minimumFontSize;
+            settings.setMinimumFontSize(minimumFontSize);
+            settings.setMinimumLogicalFontSize(minimumFontSize);
+            calls += 2;
+        }
+        if (all || pluginState != target.pluginState) {
+            pluginState = target.pluginState;
+            settings.setPluginState(pluginState);
+            calls++;
+        }
+        if (all || textZoom != target.textZoom) {
+            textZoom = target.textZoom;
+            settings.setTextZoom(textZoom);
+            calls++;
+        }
+        if (all || layoutAlgorithm != target.layoutAlgorithm) {
+            layoutAlgorithm = target.layoutAlgorithm;
+            settings.setLayoutAlgorithm(layoutAlgorithm);
+            calls++;
+        }
+        if (all || javaScriptCanOpenWindows != target.javaScriptCanOpenWindows) {
+            javaScriptCanOpenWindows = target.javaScriptCanOpenWindows;
+            settings.setJavaScriptCanOpenWindowsAutomatically(javaScriptCanOpenWindows);
+            calls++;
+        }
+        if (all || loadsImages != target.loadsImages) {
+            loadsImages = target.loadsImages;
+            settings.setLoadsImagesAutomatically(loadsImages);
+            calls++;
+        }
+        if (all || loadWithOverviewMode != target.loadWithOverviewMode) {
+            loadWithOverviewMode = target.loadWithOverviewMode;
+            settings.setLoadWithOverviewMode(loadWithOverviewMode);
+            calls++;
+        }
+        if (all || savePassword != target.savePassword) {
+            savePassword = target.savePassword;
+            settings.setSavePassword(savePassword);
+            calls++;
+        }
+        if (all || saveFormData != target.saveFormData) {
+            saveFormData = target.saveFormData;
+            settings.setSaveFormData(saveFormData);
+            calls++;
+        }
+        if (all || useWideViewPort != target.useWideViewPort) {
+            useWideViewPort = target.useWideViewPort;
+            settings.setUseWideViewPort(useWideViewPort);
+            calls++;
+        }
+        if (all || !TextUtils.equals(this.userAgent, userAgent)) {
+            setUserAgent(settings, userAgent);
+            calls++;
+        }
+        return calls;
+    }
+
+    /**
+     * Sets the user agent outside of a sync, e.g. when the desktop user agent
+     * is toggled for one tab, keeping this snapshot accurate.
+     */
+    void setUserAgent(WebSettings settings, String userAgent) {
+        this.userAgent = userAgent;
+        settings.setUserAgentString(userAgent);
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.ValueCallback;
+import android.webkit.WebStorage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a snapshot of how much Web storage each origin uses, together with
+ * the disk and appcache sizes, so the quota callbacks and the website
+ * settings screen don't each have to ask WebStorage for every origin.
+ *
+ * The snapshot is refreshed when it is requested and older than
+ * {@link #REFRESH_INTERVAL}, or after it has been invalidated by a change to
+ * the stored data. A refresh that was started before the last invalidation
+ * is discarded, as its origins may include the deleted data. All methods
+ * must be called on the UI thread, which is where WebStorage delivers its
+ * results.
+ */
+public class WebStorageAccounting {
+
+    private final static boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
+    private final static String LOGTAG = "WebStorageAccounting";
+
+    // How long a snapshot is served before it is rebuilt
+    static final long REFRESH_INTERVAL = 60 * 1000;
+
+    /**
+     * Storage used by one origin.
+     */
+    public static class OriginUsage {
+        public final String origin;
+        public final long usage;
+        public final long quota;
+
+        public OriginUsage(String origin, long usage, long quota) {
+            this.origin = origin;
+            this.usage = usage;
+            this.quota = quota;
+        }
+    }
+
+    /**
+     * An immutable view of the Web storage at one point in time.
+     */
+    public static class Snapshot {
+        /** Uptime in ms at which the snapshot was taken */
+        public final long time;
+        public final long totalUsage;
+        public final long totalQuota;
+        public final long freeSpaceBytes;
+        public final long totalSpaceBytes;
+        public final long appCacheBytes;
+        // Sorted by decreasing usage
+        private final List<OriginUsage> mOrigins;
+        private final HashMap<String, OriginUsage> mByOrigin;
+
+        Snapshot(long time, Collection<OriginUsage> origins, long freeSpaceBytes,
+                long totalSpaceBytes, long appCacheBytes) {
+            this.time = time;
+            this.freeSpaceBytes = freeSpaceBytes;
+            this.totalSpaceBytes = totalSpaceBytes;
+            this.appCacheBytes = appCacheBytes;
+            ArrayList<OriginUsage> sorted = new ArrayList<OriginUsage>(origins);
+            Collections.sort(sorted, BY_USAGE);
+            mOrigins = Collections.unmodifiableList(sorted);
+            mByOrigin = new HashMap<String, OriginUsage>(sorted.size() * 4 / 3 + 1);
+            long usage = 0;
+            long quota = 0;
+            for (OriginUsage o : sorted) {
+                mByOrigin.put(o.origin, o);
+                usage += o.usage;
+                quota += o.quota;
+            }
+            totalUsage = usage;
+            totalQuota = quota;
+        }
+
+        /**
+         * Returns the usage of the origin, or null if it stores nothing.
+         */
+        public OriginUsage getOrigin(String origin) {
+            return mByOrigin.get(origin);
+        }
+
+        /**
+         * Returns every origin, largest first.
+         */
+        public List<OriginUsage> getOrigins() {
+            return mOrigins;
+        }
+
+        /**
+         * Returns at most n origins, largest first.
+         */
+        public List<OriginUsage> getTopOrigins(int n) {
+            return mOrigins.subList(0, Math.min(n, mOrigins.size()));
+        }
+    }
+
+    private static final Comparator<OriginUsage> BY_USAGE = new Comparator<OriginUsage>() {
+        @Override
+        public int compare(OriginUsage lhs, OriginUsage rhs) {
+            if (lhs.usage != rhs.usage) {
+                return lhs.usage > rhs.usage ? -1 : 1;
+            }
+            return lhs.origin.compareTo(rhs.origin);
+        }
+    };
+
+    private final WebStorageSizeManager.DiskInfo mDiskInfo;
+    private final WebStorageSizeManager.AppCacheInfo mAppCacheInfo;
+    private Snapshot mSnapshot;
+    // Bumped by invalidate(), a snapshot is only current if taken since
+    private long mGeneration;
+    private long mSnapshotGeneration;
+    private boolean mRefreshing = false;
+    private ArrayList<ValueCallback<Snapshot>> mPendingCallbacks =
+            new ArrayList<ValueCallback<Snapshot>>();
+    private final ArrayList<ValueCallback<Snapshot>> mRefreshListeners =
+            new ArrayList<ValueCallback<Snapshot>>();
+
+    public WebStorageAccounting(WebStorageSizeManager.DiskInfo diskInfo,
+            WebStorageSizeManager.AppCacheInfo appCacheInfo) {
+        mDiskInfo = diskInfo;
+        mAppCacheInfo = appCacheInfo;
+    }
+
+    /**
+     * Adds a callback that receives every new snapshot, after the callers
+     * that were waiting for it.
+     */
+    public void addRefreshListener(ValueCallback<Snapshot> listener) {
+        mRefreshListeners.add(listener);
+    }
+
+    public void removeRefreshListener(ValueCallback<Snapshot> listener) {
+        mRefreshListeners.remove(listener);
+    }
+
+    /**
+     * Returns the last snapshot, which may be stale or null. Use
+     * {@link #getSnapshot(ValueCallback)} when an up to date one is needed.
+     */
+    public Snapshot peekSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Delivers a snapshot no older than {@link #REFRESH_INTERVAL}, building a
+     * new one if needed.
+     */
+    public void getSnapshot(ValueCallback<Snapshot> callback) {
+        if (isFresh()) {
+            callback.onReceiveValue(mSnapshot);
+            return;
+        }
+        mPendingCallbacks.add(callback);
+        refresh();
+    }
+
+    /**
+     * Rebuilds the snapshot if it is stale, without waiting for it.
+     */
+    public void requestRefresh() {
+        if (!isFresh()) {
+            refresh();
+        }
+    }
+
+    /**
+     * Marks the snapshot stale, called after origins' data has been deleted
+     * or may have grown. It is still returned by {@link #peekSnapshot()}.
+     */
+    public void invalidate() {
+        mGeneration++;
+    }
+
+    private boolean isFresh() {
+        return mSnapshot != null && mSnapshotGeneration == mGeneration
+                && SystemClock.uptimeMillis() - mSnapshot.time < REFRESH_INTERVAL;
+    }
+
+    private void refresh() {
+        if (mRefreshing) {
+            return;
+        }
+        mRefreshing = true;
+        final long generation = mGeneration;
+        final long start = SystemClock.uptimeMillis();
+        requestOrigins(new ValueCallback<Collection<OriginUsage>>() {
+            @Override
+            public void onReceiveValue(Collection<OriginUsage> usages) {
+                Snapshot snapshot = createSnapshot(SystemClock.uptimeMillis(), usages,
+                        mDiskInfo, mAppCacheInfo);
+                if (LOGV_ENABLED) {
+                    Log.v(LOGTAG, "Refreshed " + usages.size() + " origins in "
+                            + (SystemClock.uptimeMillis() - start) + "ms, total usage "
+                            + snapshot.totalUsage);
+                }
+                onOriginsReceived(generation, snapshot);
+            }
+        });
+    }
+
+    /**
+     * Asks WebStorage for the usage of every origin. Overridden by tests.
+     */
+    /*package*/ void requestOrigins(final ValueCallback<Collection<OriginUsage>> callback) {
+        WebStorage.getInstance().getOrigins(new ValueCallback<Map>() {
+            @Override
+            public void onReceiveValue(Map origins) {
+                ArrayList<OriginUsage> usages = new ArrayList<OriginUsage>();
+                if (origins != null) {
+                    for (Object value : origins.values()) {
+                        WebStorage.Origin o = (WebStorage.Origin) value;
+                        usages.add(new OriginUsage(o.getOrigin(), o.getUsage(),
+                                o.getQuota()));
+                    }
+                }
+                callback.onReceiveValue(usages);
+            }
+        });
+    }
+
+    private void onOriginsReceived(long generation, Snapshot snapshot) {
+        mRefreshing = false;
+        if (generation != mGeneration) {
+            // Data was deleted while WebStorage was counting, start over
+            if (!mPendingCallbacks.isEmpty() || !mRefreshListeners.isEmpty()) {
+                refresh();
+            }
+            return;
+        }
+        mSnapshot = snapshot;
+        mSnapshotGeneration = generation;
+        ArrayList<ValueCallback<Snapshot>> callbacks = mPendingCallbacks;
+        mPendingCallbacks = new ArrayList<ValueCallback<Snapshot>>();
+        for (ValueCallback<Snapshot> cb : callbacks) {
+            cb.onReceiveValue(snapshot);
+        }
+        // A listener may remove itself
+        for (ValueCallback<Snapshot> listener
+                : new ArrayList<ValueCallback<Snapshot>>(mRefreshListeners)) {
+            listener.onReceiveValue(snapshot);
+        }
+    }
+
+    /*package*/ static Snapshot createSnapshot(long time, Collection<OriginUsage> origins,
+            WebStorageSizeManager.DiskInfo diskInfo,
+            WebStorageSizeManager.AppCacheInfo appCacheInfo) {
+        return new Snapshot(time, origins, diskInfo.getFreeSpaceSizeBytes(),
+                diskInfo.getTotalSizeBytes(), appCacheInfo.getAppCacheSizeBytes());
+    }
+}
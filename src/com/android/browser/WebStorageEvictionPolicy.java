@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides which origins' Web storage to delete when the storage used goes
+ * over the global limit or the partition runs low on free space.
+ *
+ * Origins are deleted least recently used first; origins last used on the
+ * same day are deleted largest first. Origins whose host is bookmarked or
+ * open in a tab are never deleted. Low free space only frees what Web
+ * storage can make up for: if deleting every origin would not bring the
+ * partition back over its minimum, the space is taken by someone else and
+ * nothing is deleted for it. This class has no Android dependencies
+ * so the decisions can be unit tested.
+ */
+public class WebStorageEvictionPolicy {
+
+    // Once eviction starts, usage is brought down to this fraction of the
+    // global limit so the next few quota requests can be granted
+    static final float TARGET_RATIO = 0.75f;
+    // Free space below this fraction of the partition counts as disk pressure
+    static final long MIN_FREE_DIVISOR = 20;
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+    /**
+     * An origin that may be evicted.
+     */
+    public static class Candidate {
+        public final String origin;
+        /** Lower-cased host of the origin, matched against protected hosts */
+        public final String host;
+        public final long usage;
+        /** Last time the user visited the origin, or 0 if unknown */
+        public final long lastUsed;
+
+        public Candidate(String origin, String host, long usage, long lastUsed) {
+            this.origin = origin;
+            this.host = host;
+            this.usage = usage;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    /**
+     * The origins to delete, and a log line for every decision made.
+     */
+    public static class Result {
+        public final List<String> evicted = new ArrayList<String>();
+        public final List<String> log = new ArrayList<String>();
+        public long bytesFreed;
+        /** Whether usage and free space are back within bounds */
+        public boolean reachedTarget = true;
+    }
+
+    private static final Comparator<Candidate> LRU_ORDER = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate lhs, Candidate rhs) {
+            long lday = lhs.lastUsed / DAY_MS;
+            long rday = rhs.lastUsed / DAY_MS;
+            if (lday != rday) {
+                return lday < rday ? -1 : 1;
+            }
+            if (lhs.usage != rhs.usage) {
+                return lhs.usage > rhs.usage ? -1 : 1;
+            }
+            return lhs.origin.compareTo(rhs.origin);
+        }
+    };
+
+    /**
+     * Returns whether the snapshot is over the global limit or shows the
+     * partition low on free space, in which case origins should be evicted.
+     */
+    public static boolean needsEviction(WebStorageAccounting.Snapshot snapshot,
+            long globalLimit) {
+        return needsEviction(snapshot.totalUsage + snapshot.appCacheBytes, globalLimit,
+                snapshot.freeSpaceBytes, snapshot.totalSpaceBytes / MIN_FREE_DIVISOR);
+    }
+
+    private static boolean needsEviction(long used, long globalLimit, long free,
+            long minFree) {
+        return used > globalLimit || free < minFree;
+    }
+
+    /**
+     * Picks the origins to evict.
+     * @param candidates every origin that stores data
+     * @param protectedHosts hosts that must keep their data
+     * @param globalLimit the Web storage global limit
+     * @param diskInfo the partition the data is stored on
+     * @param appCacheInfo the appcache, which counts toward the limit
+     */
+    public static Result selectOrigins(List<Candidate> candidates,
+            Set<String> protectedHosts, long globalLimit,
+            WebStorageSizeManager.DiskInfo diskInfo,
+            WebStorageSizeManager.AppCacheInfo appCacheInfo) {
+        Result result = new Result();
+        long used = appCacheInfo.getAppCacheSizeBytes();
+        for (Candidate c : candidates) {
+            used += c.usage;
+        }
+        long free = diskInfo.getFreeSpaceSizeBytes();
+        long minFree = diskInfo.getTotalSizeBytes() / MIN_FREE_DIVISOR;
+        if (!needsEviction(used, globalLimit, free, minFree)) {
+            result.log.add("No eviction needed: used " + used + " of " + globalLimit
+                    + ", free " + free);
+            return result;
+        }
+        long target = (long) (globalLimit * TARGET_RATIO);
+        result.log.add("Evicting: used " + used + " of " + globalLimit
+                + " (target " + target + "), free " + free + " of min " + minFree);
+
+        long evictable = 0;
+        for (Candidate c : candidates) {
+            if (c.usage > 0 && !isProtected(c, protectedHosts)) {
+                evictable += c.usage;
+            }
+        }
+        long toFree = Math.max(0, used - target);
+        long shortfall = Math.max(0, minFree - free);
+        if (shortfall > evictable) {
+            result.log.add("Not evicting for free space: short " + shortfall
+                    + " bytes, Web storage can only free " + evictable);
+            result.reachedTarget = false;
+        } else {
+            toFree = Math.max(toFree, shortfall);
+        }
+
+        ArrayList<Candidate> sorted = new ArrayList<Candidate>(candidates);
+        Collections.sort(sorted, LRU_ORDER);
+        for (Candidate c : sorted) {
+            if (result.bytesFreed >= toFree) {
+                break;
+            }
+            if (c.usage <= 0) {
+                continue;
+            }
+            if (isProtected(c, protectedHosts)) {
+                result.log.add("Keep " + c.origin + ": host is bookmarked or open");
+                continue;
+            }
+            result.evicted.add(c.origin);
+            result.bytesFreed += c.usage;
+            result.log.add("Evict " + c.origin + ": " + c.usage + " bytes, last used "
+                    + c.lastUsed);
+        }
+        used -= result.bytesFreed;
+        free += result.bytesFreed;
+        if (used > target || free < minFree) {
+            result.log.add("Could not reach target: used " + used + ", free " + free);
+            result.reachedTarget = false;
+        }
+        return result;
+    }
+
+    private static boolean isProtected(Candidate c, Set<String> protectedHosts) {
+        return c.host != null && protectedHosts.contains(c.host);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.BrowserContract;
+import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.History;
+import android.util.Log;
+import android.webkit.ValueCallback;
+import android.webkit.WebStorage;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs {@link WebStorageEvictionPolicy} when the Web storage runs out of
+ * space: gathers the origins' usage, when they were last visited and which
+ * hosts are protected, then deletes the chosen origins. Every decision is
+ * logged.
+ */
+class WebStorageEvictor {
+
+    private final static String LOGTAG = "WebStorageEvictor";
+    // Minimum time between two runs, as quota callbacks come in bursts
+    private final static long MIN_INTERVAL = 60 * 1000;
+    // The interval doubles after each run that missed its target, up to
+    // this, so a disk filled by others isn't checked on every page load
+    private final static long MAX_INTERVAL = 24 * 60 * 60 * 1000;
+
+    /**
+     * Supplies the hosts of the open tabs, called on the UI thread.
+     */
+    interface OpenTabHosts {
+        Set<String> getOpenTabHosts();
+    }
+
+    private final ContentResolver mResolver;
+    private final WebStorageSizeManager mManager;
+    private final OpenTabHosts mOpenTabHosts;
+    private final Handler mHandler;
+    private boolean mRunning = false;
+    private long mLastRun = -1;
+    private long mInterval = MIN_INTERVAL;
+
+    WebStorageEvictor(Context context, WebStorageSizeManager manager,
+            OpenTabHosts openTabHosts) {
+        mResolver = context.getApplicationContext().getContentResolver();
+        mManager = manager;
+        mOpenTabHosts = openTabHosts;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Evicts origins if the storage is over budget. Must be called on the UI
+     * thread.
+     * @param onNothingEvicted run if no space could be freed
+     */
+    void evictIfNeeded(final Runnable onNothingEvicted) {
+        long now = SystemClock.uptimeMillis();
+        if (mRunning || (mLastRun >= 0 && now - mLastRun < mInterval)) {
+            if (!mRunning) {
+                onNothingEvicted.run();
+            }
+            return;
+        }
+        mRunning = true;
+        mLastRun = now;
+        mManager.getAccounting().getSnapshot(
+                new ValueCallback<WebStorageAccounting.Snapshot>() {
+            @Override
+            public void onReceiveValue(WebStorageAccounting.Snapshot snapshot) {
+                final Set<String> protectedHosts =
+                        new HashSet<String>(mOpenTabHosts.getOpenTabHosts());
+                final List<WebStorageAccounting.OriginUsage> origins = snapshot.getOrigins();
+                BackgroundHandler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        select(origins, protectedHosts, onNothingEvicted);
+                    }
+                });
+            }
+        });
+    }
+
+    private void select(List<WebStorageAccounting.OriginUsage> origins,
+            Set<String> protectedHosts, final Runnable onNothingEvicted) {
+        protectedHosts.addAll(queryBookmarkedHosts());
+        ArrayList<WebStorageEvictionPolicy.Candidate> candidates =
+                new ArrayList<WebStorageEvictionPolicy.Candidate>(origins.size());
+        for (WebStorageAccounting.OriginUsage o : origins) {
+            candidates.add(new WebStorageEvictionPolicy.Candidate(o.origin,
+                    UrlUtils.getHost(o.origin), o.usage, queryLastVisit(o.origin)));
+        }
+        final WebStorageEvictionPolicy.Result result =
+                WebStorageEvictionPolicy.selectOrigins(candidates, protectedHosts,
+                        mManager.getGlobalLimit(), mManager.getDiskInfo(),
+                        mManager.getAppCacheInfo());
+        for (String line : result.log) {
+            Log.i(LOGTAG, line);
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (String origin : result.evicted) {
+                    WebStorage.getInstance().deleteOrigin(origin);
+                }
+                if (result.evicted.isEmpty()) {
+                    onNothingEvicted.run();
+                } else {
+                    Log.i(LOGTAG, "Evicted " + result.evicted.size() + " origins, freed "
+                            + result.bytesFreed + " bytes");
+                    mManager.getAccounting().invalidate();
+                }
+                mInterval = result.reachedTarget ? MIN_INTERVAL
+                        : Math.min(mInterval * 2, MAX_INTERVAL);
+                mRunning = false;
+            }
+        });
+    }
+
+    private Set<String> queryBookmarkedHosts() {
+        HashSet<String> hosts = new HashSet<String>();
+        Cursor c = mResolver.query(Bookmarks.CONTENT_URI, new String[] { Bookmarks.URL },
+                Bookmarks.IS_FOLDER + " = 0", null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    String host = UrlUtils.getHost(c.getString(0));
+                    if (host != null) {
+                        hosts.add(host);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return hosts;
+    }
+
+    // Returns when a page of the origin was last visited, or 0 if never
+    private long queryLastVisit(String origin) {
+        Uri uri = History.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BrowserContract.PARAM_LIMIT, "1").build();
+        // Pages of the origin sort between "origin/" and "origin0"
+        Cursor c = mResolver.query(uri, new String[] { History.DATE_LAST_VISITED },
+                History.URL + " = ? OR (" + History.URL + " >= ? AND "
+                        + History.URL + " < ?)",
+                new String[] { origin, origin + "/", origin + "0" },
+                History.DATE_LAST_VISITED + " DESC");
+        if (c == null) {
+            return 0;
+        }
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -26,6 +26,7 @@ import android.content.Intent;
 import android.os.StatFs;
 import android.preference.PreferenceActivity;
 import android.util.Log;
+import android.webkit.ValueCallback;
 import android.webkit.WebStorage;
 
 import java.io.File;
@@ -79,8 +80,10 @@ import java.io.File;
  * Quota increases are done in steps, where the increase step is
  * min(QUOTA_INCREASE_STEP, unused_quota).
  *
- * When all the Web storage space is used, the WebStorageSizeManager creates
- * a system notification that will guide the user to the WebSettings UI. There,
+ * When all the Web storage space is used, the WebStorageSizeManager first
+ * tries to free space by deleting the data of the least recently used origins
+ * (see WebStorageEvictionPolicy). If nothing can be deleted, it creates a
+ * system notification that will guide the user to the WebSettings UI. There,
  * the user can free some of the Web storage space by deleting all the data used
  * by an origin.
  */
@@ -113,6 +116,10 @@ public class WebStorageSizeManager {
     private final long mGlobalLimit;
     // The maximum size of the application cache file.
     private long mAppCacheMaxSize;
+    // Cached per-origin usage, shared with the website settings UI.
+    private final WebStorageAccounting mAccounting;
+    // Deletes least recently used origins when out of space, may be null.
+    private WebStorageEvictor mEvictor;
 
     /**
      * Interface used by the WebStorageSizeManager to obtain information
@@ -132,15 +139,20 @@ public class WebStorageSizeManager {
     };
 
     private DiskInfo mDiskInfo;
+    private AppCacheInfo mAppCacheInfo;
     // For convenience, we provide a DiskInfo implementation that uses StatFs.
     public static class StatFsDiskInfo implements DiskInfo {
+        private final String mPath;
         private StatFs mFs;
 
         public StatFsDiskInfo(String path) {
+            mPath = path;
             mFs = new StatFs(path);
         }
 
         public long getFreeSpaceSizeBytes() {
+            // StatFs only reports the values read when it was created
+            mFs.restat(mPath);
             return (long)(mFs.getAvailableBlocks()) * mFs.getBlockSize();
         }
 
@@ -189,13 +201,73 @@ public class WebStorageSizeManager {
      */
     public WebStorageSizeManager(Context ctx, DiskInfo diskInfo,
             AppCacheInfo appCacheInfo) {
+        this(ctx, diskInfo, appCacheInfo, new WebStorageAccounting(diskInfo, appCacheInfo));
+    }
+
+    /*package*/ WebStorageSizeManager(Context ctx, DiskInfo diskInfo,
+            AppCacheInfo appCacheInfo, WebStorageAccounting accounting) {
         mContext = ctx.getApplicationContext();
         mDiskInfo = diskInfo;
-        mGlobalLimit = getGlobalLimit();
+        mAppCacheInfo = appCacheInfo;
+        mGlobalLimit = computeGlobalLimit();
         // The initial max size of the app cache is either 25% of the global
         // limit or the current size of the app cache file, whichever is bigger.
         mAppCacheMaxSize = Math.max(mGlobalLimit / 4,
                 appCacheInfo.getAppCacheSizeBytes());
+        mAccounting = accounting;
+        mAccounting.addRefreshListener(new ValueCallback<WebStorageAccounting.Snapshot>() {
+            @Override
+            public void onReceiveValue(WebStorageAccounting.Snapshot snapshot) {
+                // WebView no longer calls the quota callbacks, so every
+                // snapshot is also checked against the budget. Unlike a
+                // denied quota this doesn't concern the user, who is not
+                // notified if nothing can be evicted.
+                if (mEvictor != null
+                        && WebStorageEvictionPolicy.needsEviction(snapshot, mGlobalLimit)) {
+                    mEvictor.evictIfNeeded(NOTHING);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the cached per-origin usage of Web storage.
+     */
+    public WebStorageAccounting getAccounting() {
+        return mAccounting;
+    }
+
+    /**
+     * Refreshes the usage snapshot if it is stale, which evicts origins if
+     * Web storage has grown over budget. Called when a page has loaded, so
+     * the check runs at most every {@link WebStorageAccounting#REFRESH_INTERVAL}
+     * while the user browses. Must be called on the UI thread.
+     */
+    public void checkStorage() {
+        mAccounting.requestRefresh();
+    }
+
+    /**
+     * Returns the global Web storage limit.
+     */
+    public long getGlobalLimit() {
+        return mGlobalLimit;
+    }
+
+    DiskInfo getDiskInfo() {
+        return mDiskInfo;
+    }
+
+    AppCacheInfo getAppCacheInfo() {
+        return mAppCacheInfo;
+    }
+
+    /**
+     * Enables automatic eviction of origins when Web storage runs out of
+     * space. Without an evictor the user is only notified.
+     */
+    void setEvictor(WebStorageEvictor evictor) {
+        mEvictor = evictor;
     }
 
     /**
@@ -234,6 +306,8 @@ public class WebStorageSizeManager {
                   + ")");
         }
         long totalUnusedQuota = mGlobalLimit - totalUsedQuota - mAppCacheMaxSize;
+        // Whatever we decide, the origin's quota and usage are changing
+        mAccounting.invalidate();
 
         if (totalUnusedQuota <= 0) {
             // There definitely isn't any more space. Fire notifications
@@ -245,7 +319,7 @@ public class WebStorageSizeManager {
                 // data than it is actually available. In such a case, showing
                 // the notification would not help at all since there is nothing
                 // the user can do.
-                scheduleOutOfSpaceNotification();
+                onOutOfSpace();
             }
             quotaUpdater.updateQuota(currentQuota);
             if(LOGV_ENABLED) {
@@ -316,6 +390,7 @@ public class WebStorageSizeManager {
         }
 
         long totalUnusedQuota = mGlobalLimit - totalUsedQuota - mAppCacheMaxSize;
+        mAccounting.invalidate();
 
         if (totalUnusedQuota < spaceNeeded + APPCACHE_MAXSIZE_PADDING) {
             // There definitely isn't any more space. Fire notifications
@@ -327,7 +402,7 @@ public class WebStorageSizeManager {
                 // data than it is actually available. In such a case, showing
                 // the notification would not help at all since there is nothing
                 // the user can do.
-                scheduleOutOfSpaceNotification();
+                onOutOfSpace();
             }
             quotaUpdater.updateQuota(0);
             if(LOGV_ENABLED) {
@@ -355,7 +430,7 @@ public class WebStorageSizeManager {
 
     // Computes the global limit as a function of the size of the data
     // partition and the amount of free space on that partition.
-    private long getGlobalLimit() {
+    private long computeGlobalLimit() {
         long freeSpace = mDiskInfo.getFreeSpaceSizeBytes();
         long fileSystemSize = mDiskInfo.getTotalSizeBytes();
         return calculateGlobalLimit(fileSystemSize, freeSpace);
@@ -386,6 +461,26 @@ public class WebStorageSizeManager {
                 * ((maxSizeBytes / maxSizeStepBytes) + roundingExtra));
     }
 
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    // Frees space by evicting origins if possible, otherwise asks the user to.
+    private void onOutOfSpace() {
+        if (mEvictor == null) {
+            scheduleOutOfSpaceNotification();
+            return;
+        }
+        mEvictor.evictIfNeeded(new Runnable() {
+            @Override
+            public void run() {
+                scheduleOutOfSpaceNotification();
+            }
+        });
+    }
+
     // Schedules a system notification that takes the user to the WebSettings
     // activity when clicked.
     private void scheduleOutOfSpaceNotification() {
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.ViewGroup;
+import android.webkit.WebView;
+
+import java.util.ArrayDeque;
+
+/**
+ * {@link WebViewFactory} that keeps a small number of fully initialized
+ * WebViews warm so opening a tab doesn't pay for WebView construction.
+ *
+ * Spares are created on the UI thread when it goes idle. Private and
+ * non-private spares are kept separately; a private spare is only kept once
+ * a private tab has been opened. WebViews of closed tabs are taken back if
+ * they never navigated anywhere, otherwise they are destroyed.
+ */
+public class WebViewPool implements WebViewFactory {
+
+    private static final boolean LOGD_ENABLED = Browser.LOGD_ENABLED;
+    private static final String LOGTAG = "WebViewPool";
+
+    private final WebViewFactory mFactory;
+    private final ArrayDeque<WebView> mSpares = new ArrayDeque<WebView>();
+    private final ArrayDeque<WebView> mPrivateSpares = new ArrayDeque<WebView>();
+    private final int mMaxSpares;
+    private boolean mWantPrivateSpare = false;
+    private boolean mIdleHandlerQueued = false;
+    private boolean mDestroyed = false;
+
+    // Tab-open latency, split by whether a spare was available
+    private int mHits;
+    private int mMisses;
+    private long mHitMs;
+    private long mMissMs;
+
+    public WebViewPool(Context context, WebViewFactory factory) {
+        mFactory = factory;
+        mMaxSpares = computeMaxSpares(context);
+        scheduleRefill();
+    }
+
+    /**
+     * Sizes the pool from the per-app memory class: every spare WebView
+     * costs several megabytes even before it loads anything.
+     */
+    static int computeMaxSpares(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        if (am == null || am.isLowRamDevice()) {
+            return 0;
+        }
+        int memoryClass = am.getMemoryClass();
+        if (memoryClass >= 192) {
+            return 2;
+        } else if (memoryClass >= 64) {
+            return 1;
+        }
+        return 0;
+    }
+
+    @Override
+    public WebView createWebView(boolean privateBrowsing) {
+        long start = SystemClock.uptimeMillis();
+        if (privateBrowsing) {
+            mWantPrivateSpare = true;
+        }
+        WebView w = (privateBrowsing ? mPrivateSpares : mSpares).poll();
+        boolean hit = w != null;
+        if (!hit) {
+            w = mFactory.createWebView(privateBrowsing);
+        }
+        long elapsed = SystemClock.uptimeMillis() - start;
+        if (hit) {
+            mHits++;
+            mHitMs += elapsed;
+        } else {
+            mMisses++;
+            mMissMs += elapsed;
+        }
+        if (LOGD_ENABLED) {
+            Log.d(LOGTAG, "createWebView " + (hit ? "hit" : "miss") + " in "
+                    + elapsed + "ms; " + getStats());
+        }
+        scheduleRefill();
+        return w;
+    }
+
+    @Override
+    public WebView createSubWebView(boolean privateBrowsing) {
+        return mFactory.createSubWebView(privateBrowsing);
+    }
+
+    /**
+     * Returns true if the WebView can be handed to another tab: it must not
+     * be private and must never have navigated, so no page state can leak.
+     */
+    boolean canRecycle(WebView w) {
+        return !mDestroyed && !w.isPrivateBrowsingEnabled()
+                && w.copyBackForwardList().getSize() == 0
+                && mSpares.size() < mMaxSpares;
+    }
+
+    /**
+     * Takes back the WebView of a closed tab, destroying it if it can't be
+     * reused. The WebView must already be detached from its tab.
+     */
+    void recycle(WebView w) {
+        if (!canRecycle(w)) {
+            w.destroy();
+            return;
+        }
+        if (w.getParent() instanceof ViewGroup) {
+            ((ViewGroup) w.getParent()).removeView(w);
+        }
+        w.setWebViewClient(null);
+        w.setWebChromeClient(null);
+        w.setDownloadListener(null);
+        w.setPictureListener(null);
+        w.setOnCreateContextMenuListener(null);
+        if (w instanceof BrowserWebView) {
+            BrowserWebView bwv = (BrowserWebView) w;
+            bwv.setTitleBar(null);
+            bwv.setOnScrollChangedListener(null);
+            bwv.clearFormInteraction();
+        }
+        mSpares.add(w);
+    }
+
+    /**
+     * Drops all spares, called when the system is low on memory.
+     */
+    void trimMemory() {
+        // Don't refill until the next tab is opened
+        if (mIdleHandlerQueued) {
+            Looper.myQueue().removeIdleHandler(mRefill);
+            mIdleHandlerQueued = false;
+        }
+        destroyAll(mSpares);
+        destroyAll(mPrivateSpares);
+    }
+
+    void destroy() {
+        mDestroyed = true;
+        trimMemory();
+    }
+
+    String getStats() {
+        return "hits=" + mHits
+                + " hitAvgMs=" + (mHits > 0 ? mHitMs / mHits : 0)
+                + " misses=" + mMisses
+                + " missAvgMs=" + (mMisses > 0 ? mMissMs / mMisses : 0);
+    }
+
+    private static void destroyAll(ArrayDeque<WebView> spares) {
+        WebView w;
+        while ((w = spares.poll()) != null) {
+            w.destroy();
+        }
+    }
+
+    private boolean needsRefill() {
+        if (mDestroyed) {
+            return false;
+        }
+        return mSpares.size() < mMaxSpares
+                || (mWantPrivateSpare && mMaxSpares > 0 && mPrivateSpares.isEmpty());
+    }
+
+    private void scheduleRefill() {
+        if (mIdleHandlerQueued || !needsRefill()) {
+            return;
+        }
+        mIdleHandlerQueued = true;
+        Looper.myQueue().addIdleHandler(mRefill);
+    }
+
+    private final MessageQueue.IdleHandler mRefill = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            if (mDestroyed) {
+                mIdleHandlerQueued = false;
+                return false;
+            }
+            // Build one WebView per idle pass to keep each pass short
+            if (mSpares.size() < mMaxSpares) {
+                mSpares.add(mFactory.createWebView(false));
+            } else if (mWantPrivateSpare && mPrivateSpares.isEmpty()) {
+                mPrivateSpares.add(mFactory.createWebView(true));
+            }
+            mIdleHandlerQueued = needsRefill();
+            return mIdleHandlerQueued;
+        }
+    };
+}
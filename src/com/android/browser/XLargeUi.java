@@ -74,7 +74,7 @@ public class XLargeUi extends BaseUi {
     public void showComboView(ComboViews startWith, Bundle extras) {
         super.showComboView(startWith, extras);
         if (mUseQuickControls) {
-            mActionBar.show();
+            showActionBar();
         }
     }
 
@@ -83,7 +83,7 @@ public class XLargeUi extends BaseUi {
         super.setUseQuickControls(useQuickControls);
         checkHideActionBar();
         if (!useQuickControls) {
-            mActionBar.show();
+            showActionBar();
         }
         mTabBar.setUseQuickControls(mUseQuickControls);
         // We need to update the tabs with this change
@@ -92,6 +92,18 @@ public class XLargeUi extends BaseUi {
         }
     }
 
+    private void showActionBar() {
+        if (mActionBar.isShowing()) {
+            return;
+        }
+        mActionBar.show();
+        // Title changes of background tabs were dropped while the tab bar
+        // was hidden with the action bar
+        for (Tab tab : mTabControl.getTabs()) {
+            mTabBar.onUrlAndTitle(tab, tab.getUrl(), tab.getTitle());
+        }
+    }
+
     private void checkHideActionBar() {
         if (mUseQuickControls) {
             mHandler.post(new Runnable() {
@@ -217,6 +229,12 @@ public class XLargeUi extends BaseUi {
         mNavBar.updateNavigationState(tab);
     }
 
+    @Override
+    public boolean isTabVisible(Tab tab) {
+        // The tab bar shows every tab while the action bar is showing
+        return super.isTabVisible(tab) || mActionBar.isShowing();
+    }
+
     @Override
     public void setUrlTitle(Tab tab) {
         super.setUrlTitle(tab);
@@ -17,8 +17,10 @@
 package com.android.browser.preferences;
 
 import com.android.browser.BrowserActivity;
+import com.android.browser.BrowserSettings;
 import com.android.browser.PreferenceKeys;
 import com.android.browser.R;
+import com.android.browser.WebStorageAccounting;
 
 import android.content.Intent;
 import android.content.res.Resources;
@@ -30,9 +32,7 @@ import android.preference.PreferenceScreen;
 import android.util.Log;
 import android.webkit.GeolocationPermissions;
 import android.webkit.ValueCallback;
-import android.webkit.WebStorage;
 
-import java.util.Map;
 import java.util.Set;
 
 public class AdvancedPreferencesFragment extends PreferenceFragment
@@ -86,10 +86,12 @@ public class AdvancedPreferencesFragment extends PreferenceFragment
         final PreferenceScreen websiteSettings = (PreferenceScreen) findPreference(
                 PreferenceKeys.PREF_WEBSITE_SETTINGS);
         websiteSettings.setEnabled(false);
-        WebStorage.getInstance().getOrigins(new ValueCallback<Map>() {
+        // This also warms the usage snapshot the website settings screen uses
+        BrowserSettings.getInstance().getWebStorageSizeManager().getAccounting()
+                .getSnapshot(new ValueCallback<WebStorageAccounting.Snapshot>() {
             @Override
-            public void onReceiveValue(Map webStorageOrigins) {
-                if ((webStorageOrigins != null) && !webStorageOrigins.isEmpty()) {
+            public void onReceiveValue(WebStorageAccounting.Snapshot snapshot) {
+                if (!snapshot.getOrigins().isEmpty()) {
                     websiteSettings.setEnabled(true);
                 }
             }
@@ -16,18 +16,32 @@
 
 package com.android.browser.preferences;
 
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceFragment;
+import android.util.Log;
+import android.widget.Toast;
 
 import com.android.browser.BrowserSettings;
 import com.android.browser.GoogleAccountLogin;
+import com.android.browser.Performance;
 import com.android.browser.PreferenceKeys;
 import com.android.browser.R;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
 public class DebugPreferencesFragment extends PreferenceFragment
         implements OnPreferenceClickListener {
+
+    private static final String LOGTAG = "DebugPreferences";
+    private static final String PAGE_LOADS_FILE = "page_loads.json";
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -37,6 +51,8 @@ public class DebugPreferencesFragment extends PreferenceFragment
 
         Preference e = findPreference(PreferenceKeys.PREF_RESET_PRELOGIN);
         e.setOnPreferenceClickListener(this);
+        e = findPreference(PreferenceKeys.PREF_EXPORT_PAGE_LOADS);
+        e.setOnPreferenceClickListener(this);
     }
 
     @Override
@@ -47,6 +63,57 @@ public class DebugPreferencesFragment extends PreferenceFragment
                     .apply();
             return true;
         }
+        if (PreferenceKeys.PREF_EXPORT_PAGE_LOADS.equals(preference.getKey())) {
+            new ExportPageLoadsTask(getActivity()).execute();
+            return true;
+        }
         return false;
     }
+
+    /**
+     * Writes the page load timelines to the app's external files directory,
+     * where they can be pulled with adb and compared across builds. The
+     * export holds hosts but no urls, and no private tab is ever traced.
+     */
+    private static class ExportPageLoadsTask extends AsyncTask<Void, Void, File> {
+        private final Context mContext;
+
+        ExportPageLoadsTask(Context context) {
+            mContext = context.getApplicationContext();
+        }
+
+        @Override
+        protected File doInBackground(Void... params) {
+            File dir = mContext.getExternalFilesDir(null);
+            if (dir == null) {
+                return null;
+            }
+            File file = new File(dir, PAGE_LOADS_FILE);
+            String json = Performance.getPageLoadTracer().toJson(Build.FINGERPRINT);
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(file);
+                out.write(json.getBytes("UTF-8"));
+                return file;
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Failed to export page loads", e);
+                return null;
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected void onPostExecute(File file) {
+            Toast.makeText(mContext, file != null ? file.getPath()
+                    : mContext.getString(R.string.pref_development_export_page_loads_failed),
+                    Toast.LENGTH_LONG).show();
+        }
+    }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.preferences;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.provider.BrowserContract.Bookmarks;
+
+import com.android.browser.provider.BrowserProvider2.OriginMetadata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bookmark titles and favicons of web storage and geolocation origins, kept
+ * across openings of the website settings screen until the bookmarks change.
+ */
+class OriginMetadataCache {
+
+    static class Metadata {
+        final String title;
+        final Bitmap icon;
+
+        Metadata(String title, Bitmap icon) {
+            this.title = title;
+            this.icon = icon;
+        }
+    }
+
+    // Origins without bookmark data map to this, so they aren't looked up again
+    private static final Metadata NONE = new Metadata(null, null);
+
+    private static OriginMetadataCache sInstance;
+
+    private final ContentResolver mResolver;
+    // Guarded by this
+    private final HashMap<String, Metadata> mOrigins = new HashMap<String, Metadata>();
+    private final HashMap<String, Bitmap> mIcons = new HashMap<String, Bitmap>();
+
+    static synchronized OriginMetadataCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new OriginMetadataCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private OriginMetadataCache(Context context) {
+        mResolver = context.getContentResolver();
+        mResolver.registerContentObserver(Bookmarks.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        clear();
+                    }
+                });
+    }
+
+    synchronized void clear() {
+        mOrigins.clear();
+        mIcons.clear();
+    }
+
+    /**
+     * Returns the metadata of the given origins that have bookmark data,
+     * querying the provider only for origins not looked up before. Must not
+     * be called on the UI thread.
+     */
+    Map<String, Metadata> get(Collection<String> origins) {
+        HashMap<String, Metadata> result = new HashMap<String, Metadata>();
+        ArrayList<String> missing = new ArrayList<String>();
+        synchronized (this) {
+            for (String origin : origins) {
+                Metadata m = mOrigins.get(origin);
+                if (m == null) {
+                    missing.add(origin);
+                } else if (m != NONE) {
+                    result.put(origin, m);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        HashMap<String, Metadata> found = new HashMap<String, Metadata>();
+        Cursor c = mResolver.query(OriginMetadata.CONTENT_URI, null, null,
+                missing.toArray(new String[missing.size()]), null);
+        if (c != null) {
+            try {
+                int originIndex = c.getColumnIndex(OriginMetadata.ORIGIN);
+                int hostIndex = c.getColumnIndex(OriginMetadata.HOST);
+                int titleIndex = c.getColumnIndex(OriginMetadata.TITLE);
+                int faviconIndex = c.getColumnIndex(OriginMetadata.FAVICON);
+                while (c.moveToNext()) {
+                    Bitmap icon = getIcon(c.getString(hostIndex), c.getBlob(faviconIndex));
+                    found.put(c.getString(originIndex),
+                            new Metadata(c.getString(titleIndex), icon));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        synchronized (this) {
+            for (String origin : missing) {
+                Metadata m = found.get(origin);
+                mOrigins.put(origin, m != null ? m : NONE);
+            }
+        }
+        result.putAll(found);
+        return result;
+    }
+
+    // Origins on the same host share one decoded favicon
+    private Bitmap getIcon(String host, byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        synchronized (this) {
+            Bitmap icon = mIcons.get(host);
+            if (icon != null) {
+                return icon;
+            }
+        }
+        Bitmap icon = BitmapFactory.decodeByteArray(data, 0, data.length);
+        if (icon != null) {
+            synchronized (this) {
+                mIcons.put(host, icon);
+            }
+        }
+        return icon;
+    }
+}
@@ -20,7 +20,6 @@ import android.app.AlertDialog;
 import android.app.ListFragment;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
@@ -29,7 +28,6 @@ import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.preference.PreferenceActivity;
-import android.provider.BrowserContract.Bookmarks;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -43,11 +41,12 @@ import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.android.browser.BrowserSettings;
 import com.android.browser.R;
+import com.android.browser.WebStorageAccounting;
 import com.android.browser.WebStorageSizeManager;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -64,6 +63,12 @@ public class WebsiteSettingsFragment extends ListFragment implements OnClickList
     private static String sMBStored = null;
     private SiteAdapter mAdapter = null;
     private Site mSite = null;
+    private final ValueCallback<WebStorageAccounting.Snapshot> mStorageListener =
+            new ValueCallback<WebStorageAccounting.Snapshot>() {
+        public void onReceiveValue(WebStorageAccounting.Snapshot snapshot) {
+            mAdapter.showOrigins(snapshot);
+        }
+    };
 
     static class Site implements Parcelable {
         private String mOrigin;
@@ -201,6 +206,8 @@ public class WebsiteSettingsFragment extends ListFragment implements OnClickList
         private Bitmap mLocationAllowedIcon;
         private Bitmap mLocationDisallowedIcon;
         private Site mCurrentSite;
+        // Usage of the origins, from the last snapshot shown
+        private WebStorageAccounting.Snapshot mStorage;
 
         public SiteAdapter(Context context, int rsc) {
             this(context, rsc, null);
@@ -253,18 +260,24 @@ public class WebsiteSettingsFragment extends ListFragment implements OnClickList
             // http://www.google.com:80 both record a port of 0 and hence
             // toString() == 'http://www.google.com' for both.
 
-            WebStorage.getInstance().getOrigins(new ValueCallback<Map>() {
-                public void onReceiveValue(Map origins) {
-                    Map<String, Site> sites = new HashMap<String, Site>();
-                    if (origins != null) {
-                        Iterator<String> iter = origins.keySet().iterator();
-                        while (iter.hasNext()) {
-                            addFeatureToSite(sites, iter.next(), Site.FEATURE_WEB_STORAGE);
-                        }
-                    }
-                    askForGeolocation(sites);
-                }
-            });
+            // The last snapshot is shown right away. If it is stale, the
+            // fragment's refresh listener shows the new one once WebStorage
+            // has counted the origins.
+            WebStorageAccounting accounting = getAccounting();
+            WebStorageAccounting.Snapshot snapshot = accounting.peekSnapshot();
+            if (snapshot != null) {
+                showOrigins(snapshot);
+            }
+            accounting.requestRefresh();
+        }
+
+        public void showOrigins(WebStorageAccounting.Snapshot snapshot) {
+            mStorage = snapshot;
+            Map<String, Site> sites = new HashMap<String, Site>();
+            for (WebStorageAccounting.OriginUsage usage : snapshot.getOrigins()) {
+                addFeatureToSite(sites, usage.origin, Site.FEATURE_WEB_STORAGE);
+            }
+            askForGeolocation(sites);
         }
 
         public void askForGeolocation(final Map<String, Site> sites) {
@@ -283,9 +296,8 @@ public class WebsiteSettingsFragment extends ListFragment implements OnClickList
         }
 
         public void populateIcons(Map<String, Site> sites) {
-            // Create a map from host to origin. This is used to add metadata
-            // (title, icon) for this origin from the bookmarks DB. We must do
-            // the DB access on a background thread.
+            // Add metadata (title, icon) for the origins from the bookmarks
+            // DB. We must do the DB access on a background thread.
             new UpdateFromBookmarksDbTask(this.getContext(), sites).execute();
         }
 
@@ -301,71 +313,30 @@ public class WebsiteSettingsFragment extends ListFragment implements OnClickList
             }
 
             protected Void doInBackground(Void... unused) {
-                HashMap<String, Set<Site>> hosts = new HashMap<String, Set<Site>>();
-                Set<Map.Entry<String, Site>> elements = mSites.entrySet();
-                Iterator<Map.Entry<String, Site>> originIter = elements.iterator();
-                while (originIter.hasNext()) {
-                    Map.Entry<String, Site> entry = originIter.next();
-                    Site site = entry.getValue();
-                    String host = Uri.parse(entry.getKey()).getHost();
-                    Set<Site> hostSites = null;
-                    if (hosts.containsKey(host)) {
-                        hostSites = (Set<Site>)hosts.get(host);
-                    } else {
-                        hostSites = new HashSet<Site>();
-                        hosts.put(host, hostSites);
+                // If we have bookmark data for a host used by any of our
+                // origins, use it to set their title and favicon. The title
+                // is only set from a bookmark of the origin's root (i.e.
+                // www.google.com), as website settings act on the origin as
+                // a whole rather than a single page under that origin.
+                Map<String, OriginMetadataCache.Metadata> metadata =
+                        OriginMetadataCache.getInstance(mContext).get(mSites.keySet());
+                for (Map.Entry<String, OriginMetadataCache.Metadata> entry
+                        : metadata.entrySet()) {
+                    Site site = mSites.get(entry.getKey());
+                    OriginMetadataCache.Metadata m = entry.getValue();
+                    if (site == null) {
+                        continue;
                     }
-                    hostSites.add(site);
-                }
-
-                // Check the bookmark DB. If we have data for a host used by any of
-                // our origins, use it to set their title and favicon
-                Cursor c = mContext.getContentResolver().query(Bookmarks.CONTENT_URI,
-                        new String[] { Bookmarks.URL, Bookmarks.TITLE, Bookmarks.FAVICON },
-                        Bookmarks.IS_FOLDER + " == 0", null, null);
-
-                if (c != null) {
-                    if (c.moveToFirst()) {
-                        int urlIndex = c.getColumnIndex(Bookmarks.URL);
-                        int titleIndex = c.getColumnIndex(Bookmarks.TITLE);
-                        int faviconIndex = c.getColumnIndex(Bookmarks.FAVICON);
-                        do {
-                            String url = c.getString(urlIndex);
-                            String host = Uri.parse(url).getHost();
-                            if (hosts.containsKey(host)) {
-                                String title = c.getString(titleIndex);
-                                Bitmap bmp = null;
-                                byte[] data = c.getBlob(faviconIndex);
-                                if (data != null) {
-                                    bmp = BitmapFactory.decodeByteArray(data, 0, data.length);
-                                }
-                                Set matchingSites = (Set) hosts.get(host);
-                                Iterator<Site> sitesIter = matchingSites.iterator();
-                                while (sitesIter.hasNext()) {
-                                    Site site = sitesIter.next();
-                                    // We should only set the title if the bookmark is for the root
-                                    // (i.e. www.google.com), as website settings act on the origin
-                                    // as a whole rather than a single page under that origin. If the
-                                    // user has bookmarked a page under the root but *not* the root,
-                                    // then we risk displaying the title of that page which may or
-                                    // may not have any relevance to the origin.
-                                    if (url.equals(site.getOrigin()) ||
-                                            (new String(site.getOrigin()+"/")).equals(url)) {
-                                        mDataSetChanged = true;
-                                        site.setTitle(title);
-                                    }
-
-                                    if (bmp != null) {
-                                        mDataSetChanged = true;
-                                        site.setIcon(bmp);
-                                    }
-                                }
-                            }
-                        } while (c.moveToNext());
+                    if (m.title != null) {
+                        mDataSetChanged = true;
+                        site.setTitle(m.title);
+                    }
+                    if (m.icon != null) {
+                        mDataSetChanged = true;
+                        site.setIcon(m.icon);
                     }
-                    c.close();
                 }
-            return null;
+                return null;
             }
 
             protected void onPostExecute(Void unused) {
@@ -506,14 +477,11 @@ public class WebsiteSettingsFragment extends ListFragment implements OnClickList
 
                 String origin = site.getOrigin();
                 if (site.hasFeature(Site.FEATURE_WEB_STORAGE)) {
-                    WebStorage.getInstance().getUsageForOrigin(origin, new ValueCallback<Long>() {
-                        public void onReceiveValue(Long value) {
-                            if (value != null) {
-                                setIconForUsage(usageIcon, value.longValue());
-                                usageIcon.setVisibility(View.VISIBLE);
-                            }
-                        }
-                    });
+                    WebStorageAccounting.OriginUsage usage = getUsage(origin);
+                    if (usage != null) {
+                        setIconForUsage(usageIcon, usage.usage);
+                        usageIcon.setVisibility(View.VISIBLE);
+                    }
                 }
 
                 if (site.hasFeature(Site.FEATURE_GEOLOCATION)) {
@@ -538,17 +506,13 @@ public class WebsiteSettingsFragment extends ListFragment implements OnClickList
                 String origin = mCurrentSite.getOrigin();
                 switch (mCurrentSite.getFeatureByIndex(position)) {
                     case Site.FEATURE_WEB_STORAGE:
-                        WebStorage.getInstance().getUsageForOrigin(origin, new ValueCallback<Long>() {
-                            public void onReceiveValue(Long value) {
-                                if (value != null) {
-                                    String usage = sizeValueToString(value.longValue()) + " " + sMBStored;
-                                    title.setText(R.string.webstorage_clear_data_title);
-                                    subtitle.setText(usage);
-                                    subtitle.setVisibility(View.VISIBLE);
-                                    setIconForUsage(featureIcon, value.longValue());
-                                }
-                            }
-                        });
+                        WebStorageAccounting.OriginUsage usage = getUsage(origin);
+                        if (usage != null) {
+                            title.setText(R.string.webstorage_clear_data_title);
+                            subtitle.setText(sizeValueToString(usage.usage) + " " + sMBStored);
+                            subtitle.setVisibility(View.VISIBLE);
+                            setIconForUsage(featureIcon, usage.usage);
+                        }
                         break;
                     case Site.FEATURE_GEOLOCATION:
                         title.setText(R.string.geolocation_settings_page_title);
@@ -586,6 +550,7 @@ public class WebsiteSettingsFragment extends ListFragment implements OnClickList
                                                new AlertDialog.OnClickListener() {
                                 public void onClick(DialogInterface dlg, int which) {
                                     WebStorage.getInstance().deleteOrigin(mCurrentSite.getOrigin());
+                                    getAccounting().invalidate();
                                     // If this site has no more features, then go back to the
                                     // origins list.
                                     mCurrentSite.removeFeature(Site.FEATURE_WEB_STORAGE);
@@ -630,6 +595,10 @@ public class WebsiteSettingsFragment extends ListFragment implements OnClickList
             }
         }
 
+        private WebStorageAccounting.OriginUsage getUsage(String origin) {
+            return mStorage != null ? mStorage.getOrigin(origin) : null;
+        }
+
         public Site currentSite() {
             return mCurrentSite;
         }
@@ -668,9 +637,20 @@ public class WebsiteSettingsFragment extends ListFragment implements OnClickList
     @Override
     public void onResume() {
         super.onResume();
+        getAccounting().addRefreshListener(mStorageListener);
         mAdapter.askForOrigins();
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        getAccounting().removeRefreshListener(mStorageListener);
+    }
+
+    private static WebStorageAccounting getAccounting() {
+        return BrowserSettings.getInstance().getWebStorageSizeManager().getAccounting();
+    }
+
     private void finish() {
         PreferenceActivity activity = (PreferenceActivity) getActivity();
         if (activity != null) {
@@ -689,6 +669,7 @@ public class WebsiteSettingsFragment extends ListFragment implements OnClickList
                             new AlertDialog.OnClickListener() {
                                 public void onClick(DialogInterface dlg, int which) {
                                     WebStorage.getInstance().deleteAllData();
+                                    getAccounting().invalidate();
                                     GeolocationPermissions.getInstance().clearAll();
                                     WebStorageSizeManager.resetLastOutOfSpaceNotificationTime();
                                     mAdapter.askForOrigins();
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.provider;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the results of recent bookmark folder listings, so that opening
+ * a folder the bookmarks page, folder picker and widget have all just
+ * listed costs no SQL.
+ *
+ * An entry depends on one folder and is dropped when a transaction that
+ * changed a bookmark in that folder ends. Every invalidation bumps a
+ * version, and a result is only stored if the version did not change
+ * while it was read, so a listing read before a commit is never cached
+ * after it.
+ */
+class BookmarksFolderCache {
+
+    // An entry listing more than one folder, dropped by any bookmark change
+    static final long ANY_FOLDER = -1;
+
+    private static final int MAX_SIZE = 1024 * 1024;
+    // Rough cost of a row and of a non-blob value, in bytes
+    private static final int ROW_SIZE = 16;
+    private static final int VALUE_SIZE = 16;
+
+    private static class Entry {
+        final long folder;
+        final String[] columns;
+        final Object[][] rows;
+        final int size;
+
+        Entry(long folder, String[] columns, Object[][] rows, int size) {
+            this.folder = folder;
+            this.columns = columns;
+            this.rows = rows;
+            this.size = size;
+        }
+
+        Cursor newCursor() {
+            MatrixCursor c = new MatrixCursor(columns, rows.length);
+            for (Object[] row : rows) {
+                c.addRow(row);
+            }
+            return c;
+        }
+    }
+
+    private final LruCache<String, Entry> mEntries = new LruCache<String, Entry>(MAX_SIZE) {
+        @Override
+        protected int sizeOf(String key, Entry value) {
+            return value.size;
+        }
+    };
+
+    // Guarded by this
+    private long mVersion;
+    private int mInvalidations;
+
+    static String key(String uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        return uri + '\0' + Arrays.toString(projection) + '\0' + selection
+                + '\0' + Arrays.toString(selectionArgs) + '\0' + sortOrder;
+    }
+
+    /**
+     * Returns a new cursor over the cached listing for the key, or null.
+     */
+    Cursor get(String key) {
+        Entry entry = mEntries.get(key);
+        return entry != null ? entry.newCursor() : null;
+    }
+
+    /**
+     * Returns the version to pass to {@link #put} for a listing read now.
+     */
+    synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Reads the listing of the folder out of the cursor and closes it.
+     * Returns a cursor over the listing, which is cached unless the cache
+     * was invalidated since version was read.
+     */
+    Cursor put(String key, long folder, long version, Cursor c) {
+        String[] columns = c.getColumnNames();
+        Object[][] rows = new Object[c.getCount()][];
+        int size = 0;
+        try {
+            int i = 0;
+            while (c.moveToNext()) {
+                Object[] row = new Object[columns.length];
+                for (int col = 0; col < columns.length; col++) {
+                    switch (c.getType(col)) {
+                    case Cursor.FIELD_TYPE_BLOB:
+                        byte[] blob = c.getBlob(col);
+                        row[col] = blob;
+                        size += blob.length;
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[col] = c.getDouble(col);
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[col] = c.getLong(col);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[col] = c.getString(col);
+                        break;
+                    }
+                    size += VALUE_SIZE;
+                }
+                rows[i++] = row;
+                size += ROW_SIZE;
+            }
+        } finally {
+            c.close();
+        }
+        Entry entry = new Entry(folder, columns, rows, size);
+        synchronized (this) {
+            if (version == mVersion) {
+                mEntries.put(key, entry);
+            }
+        }
+        return entry.newCursor();
+    }
+
+    /**
+     * Drops the listings of the given folders, and those of more than one
+     * folder. Call once the transaction that changed them has ended.
+     */
+    synchronized void invalidate(Set<Long> folders) {
+        mVersion++;
+        mInvalidations++;
+        for (Map.Entry<String, Entry> e : mEntries.snapshot().entrySet()) {
+            long folder = e.getValue().folder;
+            if (folder == ANY_FOLDER || folders.contains(folder)) {
+                mEntries.remove(e.getKey());
+            }
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mVersion++;
+        mInvalidations++;
+        mEntries.evictAll();
+    }
+
+    /**
+     * Returns a row of hits, misses, invalidations and entries, named after
+     * the columns of {@link BrowserProvider2.FolderCacheStats}.
+     */
+    synchronized Cursor getStats() {
+        MatrixCursor c = new MatrixCursor(new String[] {
+                BrowserProvider2.FolderCacheStats.HITS,
+                BrowserProvider2.FolderCacheStats.MISSES,
+                BrowserProvider2.FolderCacheStats.INVALIDATIONS,
+                BrowserProvider2.FolderCacheStats.ENTRIES });
+        c.newRow().add(mEntries.hitCount()).add(mEntries.missCount())
+                .add(mInvalidations).add(mEntries.snapshot().size());
+        return c;
+    }
+}
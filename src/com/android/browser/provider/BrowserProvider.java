@@ -83,6 +83,18 @@ public class BrowserProvider extends ContentProvider {
     private static final int SUGGEST_COLUMN_QUERY_ID = 8;
     private static final int SUGGEST_COLUMN_INTENT_EXTRA_DATA = 9;
 
+    // suggestion row types
+    private static final int TYPE_WEB_SEARCH = 0;
+    private static final int TYPE_HISTORY = 1;
+    private static final int TYPE_SUGGESTION = 2;
+
+    private static final String ICON_BOOKMARK =
+            Integer.toString(R.drawable.ic_search_category_bookmark);
+    private static final String ICON_HISTORY =
+            Integer.toString(R.drawable.ic_search_category_history);
+    private static final String ICON_SUGGEST =
+            Integer.toString(R.drawable.ic_search_category_suggest);
+
     // how many suggestions will be shown in dropdown
     // 0..SHORT: filled by browser db
     private static final int MAX_SUGGEST_SHORT_SMALL = 3;
@@ -428,6 +440,9 @@ public class BrowserProvider extends ContentProvider {
         private int     mSuggestText2UrlId;
         private int     mSuggestQueryId;
         private int     mSuggestIntentExtraDataId;
+        private String  mSearchTheWeb;
+        // The columns of the current row
+        private final String[] mRow = new String[COLUMNS.length];
 
         public MySuggestionCursor(Cursor hc, Cursor sc, String string) {
             mHistoryCursor = hc;
@@ -439,6 +454,9 @@ public class BrowserProvider extends ContentProvider {
             }
             mString = string;
             mIncludeWebSearch = string.length() > 0;
+            if (mIncludeWebSearch) {
+                mSearchTheWeb = getContext().getString(R.string.search_the_web);
+            }
 
             // Some web suggest providers only give suggestions and have no description string for
             // items. The order of the result columns may be different as well. So retrieve the
@@ -468,27 +486,89 @@ public class BrowserProvider extends ContentProvider {
             if (mHistoryCursor == null) {
                 return false;
             }
-            if (mIncludeWebSearch) {
-                if (mHistoryCount == 0 && newPosition == 0) {
-                    return true;
-                } else if (mHistoryCount > 0) {
-                    if (newPosition == 0) {
-                        mHistoryCursor.moveToPosition(0);
-                        return true;
-                    } else if (newPosition == 1) {
-                        return true;
-                    }
-                }
-                newPosition--;
-            }
-            if (mHistoryCount > newPosition) {
-                mHistoryCursor.moveToPosition(newPosition);
+            int type;
+            int position = newPosition;
+            if (mIncludeWebSearch && position == (mHistoryCount > 0 ? 1 : 0)) {
+                type = TYPE_WEB_SEARCH;
             } else {
-                mSuggestCursor.moveToPosition(newPosition - mHistoryCount);
+                if (mIncludeWebSearch && position > 0) {
+                    position--;
+                }
+                if (mHistoryCount > position) {
+                    mHistoryCursor.moveToPosition(position);
+                    type = TYPE_HISTORY;
+                } else {
+                    mSuggestCursor.moveToPosition(position - mHistoryCount);
+                    type = TYPE_SUGGESTION;
+                }
             }
+            fillRow(type);
             return true;
         }
 
+        /**
+         * Computes every column of the row the cursors are on, so the
+         * strings are built once per row rather than on each getString.
+         */
+        private void fillRow(int type) {
+            String[] row = mRow;
+            switch (type) {
+                case TYPE_WEB_SEARCH:
+                    row[SUGGEST_COLUMN_INTENT_ACTION_ID] = Intent.ACTION_SEARCH;
+                    row[SUGGEST_COLUMN_INTENT_DATA_ID] = null;
+                    row[SUGGEST_COLUMN_TEXT_1_ID] = mString;
+                    row[SUGGEST_COLUMN_TEXT_2_ID] = mSearchTheWeb;
+                    row[SUGGEST_COLUMN_TEXT_2_URL_ID] = null;
+                    row[SUGGEST_COLUMN_ICON_1_ID] = ICON_SUGGEST;
+                    row[SUGGEST_COLUMN_QUERY_ID] = mString;
+                    row[SUGGEST_COLUMN_INTENT_EXTRA_DATA] = null;
+                    break;
+
+                case TYPE_HISTORY: {
+                    String url = mHistoryCursor.getString(1);
+                    String title = mHistoryCursor.getString(2 /* webpage title */);
+                    row[SUGGEST_COLUMN_INTENT_ACTION_ID] = Intent.ACTION_VIEW;
+                    row[SUGGEST_COLUMN_INTENT_DATA_ID] = url;
+                    // If the webpage title is empty the stripped url goes in
+                    // its place, and the second line is left empty
+                    if (TextUtils.isEmpty(title) || TextUtils.getTrimmedLength(title) == 0) {
+                        row[SUGGEST_COLUMN_TEXT_1_ID] = stripUrl(url);
+                        row[SUGGEST_COLUMN_TEXT_2_URL_ID] = null;
+                    } else {
+                        row[SUGGEST_COLUMN_TEXT_1_ID] = title;
+                        row[SUGGEST_COLUMN_TEXT_2_URL_ID] = stripUrl(url);
+                    }
+                    row[SUGGEST_COLUMN_TEXT_2_ID] = null;  // Use TEXT_2_URL instead
+                    row[SUGGEST_COLUMN_ICON_1_ID] = mHistoryCursor.getInt(3) == 1
+                            ? ICON_BOOKMARK : ICON_HISTORY;
+                    // Return the url in the intent query column. This is ignored
+                    // within the browser because our searchable is set to
+                    // android:searchMode="queryRewriteFromData", but it is used by
+                    // global search for query rewriting.
+                    row[SUGGEST_COLUMN_QUERY_ID] = url;
+                    row[SUGGEST_COLUMN_INTENT_EXTRA_DATA] = null;
+                    break;
+                }
+
+                case TYPE_SUGGESTION:
+                    row[SUGGEST_COLUMN_INTENT_ACTION_ID] = Intent.ACTION_SEARCH;
+                    row[SUGGEST_COLUMN_INTENT_DATA_ID] = null;
+                    row[SUGGEST_COLUMN_TEXT_1_ID] = getSuggestString(mSuggestText1Id);
+                    row[SUGGEST_COLUMN_TEXT_2_ID] = getSuggestString(mSuggestText2Id);
+                    row[SUGGEST_COLUMN_TEXT_2_URL_ID] = getSuggestString(mSuggestText2UrlId);
+                    row[SUGGEST_COLUMN_ICON_1_ID] = ICON_SUGGEST;
+                    row[SUGGEST_COLUMN_QUERY_ID] = getSuggestString(mSuggestQueryId);
+                    row[SUGGEST_COLUMN_INTENT_EXTRA_DATA] =
+                            getSuggestString(mSuggestIntentExtraDataId);
+                    break;
+            }
+            row[SUGGEST_COLUMN_ICON_2_ID] = "0";
+        }
+
+        private String getSuggestString(int columnIndex) {
+            return columnIndex != -1 ? mSuggestCursor.getString(columnIndex) : null;
+        }
+
         @Override
         public int getCount() {
             if (mIncludeWebSearch) {
@@ -506,111 +586,7 @@ public class BrowserProvider extends ContentProvider {
         @Override
         public String getString(int columnIndex) {
             if ((mPos != -1 && mHistoryCursor != null)) {
-                int type = -1; // 0: web search; 1: history; 2: suggestion
-                if (mIncludeWebSearch) {
-                    if (mHistoryCount == 0 && mPos == 0) {
-                        type = 0;
-                    } else if (mHistoryCount > 0) {
-                        if (mPos == 0) {
-                            type = 1;
-                        } else if (mPos == 1) {
-                            type = 0;
-                        }
-                    }
-                    if (type == -1) type = (mPos - 1) < mHistoryCount ? 1 : 2;
-                } else {
-                    type = mPos < mHistoryCount ? 1 : 2;
-                }
-
-                switch(columnIndex) {
-                    case SUGGEST_COLUMN_INTENT_ACTION_ID:
-                        if (type == 1) {
-                            return Intent.ACTION_VIEW;
-                        } else {
-                            return Intent.ACTION_SEARCH;
-                        }
-
-                    case SUGGEST_COLUMN_INTENT_DATA_ID:
-                        if (type == 1) {
-                            return mHistoryCursor.getString(1);
-                        } else {
-                            return null;
-                        }
-
-                    case SUGGEST_COLUMN_TEXT_1_ID:
-                        if (type == 0) {
-                            return mString;
-                        } else if (type == 1) {
-                            return getHistoryTitle();
-                        } else {
-                            if (mSuggestText1Id == -1) return null;
-                            return mSuggestCursor.getString(mSuggestText1Id);
-                        }
-
-                    case SUGGEST_COLUMN_TEXT_2_ID:
-                        if (type == 0) {
-                            return getContext().getString(R.string.search_the_web);
-                        } else if (type == 1) {
-                            return null;  // Use TEXT_2_URL instead
-                        } else {
-                            if (mSuggestText2Id == -1) return null;
-                            return mSuggestCursor.getString(mSuggestText2Id);
-                        }
-
-                    case SUGGEST_COLUMN_TEXT_2_URL_ID:
-                        if (type == 0) {
-                            return null;
-                        } else if (type == 1) {
-                            return getHistoryUrl();
-                        } else {
-                            if (mSuggestText2UrlId == -1) return null;
-                            return mSuggestCursor.getString(mSuggestText2UrlId);
-                        }
-
-                    case SUGGEST_COLUMN_ICON_1_ID:
-                        if (type == 1) {
-                            if (mHistoryCursor.getInt(3) == 1) {
-                                return Integer.valueOf(
-                                        R.drawable.ic_search_category_bookmark)
-                                        .toString();
-                            } else {
-                                return Integer.valueOf(
-                                        R.drawable.ic_search_category_history)
-                                        .toString();
-                            }
-                        } else {
-                            return Integer.valueOf(
-                                    R.drawable.ic_search_category_suggest)
-                                    .toString();
-                        }
-
-                    case SUGGEST_COLUMN_ICON_2_ID:
-                        return "0";
-
-                    case SUGGEST_COLUMN_QUERY_ID:
-                        if (type == 0) {
-                            return mString;
-                        } else if (type == 1) {
-                            // Return the url in the intent query column. This is ignored
-                            // within the browser because our searchable is set to
-                            // android:searchMode="queryRewriteFromData", but it is used by
-                            // global search for query rewriting.
-                            return mHistoryCursor.getString(1);
-                        } else {
-                            if (mSuggestQueryId == -1) return null;
-                            return mSuggestCursor.getString(mSuggestQueryId);
-                        }
-
-                    case SUGGEST_COLUMN_INTENT_EXTRA_DATA:
-                        if (type == 0) {
-                            return null;
-                        } else if (type == 1) {
-                            return null;
-                        } else {
-                            if (mSuggestIntentExtraDataId == -1) return null;
-                            return mSuggestCursor.getString(mSuggestIntentExtraDataId);
-                        }
-                }
+                return mRow[columnIndex];
             }
             return null;
         }
@@ -679,37 +655,6 @@ public class BrowserProvider extends ContentProvider {
                 mSuggestCursor = null;
             }
         }
-
-        /**
-         * Provides the title (text line 1) for a browser suggestion, which should be the
-         * webpage title. If the webpage title is empty, returns the stripped url instead.
-         *
-         * @return the title string to use
-         */
-        private String getHistoryTitle() {
-            String title = mHistoryCursor.getString(2 /* webpage title */);
-            if (TextUtils.isEmpty(title) || TextUtils.getTrimmedLength(title) == 0) {
-                title = stripUrl(mHistoryCursor.getString(1 /* url */));
-            }
-            return title;
-        }
-
-        /**
-         * Provides the subtitle (text line 2) for a browser suggestion, which should be the
-         * webpage url. If the webpage title is empty, then the url should go in the title
-         * instead, and the subtitle should be empty, so this would return null.
-         *
-         * @return the subtitle string to use, or null if none
-         */
-        private String getHistoryUrl() {
-            String title = mHistoryCursor.getString(2 /* webpage title */);
-            if (TextUtils.isEmpty(title) || TextUtils.getTrimmedLength(title) == 0) {
-                return null;
-            } else {
-                return stripUrl(mHistoryCursor.getString(1 /* url */));
-            }
-        }
-
     }
 
     @Override
@@ -35,7 +35,9 @@ import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
 import android.provider.BaseColumns;
 import android.provider.Browser;
 import android.provider.Browser.BookmarkColumns;
@@ -66,12 +68,20 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.zip.CRC32;
 
 public class BrowserProvider2 extends SQLiteContentProvider {
 
     public static final String PARAM_GROUP_BY = "groupBy";
     public static final String PARAM_ALLOW_EMPTY_ACCOUNTS = "allowEmptyAccounts";
+    // Lists every bookmark under the folder at any depth, not just its children
+    public static final String PARAM_DESCENDANTS = "descendants";
+    // Row id of the images row of the url, in bookmarks, history, combined
+    // and images rows. Lets list UIs leave the image blobs out of their
+    // projection and fetch those of the rows they show from Images.
+    public static final String IMAGE_ID = "image_id";
 
     public static final String LEGACY_AUTHORITY = "browser";
     static final Uri LEGACY_AUTHORITY_URI = new Uri.Builder()
@@ -91,6 +101,84 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         public static final String URL = "url";
         public static final String TITLE = "title";
         public static final String IS_BOOKMARK = "bookmark";
+        /** Visits of the url, from its history entry */
+        public static final String VISITS = "visits";
+        public static final String DATE_LAST_VISITED = "date";
+        public static final String USER_ENTERED = "user_entered";
+        /**
+         * Frecency in thousandths, higher first. The scores of history rows
+         * compare the same whenever they were written, a bookmark scores at
+         * least its bonus as of its last write.
+         */
+        public static final String SCORE = "score";
+        /** Time for the weight of a visit to halve, in ms */
+        public static final long SCORE_HALF_LIFE = 14 * 24 * 60 * 60 * 1000L;
+        /** Weight of a typed visit, relative to a followed link */
+        public static final int SCORE_TYPED_BONUS = 2;
+        /** Fresh visits a bookmark counts as */
+        public static final int SCORE_BOOKMARK_BONUS = 5;
+    }
+
+    /**
+     * Title and favicon of the bookmarks of a set of origins, passed as the
+     * selection arguments. Returns one row per origin that has bookmark data.
+     */
+    public static interface OriginMetadata {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(
+                BrowserContract.AUTHORITY_URI, "origin_metadata");
+        public static final String ORIGIN = "origin";
+        public static final String HOST = "host";
+        /** Title of the bookmark of the origin's root page, if any */
+        public static final String TITLE = "title";
+        /** One favicon of a bookmark on the origin's host, if any */
+        public static final String FAVICON = "favicon";
+    }
+
+    /**
+     * For debugging: one row of counters of the cache of bookmark folder
+     * listings since the provider started.
+     */
+    public static interface FolderCacheStats {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(
+                BrowserContract.AUTHORITY_URI, "bookmarks/folder/cache");
+        /** Listings served from the cache */
+        public static final String HITS = "hits";
+        /** Listings read from the database */
+        public static final String MISSES = "misses";
+        /** Transactions that dropped cached listings */
+        public static final String INVALIDATIONS = "invalidations";
+        public static final String ENTRIES = "entries";
+    }
+
+    /**
+     * call() method returning the images of many urls in one round trip.
+     * Pass the url keys in URLS and the Images columns wanted in COLUMNS,
+     * favicons if none are given. The result holds a Bundle per column,
+     * from url to blob, or to {@link BrowserProvider2#hashImage} of the
+     * blob with HASHES_ONLY. Urls without the image are left out. Urls
+     * whose images did not fit in one transaction are in REMAINING.
+     */
+    public static interface ImageBatch {
+        public static final String METHOD = "get_images";
+        public static final String URLS = "urls";
+        public static final String COLUMNS = "columns";
+        public static final String HASHES_ONLY = "hashes_only";
+        public static final String REMAINING = "remaining";
+        public static final int MAX_URLS = 500;
+    }
+
+    /**
+     * Lets a copy of the visited urls follow history without reading it all
+     * again. CONTENT_URI is notified, not queried, when a transaction changes
+     * which urls are visited. Urls that became visited by insertion are the
+     * history rows with visits > 0 past the highest _id already read. Any
+     * other change bumps the generation kept in Settings under
+     * KEY_GENERATION, after which every url must be read again.
+     */
+    public static interface VisitedUrls {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(
+                BrowserContract.AUTHORITY_URI, "visited_urls");
+        public static final String KEY_GENERATION = "visited_urls_generation";
     }
 
     static final String TABLE_BOOKMARKS = "bookmarks";
@@ -101,6 +189,14 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final String TABLE_SETTINGS = "settings";
     static final String TABLE_SNAPSHOTS = "snapshots";
     static final String TABLE_THUMBNAILS = "thumbnails";
+    // Urls that may have lost their last reference since the last prune,
+    // filled by triggers
+    static final String TABLE_IMAGE_PRUNE_CANDIDATES = "image_prune_candidates";
+    // One row per bookmarked or visited url, maintained by triggers
+    static final String TABLE_OMNIBOX_SUGGESTIONS = "omnibox_suggestions";
+
+    // Lower-cased host of the bookmark url, maintained by triggers
+    static final String BOOKMARKS_HOST = "host";
 
     static final String TABLE_BOOKMARKS_JOIN_IMAGES = "bookmarks LEFT OUTER JOIN images " +
             "ON bookmarks.url = images." + Images.URL;
@@ -109,12 +205,16 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
     static final String VIEW_ACCOUNTS = "v_accounts";
     static final String VIEW_SNAPSHOTS_COMBINED = "v_snapshots_combined";
+    // Replaced by TABLE_OMNIBOX_SUGGESTIONS in version 36
     static final String VIEW_OMNIBOX_SUGGESTIONS = "v_omnibox_suggestions";
 
-    static final String FORMAT_COMBINED_JOIN_SUBQUERY_JOIN_IMAGES =
-            "history LEFT OUTER JOIN (%s) bookmarks " +
-            "ON history.url = bookmarks.url LEFT OUTER JOIN images " +
-            "ON history.url = images.url_key";
+    // Every url with a live bookmark or a history entry, joined with both.
+    // The format argument narrows the bookmarks joined, e.g. to an account.
+    static final String FORMAT_COMBINED_JOIN_HISTORY_BOOKMARKS_IMAGES =
+            "omnibox_suggestions combined LEFT OUTER JOIN history " +
+            "ON history.url = combined.url LEFT OUTER JOIN bookmarks " +
+            "ON bookmarks.url = combined.url AND %s LEFT OUTER JOIN images " +
+            "ON combined.url = images.url_key";
 
     static final String DEFAULT_SORT_HISTORY = History.DATE_LAST_VISITED + " DESC";
     static final String DEFAULT_SORT_ACCOUNTS =
@@ -133,21 +233,21 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     Integer.toString(R.drawable.ic_history)),
             qualifyColumn(TABLE_HISTORY, History.DATE_LAST_VISITED)};
 
-    private static final String SUGGEST_SELECTION =
-            "history.url LIKE ? OR history.url LIKE ? OR history.url LIKE ? OR history.url LIKE ?"
-            + " OR history.title LIKE ? OR bookmarks.title LIKE ?";
-
     private static final String ZERO_QUERY_SUGGEST_SELECTION =
             TABLE_HISTORY + "." + History.DATE_LAST_VISITED + " != 0";
 
+    // Only looks at the candidate urls, each with an index lookup
     private static final String IMAGE_PRUNE =
-            "url_key NOT IN (SELECT url FROM bookmarks " +
-            "WHERE url IS NOT NULL AND deleted == 0) AND url_key NOT IN " +
-            "(SELECT url FROM history WHERE url IS NOT NULL)";
+            "url_key IN (SELECT url_key FROM image_prune_candidates) " +
+            "AND NOT EXISTS (SELECT 1 FROM bookmarks " +
+            "WHERE bookmarks.url = images.url_key AND deleted == 0) " +
+            "AND NOT EXISTS (SELECT 1 FROM history " +
+            "WHERE history.url = images.url_key)";
 
     static final int THUMBNAILS = 10;
     static final int THUMBNAILS_ID = 11;
     static final int OMNIBOX_SUGGESTIONS = 20;
+    static final int ORIGIN_METADATA = 30;
 
     static final int BOOKMARKS = 1000;
     static final int BOOKMARKS_ID = 1001;
@@ -155,6 +255,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final int BOOKMARKS_FOLDER_ID = 1003;
     static final int BOOKMARKS_SUGGESTIONS = 1004;
     static final int BOOKMARKS_DEFAULT_FOLDER_ID = 1005;
+    static final int BOOKMARKS_FOLDER_CACHE_STATS = 1006;
 
     static final int HISTORY = 2000;
     static final int HISTORY_ID = 2001;
@@ -178,6 +279,12 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final int LEGACY_ID = 9001;
 
     public static final long FIXED_ID_ROOT = 1;
+    // Bookmark ids start at 1
+    static final long NO_FOLDER = 0;
+
+    // Blob bytes returned by one ImageBatch call, well under the 1MB binder
+    // transaction buffer the process shares with its other transactions
+    static final int MAX_IMAGE_BATCH_SIZE = 256 * 1024;
 
     // Default sort order for unsync'd bookmarks
     static final String DEFAULT_BOOKMARKS_SORT_ORDER =
@@ -195,8 +302,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final HashMap<String, String> HISTORY_PROJECTION_MAP = new HashMap<String, String>();
     static final HashMap<String, String> SYNC_STATE_PROJECTION_MAP = new HashMap<String, String>();
     static final HashMap<String, String> IMAGES_PROJECTION_MAP = new HashMap<String, String>();
-    static final HashMap<String, String> COMBINED_HISTORY_PROJECTION_MAP = new HashMap<String, String>();
-    static final HashMap<String, String> COMBINED_BOOKMARK_PROJECTION_MAP = new HashMap<String, String>();
+    static final HashMap<String, String> COMBINED_PROJECTION_MAP = new HashMap<String, String>();
     static final HashMap<String, String> SEARCHES_PROJECTION_MAP = new HashMap<String, String>();
     static final HashMap<String, String> SETTINGS_PROJECTION_MAP = new HashMap<String, String>();
 
@@ -209,6 +315,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         matcher.addURI(authority, "bookmarks/folder", BOOKMARKS_FOLDER);
         matcher.addURI(authority, "bookmarks/folder/#", BOOKMARKS_FOLDER_ID);
         matcher.addURI(authority, "bookmarks/folder/id", BOOKMARKS_DEFAULT_FOLDER_ID);
+        matcher.addURI(authority, "bookmarks/folder/cache", BOOKMARKS_FOLDER_CACHE_STATS);
         matcher.addURI(authority,
                 SearchManager.SUGGEST_URI_PATH_QUERY,
                 BOOKMARKS_SUGGESTIONS);
@@ -228,6 +335,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         matcher.addURI(authority, "thumbnails", THUMBNAILS);
         matcher.addURI(authority, "thumbnails/#", THUMBNAILS_ID);
         matcher.addURI(authority, "omnibox_suggestions", OMNIBOX_SUGGESTIONS);
+        matcher.addURI(authority, "origin_metadata", ORIGIN_METADATA);
 
         // Legacy
         matcher.addURI(LEGACY_AUTHORITY, "searches", SEARCHES);
@@ -294,6 +402,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     + Bookmarks.BOOKMARK_TYPE_OTHER_FOLDER
                 + " ELSE " + Bookmarks.BOOKMARK_TYPE_FOLDER
                 + " END AS " + Bookmarks.TYPE);
+        map.put(IMAGE_ID, TABLE_IMAGES + ".rowid AS " + IMAGE_ID);
 
         // Other bookmarks
         OTHER_BOOKMARKS_PROJECTION_MAP.putAll(BOOKMARKS_PROJECTION_MAP);
@@ -312,6 +421,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(History.DATE_LAST_VISITED, History.DATE_LAST_VISITED);
         map.put(History.VISITS, History.VISITS);
         map.put(History.USER_ENTERED, History.USER_ENTERED);
+        map.put(IMAGE_ID, TABLE_IMAGES + ".rowid AS " + IMAGE_ID);
 
         // Sync state
         map = SYNC_STATE_PROJECTION_MAP;
@@ -326,36 +436,29 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(Images.FAVICON, Images.FAVICON);
         map.put(Images.THUMBNAIL, Images.THUMBNAIL);
         map.put(Images.TOUCH_ICON, Images.TOUCH_ICON);
+        map.put(IMAGE_ID, "rowid AS " + IMAGE_ID);
 
-        // Combined history half
-        map = COMBINED_HISTORY_PROJECTION_MAP;
+        // Combined
+        map = COMBINED_PROJECTION_MAP;
         map.put(Combined._ID, bookmarkOrHistoryColumn(Combined._ID));
         map.put(Combined.TITLE, bookmarkOrHistoryColumn(Combined.TITLE));
-        map.put(Combined.URL, qualifyColumn(TABLE_HISTORY, Combined.URL));
-        map.put(Combined.DATE_CREATED, qualifyColumn(TABLE_HISTORY, Combined.DATE_CREATED));
-        map.put(Combined.DATE_LAST_VISITED, Combined.DATE_LAST_VISITED);
+        map.put(Combined.URL, "combined." + Combined.URL + " AS " + Combined.URL);
+        map.put(Combined.DATE_CREATED, "CASE WHEN " + TABLE_HISTORY + "." + History._ID +
+                " IS NOT NULL THEN " + TABLE_HISTORY + "." + History.DATE_CREATED +
+                " ELSE " + TABLE_BOOKMARKS + "." + Bookmarks.DATE_CREATED +
+                " END AS " + Combined.DATE_CREATED);
+        map.put(Combined.DATE_LAST_VISITED,
+                qualifyColumn(TABLE_HISTORY, Combined.DATE_LAST_VISITED));
         map.put(Combined.IS_BOOKMARK, "CASE WHEN " +
                 TABLE_BOOKMARKS + "." + Bookmarks._ID +
                 " IS NOT NULL THEN 1 ELSE 0 END AS " + Combined.IS_BOOKMARK);
-        map.put(Combined.VISITS, Combined.VISITS);
-        map.put(Combined.FAVICON, Combined.FAVICON);
-        map.put(Combined.THUMBNAIL, Combined.THUMBNAIL);
-        map.put(Combined.TOUCH_ICON, Combined.TOUCH_ICON);
-        map.put(Combined.USER_ENTERED, "NULL AS " + Combined.USER_ENTERED);
-
-        // Combined bookmark half
-        map = COMBINED_BOOKMARK_PROJECTION_MAP;
-        map.put(Combined._ID, Combined._ID);
-        map.put(Combined.TITLE, Combined.TITLE);
-        map.put(Combined.URL, Combined.URL);
-        map.put(Combined.DATE_CREATED, Combined.DATE_CREATED);
-        map.put(Combined.DATE_LAST_VISITED, "NULL AS " + Combined.DATE_LAST_VISITED);
-        map.put(Combined.IS_BOOKMARK, "1 AS " + Combined.IS_BOOKMARK);
-        map.put(Combined.VISITS, "0 AS " + Combined.VISITS);
+        map.put(Combined.VISITS, "IFNULL(" + TABLE_HISTORY + "." + History.VISITS +
+                ", 0) AS " + Combined.VISITS);
         map.put(Combined.FAVICON, Combined.FAVICON);
         map.put(Combined.THUMBNAIL, Combined.THUMBNAIL);
         map.put(Combined.TOUCH_ICON, Combined.TOUCH_ICON);
         map.put(Combined.USER_ENTERED, "NULL AS " + Combined.USER_ENTERED);
+        map.put(IMAGE_ID, TABLE_IMAGES + ".rowid AS " + IMAGE_ID);
 
         // Searches
         map = SEARCHES_PROJECTION_MAP;
@@ -390,10 +493,34 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     ContentObserver mWidgetObserver = null;
     boolean mUpdateWidgets = false;
     boolean mSyncToNetwork = true;
+    // Changes of the transaction in progress on the calling thread
+    private final ThreadLocal<TransactionChanges> mTransactionChanges =
+            new ThreadLocal<TransactionChanges>() {
+        @Override
+        protected TransactionChanges initialValue() {
+            return new TransactionChanges();
+        }
+    };
+    final BookmarksFolderCache mFolderCache = new BookmarksFolderCache();
+
+    /**
+     * What a transaction changed that is acted on once it commits. Each
+     * transaction runs on one thread and writes are serialized, so one per
+     * thread holds exactly the changes of that thread's transaction.
+     */
+    static final class TransactionChanges {
+        // Folders whose cached listings must be dropped
+        final HashSet<Long> folders = new HashSet<Long>();
+        boolean allFolders = false;
+        // Urls became visited through inserted history rows
+        boolean visitedUrlsAdded = false;
+        // The generation of VisitedUrls was bumped
+        boolean visitedUrlsReset = false;
+    }
 
     final class DatabaseHelper extends SQLiteOpenHelper {
         static final String DATABASE_NAME = "browser2.db";
-        static final int DATABASE_VERSION = 32;
+        static final int DATABASE_VERSION = 37;
         public DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             setWriteAheadLoggingEnabled(true);
@@ -421,10 +548,10 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     Bookmarks.SYNC2 + " TEXT," +
                     Bookmarks.SYNC3 + " TEXT," +
                     Bookmarks.SYNC4 + " TEXT," +
-                    Bookmarks.SYNC5 + " TEXT" +
+                    Bookmarks.SYNC5 + " TEXT," +
+                    BOOKMARKS_HOST + " TEXT" +
                     ");");
-
-            // TODO indices
+            createBookmarkHosts(db);
 
             db.execSQL("CREATE TABLE " + TABLE_HISTORY + "(" +
                     History._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -444,6 +571,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     ");");
             db.execSQL("CREATE INDEX imagesUrlIndex ON " + TABLE_IMAGES +
                     "(" + Images.URL + ")");
+            createIndices(db);
+            createImagePruning(db);
 
             db.execSQL("CREATE TABLE " + TABLE_SEARCHES + " (" +
                     Searches._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -469,8 +598,82 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             createOmniboxSuggestions(db);
         }
 
+        /**
+         * Creates the omnibox suggestions table, fills it from the current
+         * bookmarks and history and adds the triggers that keep it up to
+         * date, so a keystroke only costs an indexed prefix lookup.
+         */
         void createOmniboxSuggestions(SQLiteDatabase db) {
-            db.execSQL(SQL_CREATE_VIEW_OMNIBOX_SUGGESTIONS);
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_OMNIBOX_SUGGESTIONS + " ("
+                    + OmniboxSuggestions.URL + " TEXT PRIMARY KEY,"
+                    + OmniboxSuggestions._ID + " INTEGER NOT NULL,"
+                    + OmniboxSuggestions.TITLE + " TEXT,"
+                    + OmniboxSuggestions.IS_BOOKMARK + " INTEGER NOT NULL,"
+                    + OmniboxSuggestions.VISITS + " INTEGER NOT NULL,"
+                    + OmniboxSuggestions.DATE_LAST_VISITED + " INTEGER NOT NULL,"
+                    + OmniboxSuggestions.USER_ENTERED + " INTEGER NOT NULL,"
+                    + OmniboxSuggestions.SCORE + " INTEGER NOT NULL"
+                    + ");");
+            // LIKE 'prefix%' can only use an index with the NOCASE collation
+            db.execSQL("CREATE INDEX IF NOT EXISTS omniboxUrlIndex ON "
+                    + TABLE_OMNIBOX_SUGGESTIONS + "(" + OmniboxSuggestions.URL
+                    + " COLLATE NOCASE)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS omniboxTitleIndex ON "
+                    + TABLE_OMNIBOX_SUGGESTIONS + "(" + OmniboxSuggestions.TITLE
+                    + " COLLATE NOCASE)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS omniboxScoreIndex ON "
+                    + TABLE_OMNIBOX_SUGGESTIONS + "(" + OmniboxSuggestions.SCORE + " DESC)");
+            db.execSQL("INSERT OR REPLACE INTO " + TABLE_OMNIBOX_SUGGESTIONS
+                    + sqlSelectSuggestions(SQL_SUGGESTION_URLS));
+            for (String trigger : SQL_CREATE_TRIGGERS_OMNIBOX_SUGGESTIONS) {
+                db.execSQL(trigger);
+            }
+        }
+
+        /**
+         * Indices for the lookups made on every page load and bookmark
+         * listing. The url and parent indices also cover the deleted flag,
+         * so the planner prefers them to the much less selective
+         * deleted/folder index, which only serves the whole-table queries.
+         */
+        void createIndices(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS historyUrlIndex ON "
+                    + TABLE_HISTORY + "(" + History.URL + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS bookmarksUrlIndex ON "
+                    + TABLE_BOOKMARKS + "(" + Bookmarks.URL + ", "
+                    + Bookmarks.IS_DELETED + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS bookmarksParentIndex ON "
+                    + TABLE_BOOKMARKS + "(" + Bookmarks.PARENT + ", "
+                    + Bookmarks.IS_DELETED + ", " + Bookmarks.IS_FOLDER + ", "
+                    + Bookmarks.POSITION + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS bookmarksDeletedFolderIndex ON "
+                    + TABLE_BOOKMARKS + "(" + Bookmarks.IS_DELETED + ", "
+                    + Bookmarks.IS_FOLDER + ")");
+        }
+
+        /**
+         * Images are pruned incrementally: triggers note the urls whose
+         * bookmark or history rows went away, and pruneImages() only checks
+         * those instead of every image.
+         */
+        void createImagePruning(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_IMAGE_PRUNE_CANDIDATES + " ("
+                    + Images.URL + " TEXT PRIMARY KEY"
+                    + ");");
+            db.execSQL(SQL_CREATE_TRIGGER_BOOKMARKS_PRUNE_DELETE);
+            db.execSQL(SQL_CREATE_TRIGGER_BOOKMARKS_PRUNE_UPDATE);
+            db.execSQL(SQL_CREATE_TRIGGER_HISTORY_PRUNE_DELETE);
+            db.execSQL(SQL_CREATE_TRIGGER_HISTORY_PRUNE_UPDATE);
+            db.execSQL(SQL_CREATE_TRIGGER_IMAGES_PRUNE_INSERT);
+        }
+
+        void createBookmarkHosts(SQLiteDatabase db) {
+            db.execSQL(SQL_CREATE_TRIGGER_BOOKMARKS_HOST_INSERT);
+            db.execSQL(SQL_CREATE_TRIGGER_BOOKMARKS_HOST_UPDATE);
+            db.execSQL("CREATE INDEX IF NOT EXISTS bookmarksHostIndex ON "
+                    + TABLE_BOOKMARKS + "(" + BOOKMARKS_HOST + ")");
+            db.execSQL("UPDATE " + TABLE_BOOKMARKS + " SET " + BOOKMARKS_HOST
+                    + " = " + sqlHostOf(Bookmarks.URL));
         }
 
         void createThumbnails(SQLiteDatabase db) {
@@ -604,9 +807,34 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            if (oldVersion < 32) {
+            if (oldVersion < 37) {
+                // The triggers of version 36 compute the old scores, the
+                // rows are rewritten when they are recreated
+                for (String table : new String[] { TABLE_BOOKMARKS, TABLE_HISTORY }) {
+                    for (String event : new String[] {
+                            "insert", "update", "update_url", "delete" }) {
+                        db.execSQL("DROP TRIGGER IF EXISTS " + table + "_suggestions_"
+                                + event);
+                    }
+                }
+                db.execSQL("DROP VIEW IF EXISTS " + VIEW_OMNIBOX_SUGGESTIONS);
                 createOmniboxSuggestions(db);
             }
+            if (oldVersion < 35) {
+                createImagePruning(db);
+                // Images orphaned before the triggers existed are checked
+                // by the next prune too
+                db.execSQL("INSERT OR IGNORE INTO " + TABLE_IMAGE_PRUNE_CANDIDATES
+                        + " SELECT " + Images.URL + " FROM " + TABLE_IMAGES);
+            }
+            if (oldVersion < 34) {
+                createIndices(db);
+            }
+            if (oldVersion < 33) {
+                db.execSQL("ALTER TABLE " + TABLE_BOOKMARKS + " ADD COLUMN "
+                        + BOOKMARKS_HOST + " TEXT");
+                createBookmarkHosts(db);
+            }
             if (oldVersion < 31) {
                 createThumbnails(db);
             }
@@ -814,6 +1042,17 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
     @Override
     protected void onEndTransaction(boolean callerIsSyncAdapter) {
+        TransactionChanges changes = mTransactionChanges.get();
+        mTransactionChanges.remove();
+        if (changes.visitedUrlsAdded || changes.visitedUrlsReset) {
+            postNotifyUri(VisitedUrls.CONTENT_URI);
+        }
+        // Before the observers are notified, so they requery the database
+        if (changes.allFolders) {
+            mFolderCache.invalidateAll();
+        } else if (!changes.folders.isEmpty()) {
+            mFolderCache.invalidate(changes.folders);
+        }
         super.onEndTransaction(callerIsSyncAdapter);
         if (mUpdateWidgets) {
             if (mWidgetObserver == null) {
@@ -826,6 +1065,11 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         mSyncToNetwork = true;
     }
 
+    @Override
+    protected void onRollbackTransaction() {
+        mTransactionChanges.remove();
+    }
+
     @Override
     public String getType(Uri uri) {
         final int match = URI_MATCHER.match(uri);
@@ -878,8 +1122,157 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
         final int match = URI_MATCHER.match(uri);
+        long folder = getListedFolder(uri, match);
+        if (folder == NO_FOLDER) {
+            return queryDatabase(uri, match, projection, selection, selectionArgs, sortOrder);
+        }
+        String key = BookmarksFolderCache.key(uri.toString(), projection, selection,
+                selectionArgs, sortOrder);
+        Cursor cursor = mFolderCache.get(key);
+        if (cursor == null) {
+            long version = mFolderCache.getVersion();
+            cursor = queryDatabase(uri, match, projection, selection, selectionArgs, sortOrder);
+            // Changes of a transaction still open on this thread may roll back
+            if (cursor == null || mOpenHelper.getReadableDatabase().inTransaction()) {
+                return cursor;
+            }
+            cursor = mFolderCache.put(key, folder, version, cursor);
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), BrowserContract.AUTHORITY_URI);
+        return cursor;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!ImageBatch.METHOD.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        // call() is not covered by the provider's permissions
+        String permission = getReadPermission();
+        if (permission != null) {
+            getContext().enforceCallingOrSelfPermission(permission, null);
+        }
+        String[] urls = extras != null ? extras.getStringArray(ImageBatch.URLS) : null;
+        if (urls == null || urls.length > ImageBatch.MAX_URLS) {
+            throw new IllegalArgumentException("Expected at most " + ImageBatch.MAX_URLS
+                    + " " + ImageBatch.URLS);
+        }
+        String[] columns = extras.getStringArray(ImageBatch.COLUMNS);
+        if (columns == null) {
+            columns = new String[] { Images.FAVICON };
+        }
+        for (String column : columns) {
+            if (!Images.FAVICON.equals(column) && !Images.THUMBNAIL.equals(column)
+                    && !Images.TOUCH_ICON.equals(column)) {
+                throw new IllegalArgumentException("Unknown image column " + column);
+            }
+        }
+        return getImages(urls, columns, extras.getBoolean(ImageBatch.HASHES_ONLY));
+    }
+
+    /**
+     * Reads the images of the urls with one statement. Rows are added until
+     * MAX_IMAGE_BATCH_SIZE is reached, and the urls of the rest are listed
+     * as remaining. The first row is always added, so that a caller asking
+     * again for the remaining urls makes progress.
+     */
+    private Bundle getImages(String[] urls, String[] columns, boolean hashesOnly) {
+        Bundle[] images = new Bundle[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            images[i] = new Bundle();
+        }
+        ArrayList<String> remaining = new ArrayList<String>();
+        if (urls.length > 0) {
+            StringBuilder sql = new StringBuilder("SELECT " + Images.URL);
+            for (String column : columns) {
+                sql.append(", ").append(column);
+            }
+            sql.append(" FROM " + TABLE_IMAGES + " WHERE " + Images.URL + " IN (");
+            for (int i = 0; i < urls.length; i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            sql.append(")");
+            Cursor c = mOpenHelper.getReadableDatabase().rawQuery(sql.toString(), urls);
+            try {
+                byte[][] blobs = new byte[columns.length][];
+                int size = 0;
+                while (c.moveToNext()) {
+                    String url = c.getString(0);
+                    int rowSize = url.length() * 2;
+                    for (int i = 0; i < columns.length; i++) {
+                        blobs[i] = c.getBlob(i + 1);
+                        if (blobs[i] != null) {
+                            rowSize += hashesOnly ? 8 : blobs[i].length;
+                        }
+                    }
+                    if (size > 0 && size + rowSize > MAX_IMAGE_BATCH_SIZE) {
+                        remaining.add(url);
+                        continue;
+                    }
+                    size += rowSize;
+                    for (int i = 0; i < columns.length; i++) {
+                        if (blobs[i] == null) {
+                            continue;
+                        } else if (hashesOnly) {
+                            images[i].putLong(url, hashImage(blobs[i]));
+                        } else {
+                            images[i].putByteArray(url, blobs[i]);
+                        }
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        Bundle result = new Bundle();
+        for (int i = 0; i < columns.length; i++) {
+            result.putBundle(columns[i], images[i]);
+        }
+        result.putStringArray(ImageBatch.REMAINING,
+                remaining.toArray(new String[remaining.size()]));
+        return result;
+    }
+
+    /**
+     * Returns the hash ImageBatch.HASHES_ONLY returns for an image, for
+     * callers to check the images they have cached against.
+     */
+    public static long hashImage(byte[] image) {
+        CRC32 crc = new CRC32();
+        crc.update(image);
+        return ((long) image.length << 32) | crc.getValue();
+    }
+
+    /**
+     * Returns the folder whose children the query lists, ANY_FOLDER for a
+     * listing of several folders, or NO_FOLDER if the query is not a folder
+     * listing.
+     */
+    private long getListedFolder(Uri uri, int match) {
+        switch (match) {
+            case BOOKMARKS_FOLDER: {
+                String accountType = uri.getQueryParameter(Bookmarks.PARAM_ACCOUNT_TYPE);
+                String accountName = uri.getQueryParameter(Bookmarks.PARAM_ACCOUNT_NAME);
+                // The bookmarks bar of the account, and its other bookmarks folder
+                if (!isNullAccount(accountType) && !isNullAccount(accountName)) {
+                    return BookmarksFolderCache.ANY_FOLDER;
+                }
+                return FIXED_ID_ROOT;
+            }
+            case BOOKMARKS_FOLDER_ID: {
+                if (uri.getBooleanQueryParameter(PARAM_DESCENDANTS, false)) {
+                    return NO_FOLDER;
+                }
+                return ContentUris.parseId(uri);
+            }
+        }
+        return NO_FOLDER;
+    }
+
+    private Cursor queryDatabase(Uri uri, int match, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         String limit = uri.getQueryParameter(BrowserContract.PARAM_LIMIT);
         String groupBy = uri.getQueryParameter(PARAM_GROUP_BY);
@@ -915,8 +1308,13 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                             new String[] { Long.toString(ContentUris.parseId(uri)) });
                 } else if (match == BOOKMARKS_FOLDER_ID) {
                     // Tack on the ID of the specific folder requested
-                    selection = DatabaseUtils.concatenateWhere(selection,
-                            TABLE_BOOKMARKS + "." + Bookmarks.PARENT + "=?");
+                    if (uri.getBooleanQueryParameter(PARAM_DESCENDANTS, false)) {
+                        selection = DatabaseUtils.concatenateWhere(selection,
+                                sqlSubtree(Bookmarks.PARENT + "=?"));
+                    } else {
+                        selection = DatabaseUtils.concatenateWhere(selection,
+                                TABLE_BOOKMARKS + "." + Bookmarks.PARENT + "=?");
+                    }
                     selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
                             new String[] { Long.toString(ContentUris.parseId(uri)) });
                 }
@@ -1024,6 +1422,10 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 return c;
             }
 
+            case BOOKMARKS_FOLDER_CACHE_STATS: {
+                return mFolderCache.getStats();
+            }
+
             case BOOKMARKS_SUGGESTIONS: {
                 return doSuggestQuery(selection, selectionArgs, limit);
             }
@@ -1116,10 +1518,17 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             }
 
             case OMNIBOX_SUGGESTIONS: {
-                qb.setTables(VIEW_OMNIBOX_SUGGESTIONS);
+                qb.setTables(TABLE_OMNIBOX_SUGGESTIONS);
+                if (TextUtils.isEmpty(sortOrder)) {
+                    sortOrder = OmniboxSuggestions.SCORE + " DESC";
+                }
                 break;
             }
 
+            case ORIGIN_METADATA: {
+                return queryOriginMetadata(db, selectionArgs);
+            }
+
             default: {
                 throw new UnsupportedOperationException("Unknown URL " + uri.toString());
             }
@@ -1131,6 +1540,91 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return cursor;
     }
 
+    /**
+     * Looks up the bookmark title and favicon for each origin through the
+     * host index. Favicons are read once per host.
+     */
+    private Cursor queryOriginMetadata(SQLiteDatabase db, String[] origins) {
+        MatrixCursor result = new MatrixCursor(new String[] {
+                OriginMetadata.ORIGIN, OriginMetadata.HOST,
+                OriginMetadata.TITLE, OriginMetadata.FAVICON });
+        if (origins != null) {
+            HashMap<String, byte[]> favicons = new HashMap<String, byte[]>();
+            for (String origin : origins) {
+                String host = hostOf(origin);
+                if (TextUtils.isEmpty(host)) {
+                    continue;
+                }
+                byte[] favicon;
+                if (favicons.containsKey(host)) {
+                    favicon = favicons.get(host);
+                } else {
+                    favicon = null;
+                    Cursor c = db.rawQuery(SQL_HOST_FAVICON, new String[] { host });
+                    try {
+                        if (c.moveToFirst()) {
+                            favicon = c.getBlob(0);
+                        }
+                    } finally {
+                        c.close();
+                    }
+                    favicons.put(host, favicon);
+                }
+                String title = null;
+                Cursor c = db.rawQuery(SQL_ORIGIN_TITLE,
+                        new String[] { host, origin, origin + "/" });
+                try {
+                    if (c.moveToFirst()) {
+                        title = c.getString(0);
+                    }
+                } finally {
+                    c.close();
+                }
+                if (title != null || favicon != null) {
+                    result.addRow(new Object[] { origin, host, title, favicon });
+                }
+            }
+        }
+        result.setNotificationUri(getContext().getContentResolver(),
+                Bookmarks.CONTENT_URI);
+        return result;
+    }
+
+    /**
+     * Returns the lower-cased host of the url the same way the
+     * bookmarks host triggers compute it, or null if url has no scheme.
+     */
+    static String hostOf(String url) {
+        if (url == null) {
+            return null;
+        }
+        int start = url.indexOf("://");
+        if (start < 0) {
+            return null;
+        }
+        start += 3;
+        int end = start;
+        while (end < url.length()) {
+            char c = url.charAt(end);
+            if (c == '/' || c == ':' || c == '?' || c == '#') {
+                break;
+            }
+            end++;
+        }
+        return url.substring(start, end).toLowerCase(Locale.US);
+    }
+
+    /**
+     * SQL expression equivalent to {@link #hostOf(String)} for a column.
+     */
+    static String sqlHostOf(String column) {
+        String rest = "substr(" + column + ", instr(" + column + ", '://') + 3)";
+        String delimited = "(replace(replace(replace(" + rest
+                + ", ':', '/'), '?', '/'), '#', '/') || '/')";
+        return "CASE WHEN instr(" + column + ", '://') > 0 THEN lower(substr("
+                + delimited + ", 1, instr(" + delimited + ", '/') - 1)) END";
+    }
+
     private Cursor doSuggestQuery(String selection, String[] selectionArgs, String limit) {
         if (TextUtils.isEmpty(selectionArgs[0])) {
             selection = ZERO_QUERY_SUGGEST_SELECTION;
@@ -1139,17 +1633,15 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             String like = selectionArgs[0] + "%";
             if (selectionArgs[0].startsWith("http")
                     || selectionArgs[0].startsWith("file")) {
+                // The caller's selection, e.g. from searchable.xml
                 selectionArgs[0] = like;
             } else {
-                selectionArgs = new String[6];
-                selectionArgs[0] = "http://" + like;
-                selectionArgs[1] = "http://www." + like;
-                selectionArgs[2] = "https://" + like;
-                selectionArgs[3] = "https://www." + like;
-                // To match against titles.
-                selectionArgs[4] = like;
-                selectionArgs[5] = like;
-                selection = SUGGEST_SELECTION;
+                // Typed text goes through the omnibox_suggestions indices
+                Cursor c = mOpenHelper.getReadableDatabase().rawQuery(
+                        SQL_SUGGEST_BOOKMARKED_HISTORY, new String[] {
+                        "http://" + like, "http://www." + like, "https://" + like,
+                        "https://www." + like, like });
+                return new SuggestionsCursor(c);
             }
             selection = DatabaseUtils.concatenateWhere(selection,
                     Bookmarks.IS_DELETED + "=0 AND " + Bookmarks.IS_FOLDER + "=0");
@@ -1162,46 +1654,34 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return new SuggestionsCursor(c);
     }
 
+    /**
+     * Sets up qb to select the combined rows: every history entry, joined
+     * with the live bookmarks of its url, and every live bookmark whose url
+     * is not in history. The urls come from omnibox_suggestions, so the
+     * url index there drives the query and a lookup by url reads only the
+     * rows of that url instead of both tables.
+     */
     private String[] createCombinedQuery(
             Uri uri, String[] projection, SQLiteQueryBuilder qb) {
-        String[] args = null;
-        StringBuilder whereBuilder = new StringBuilder(128);
-        whereBuilder.append(Bookmarks.IS_DELETED);
-        whereBuilder.append(" = 0");
+        StringBuilder onBuilder = new StringBuilder(128);
+        onBuilder.append(TABLE_BOOKMARKS + "." + Bookmarks.IS_DELETED);
+        onBuilder.append(" = 0");
         // Look for account info
         Object[] withAccount = getSelectionWithAccounts(uri, null, null);
         String selection = (String) withAccount[0];
-        String[] selectionArgs = (String[]) withAccount[1];
+        String[] args = (String[]) withAccount[1];
         if (selection != null) {
-            whereBuilder.append(" AND " + selection);
-            if (selectionArgs != null) {
-                // We use the selection twice, hence we need to duplicate the args
-                args = new String[selectionArgs.length * 2];
-                System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
-                System.arraycopy(selectionArgs, 0, args, selectionArgs.length,
-                        selectionArgs.length);
-            }
-        }
-        String where = whereBuilder.toString();
-        // Build the bookmark subquery for history union subquery
-        qb.setTables(TABLE_BOOKMARKS);
-        String subQuery = qb.buildQuery(null, where, null, null, null, null);
-        // Build the history union subquery
-        qb.setTables(String.format(FORMAT_COMBINED_JOIN_SUBQUERY_JOIN_IMAGES, subQuery));
-        qb.setProjectionMap(COMBINED_HISTORY_PROJECTION_MAP);
-        String historySubQuery = qb.buildQuery(null,
-                null, null, null, null, null);
-        // Build the bookmark union subquery
-        qb.setTables(TABLE_BOOKMARKS_JOIN_IMAGES);
-        qb.setProjectionMap(COMBINED_BOOKMARK_PROJECTION_MAP);
-        where += String.format(" AND %s NOT IN (SELECT %s FROM %s)",
-                Combined.URL, History.URL, TABLE_HISTORY);
-        String bookmarksSubQuery = qb.buildQuery(null, where,
+            onBuilder.append(" AND (" + selection + ")");
+        }
+        qb.setTables(String.format(FORMAT_COMBINED_JOIN_HISTORY_BOOKMARKS_IMAGES,
+                onBuilder.toString()));
+        qb.setProjectionMap(COMBINED_PROJECTION_MAP);
+        // Drop the urls only bookmarked in other accounts
+        String query = qb.buildQuery(null, TABLE_HISTORY + "." + History._ID
+                + " IS NOT NULL OR " + TABLE_BOOKMARKS + "." + Bookmarks._ID + " IS NOT NULL",
                 null, null, null, null);
-        // Put it all together
-        String query = qb.buildUnionQuery(
-                new String[] {historySubQuery, bookmarksSubQuery},
-                null, null);
+        // Wrap it so selections can name the combined columns unqualified,
+        // SQLite flattens the subquery so they still reach the indices
         qb.setTables("(" + query + ")");
         qb.setProjectionMap(null);
         return args;
@@ -1211,64 +1691,41 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             boolean callerIsSyncAdapter) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         if (callerIsSyncAdapter) {
+            collectChangedFolders(db, selection, selectionArgs);
             return db.delete(TABLE_BOOKMARKS, selection, selectionArgs);
         }
-
-        Object[] appendedBookmarks = appendBookmarksIfFolder(selection, selectionArgs);
-        selection = (String) appendedBookmarks[0];
-        selectionArgs = (String[]) appendedBookmarks[1];
-
-        ContentValues values = new ContentValues();
-        values.put(Bookmarks.DATE_MODIFIED, System.currentTimeMillis());
-        values.put(Bookmarks.IS_DELETED, 1);
-        return updateBookmarksInTransaction(values, selection, selectionArgs,
-                callerIsSyncAdapter);
-    }
-
-    private Object[] appendBookmarksIfFolder(String selection, String[] selectionArgs) {
-        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        final String[] bookmarksProjection = new String[] {
-                Bookmarks._ID, // 0
-                Bookmarks.IS_FOLDER // 1
-        };
-        StringBuilder newSelection = new StringBuilder(selection);
-        List<String> newSelectionArgs = new ArrayList<String>();
-
-        Cursor cursor = null;
+        collectChangedFolders(db, TextUtils.isEmpty(selection) ? null : sqlSubtree(selection),
+                selectionArgs);
+
+        // Mark the bookmarks and everything in the folders among them
+        // deleted, in one statement whatever the size of the tree
+        SQLiteStatement statement = db.compileStatement("UPDATE " + TABLE_BOOKMARKS
+                + " SET " + Bookmarks.IS_DELETED + "=1, "
+                + Bookmarks.DIRTY + "=1, "
+                + Bookmarks.DATE_MODIFIED + "=" + System.currentTimeMillis() + ", "
+                + Bookmarks.VERSION + "=" + Bookmarks.VERSION + "+1"
+                + " WHERE " + sqlSubtree(selection));
         try {
-            cursor = db.query(TABLE_BOOKMARKS, bookmarksProjection,
-                    selection, selectionArgs, null, null, null);
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    String id = Long.toString(cursor.getLong(0));
-                    newSelectionArgs.add(id);
-                    if (cursor.getInt(1) != 0) {
-                        // collect bookmarks in this folder
-                        Object[] bookmarks = appendBookmarksIfFolder(
-                                Bookmarks.PARENT + "=?", new String[] { id });
-                        String[] bookmarkIds = (String[]) bookmarks[1];
-                        if (bookmarkIds.length > 0) {
-                            newSelection.append(" OR " + TABLE_BOOKMARKS + "._id IN (");
-                            for (String bookmarkId : bookmarkIds) {
-                                newSelection.append("?,");
-                                newSelectionArgs.add(bookmarkId);
-                            }
-                            newSelection.deleteCharAt(newSelection.length() - 1);
-                            newSelection.append(")");
-                        }
-                    }
-                }
-            }
+            statement.bindAllArgsAsStrings(selectionArgs);
+            return statement.executeUpdateDelete();
         } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+            statement.close();
         }
+    }
 
-        return new Object[] {
-                newSelection.toString(),
-                newSelectionArgs.toArray(new String[newSelectionArgs.size()])
-        };
+    /**
+     * Returns a selection matching the bookmarks the given selection
+     * matches and, for the folders among them, all their descendants.
+     * The tree is walked by a single recursive query over the parent index.
+     */
+    static String sqlSubtree(String selection) {
+        return TABLE_BOOKMARKS + "." + Bookmarks._ID + " IN ("
+                + "WITH RECURSIVE subtree(_id) AS ("
+                + "SELECT _id FROM " + TABLE_BOOKMARKS
+                + (TextUtils.isEmpty(selection) ? "" : " WHERE " + selection)
+                + " UNION SELECT bookmarks._id FROM " + TABLE_BOOKMARKS
+                + " JOIN subtree ON bookmarks.parent = subtree._id"
+                + ") SELECT _id FROM subtree)";
     }
 
     @Override
@@ -1307,6 +1764,9 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             case HISTORY: {
                 filterSearchClient(selectionArgs);
                 deleted = db.delete(TABLE_HISTORY, selection, selectionArgs);
+                if (deleted > 0) {
+                    resetVisitedUrls(db);
+                }
                 pruneImages();
                 break;
             }
@@ -1361,12 +1821,18 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                         deleted += deleteBookmarks(Bookmarks._ID + "=?",
                                 new String[] { Long.toString(id) },
                                 callerIsSyncAdapter);
-                        db.delete(TABLE_HISTORY, History.URL + "=?",
-                                new String[] { url });
+                        if (db.delete(TABLE_HISTORY, History.URL + "=?",
+                                new String[] { url }) > 0) {
+                            resetVisitedUrls(db);
+                        }
                     } else {
-                        deleted += db.delete(TABLE_HISTORY,
+                        int count = db.delete(TABLE_HISTORY,
                                 Bookmarks._ID + "=?",
                                 new String[] { Long.toString(id) });
+                        if (count > 0) {
+                            resetVisitedUrls(db);
+                        }
+                        deleted += count;
                     }
                 }
                 c.close();
@@ -1396,6 +1862,51 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return deleted;
     }
 
+    /**
+     * Bumps the generation of {@link VisitedUrls}, once per transaction,
+     * after a change to history other than inserting rows.
+     */
+    private void resetVisitedUrls(SQLiteDatabase db) {
+        TransactionChanges changes = mTransactionChanges.get();
+        if (!changes.visitedUrlsReset) {
+            changes.visitedUrlsReset = true;
+            db.execSQL("INSERT OR REPLACE INTO " + TABLE_SETTINGS + " ("
+                    + Settings.KEY + ", " + Settings.VALUE + ") VALUES (?, COALESCE(("
+                    + "SELECT " + Settings.VALUE + " FROM " + TABLE_SETTINGS
+                    + " WHERE " + Settings.KEY + " = ?), 0) + 1)",
+                    new Object[] { VisitedUrls.KEY_GENERATION, VisitedUrls.KEY_GENERATION });
+        }
+    }
+
+    /**
+     * Remembers the folders holding the bookmarks matching the selection,
+     * and the folders among those bookmarks, so that their cached listings
+     * are dropped once the transaction ends.
+     */
+    private void collectChangedFolders(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        TransactionChanges changes = mTransactionChanges.get();
+        if (TextUtils.isEmpty(selection)) {
+            changes.allFolders = true;
+            return;
+        }
+        Cursor c = db.query(TABLE_BOOKMARKS, new String[] {
+                Bookmarks.PARENT, Bookmarks._ID, Bookmarks.IS_FOLDER },
+                selection, selectionArgs, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                if (!c.isNull(0)) {
+                    changes.folders.add(c.getLong(0));
+                }
+                if (c.getInt(2) != 0) {
+                    changes.folders.add(c.getLong(1));
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
     long queryDefaultFolderId(String accountName, String accountType) {
         if (!isNullAccount(accountName) && !isNullAccount(accountType)) {
             final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
@@ -1483,9 +1994,12 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     if (count == 0) {
                         db.insertOrThrow(TABLE_IMAGES, Images.FAVICON, imageValues);
                     }
+                    collectChangedFolders(db, Bookmarks.URL + "=?", new String[] { url });
                 }
 
                 id = db.insertOrThrow(TABLE_BOOKMARKS, Bookmarks.DIRTY, values);
+                collectChangedFolders(db, Bookmarks._ID + "=?",
+                        new String[] { Long.toString(id) });
                 refreshWidgets();
                 break;
             }
@@ -1504,9 +2018,11 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                         values.getAsString(History.URL));
                 if (imageValues != null) {
                     db.insertOrThrow(TABLE_IMAGES, Images.FAVICON, imageValues);
+                    collectChangedFolders(db, Bookmarks.URL + "=?", new String[] { url });
                 }
 
                 id = db.insertOrThrow(TABLE_HISTORY, History.VISITS, values);
+                mTransactionChanges.get().visitedUrlsAdded = true;
                 break;
             }
 
@@ -1752,6 +2268,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     db.insertOrThrow(TABLE_IMAGES, Images.FAVICON, values);
                     count = 1;
                 }
+                collectChangedFolders(db, Bookmarks.URL + "=?", new String[] { url });
                 // Only favicon is exposed in the public API. If we updated
                 // the thumbnail or touch icon don't bother notifying the
                 // legacy authority since it can't read it anyway.
@@ -1889,11 +2406,17 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         };
         Cursor cursor = db.query(TABLE_BOOKMARKS, bookmarksProjection,
                 selection, selectionArgs, null, null, null);
+        collectChangedFolders(db, selection, selectionArgs);
         boolean updatingParent = values.containsKey(Bookmarks.PARENT);
         String parentAccountName = null;
         String parentAccountType = null;
         if (updatingParent) {
             long parent = values.getAsLong(Bookmarks.PARENT);
+            if (isInSubtree(db, parent, selection, selectionArgs)) {
+                cursor.close();
+                throw new IllegalArgumentException(
+                        "Cannot move a folder into itself or one of its descendants");
+            }
             Cursor c = db.query(TABLE_BOOKMARKS, new String[] {
                     Bookmarks.ACCOUNT_NAME, Bookmarks.ACCOUNT_TYPE},
                     "_id = ?", new String[] { Long.toString(parent) },
@@ -1903,6 +2426,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 parentAccountType = c.getString(1);
             }
             c.close();
+            mTransactionChanges.get().folders.add(parent);
         } else if (values.containsKey(Bookmarks.ACCOUNT_NAME)
                 || values.containsKey(Bookmarks.ACCOUNT_TYPE)) {
             // TODO: Implement if needed (no one needs this yet)
@@ -1977,6 +2501,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                         if (db.update(TABLE_IMAGES, imageValues, Images.URL + "=?", args) == 0) {
                             db.insert(TABLE_IMAGES, Images.FAVICON, imageValues);
                         }
+                        collectChangedFolders(db, Bookmarks.URL + "=?", args);
                     }
                 }
             }
@@ -1986,6 +2511,17 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return count;
     }
 
+    // Whether the bookmark is one of those matching the selection, or in
+    // any of the folders among them
+    private boolean isInSubtree(SQLiteDatabase db, long id, String selection,
+            String[] selectionArgs) {
+        String[] args = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                new String[] { Long.toString(id) });
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM "
+                + TABLE_BOOKMARKS + " WHERE " + sqlSubtree(selection)
+                + " AND " + TABLE_BOOKMARKS + "." + Bookmarks._ID + "=?)", args) != 0;
+    }
+
     ContentValues valuesFromCursor(Cursor c) {
         int count = c.getColumnCount();
         ContentValues values = new ContentValues(count);
@@ -2017,7 +2553,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         filterSearchClient(selectionArgs);
         Cursor cursor = query(History.CONTENT_URI,
-                new String[] { History._ID, History.URL },
+                new String[] { History._ID, History.URL, History.VISITS },
                 selection, selectionArgs, null);
         try {
             String[] args = new String[1];
@@ -2029,10 +2565,18 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 values.put(History.URL, url);
             }
             ContentValues imageValues = extractImageValues(values, url);
+            boolean updatingVisits = values.containsKey(History.VISITS);
+            Integer visits = values.getAsInteger(History.VISITS);
+            boolean visited = visits != null && visits > 0;
 
             while (cursor.moveToNext()) {
                 args[0] = cursor.getString(0);
                 count += db.update(TABLE_HISTORY, values, "_id=?", args);
+                // Counting another visit of a visited url changes nothing
+                if ((updatingUrl && !TextUtils.equals(url, cursor.getString(1)))
+                        || (updatingVisits && visited != cursor.getInt(2) > 0)) {
+                    resetVisitedUrls(db);
+                }
 
                 // Update the images over in their table
                 if (imageValues != null) {
@@ -2044,6 +2588,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     if (db.update(TABLE_IMAGES, imageValues, Images.URL + "=?", args) == 0) {
                         db.insert(TABLE_IMAGES, Images.FAVICON, imageValues);
                     }
+                    collectChangedFolders(db, Bookmarks.URL + "=?", args);
                 }
             }
         } finally {
@@ -2117,7 +2662,9 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
     int pruneImages() {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        return db.delete(TABLE_IMAGES, IMAGE_PRUNE, null);
+        int count = db.delete(TABLE_IMAGES, IMAGE_PRUNE, null);
+        db.delete(TABLE_IMAGE_PRUNE_CANDIDATES, null, null);
+        return count;
     }
 
     boolean shouldNotifyLegacy(Uri uri) {
@@ -2169,6 +2716,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 SearchManager.SUGGEST_COLUMN_LAST_ACCESS_HINT};
 
         private final Cursor mSource;
+        // The columns of the current row, read once when moving to it
+        private final String[] mRow = new String[COLUMNS.length];
 
         public SuggestionsCursor(Cursor cursor) {
             mSource = cursor;
@@ -2181,24 +2730,10 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
         @Override
         public String getString(int columnIndex) {
-            switch (columnIndex) {
-            case ID_INDEX:
-                return mSource.getString(columnIndex);
-            case SUGGEST_COLUMN_INTENT_ACTION_ID:
-                return Intent.ACTION_VIEW;
-            case SUGGEST_COLUMN_INTENT_DATA_ID:
-                return mSource.getString(URL_INDEX);
-            case SUGGEST_COLUMN_TEXT_2_TEXT_ID:
-            case SUGGEST_COLUMN_TEXT_2_URL_ID:
-                return UrlUtils.stripUrl(mSource.getString(URL_INDEX));
-            case SUGGEST_COLUMN_TEXT_1_ID:
-                return mSource.getString(TITLE_INDEX);
-            case SUGGEST_COLUMN_ICON_1_ID:
-                return mSource.getString(ICON_INDEX);
-            case SUGGEST_COLUMN_LAST_ACCESS_HINT_ID:
-                return mSource.getString(LAST_ACCESS_TIME_INDEX);
+            if (columnIndex < 0 || columnIndex >= mRow.length) {
+                return null;
             }
-            return null;
+            return mRow[columnIndex];
         }
 
         @Override
@@ -2244,7 +2779,20 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
         @Override
         public boolean onMove(int oldPosition, int newPosition) {
-            return mSource.moveToPosition(newPosition);
+            if (!mSource.moveToPosition(newPosition)) {
+                return false;
+            }
+            String url = mSource.getString(URL_INDEX);
+            String strippedUrl = UrlUtils.stripUrl(url);
+            mRow[ID_INDEX] = mSource.getString(ID_INDEX);
+            mRow[SUGGEST_COLUMN_INTENT_ACTION_ID] = Intent.ACTION_VIEW;
+            mRow[SUGGEST_COLUMN_INTENT_DATA_ID] = url;
+            mRow[SUGGEST_COLUMN_TEXT_1_ID] = mSource.getString(TITLE_INDEX);
+            mRow[SUGGEST_COLUMN_TEXT_2_TEXT_ID] = strippedUrl;
+            mRow[SUGGEST_COLUMN_TEXT_2_URL_ID] = strippedUrl;
+            mRow[SUGGEST_COLUMN_ICON_1_ID] = mSource.getString(ICON_INDEX);
+            mRow[SUGGEST_COLUMN_LAST_ACCESS_HINT_ID] = mSource.getString(LAST_ACCESS_TIME_INDEX);
+            return true;
         }
     }
 
@@ -2252,18 +2800,190 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     //  SQL below, be warned
     // ---------------------------------------------------
 
-    private static final String SQL_CREATE_VIEW_OMNIBOX_SUGGESTIONS =
-            "CREATE VIEW IF NOT EXISTS v_omnibox_suggestions "
-            + " AS "
-            + "  SELECT _id, url, title, 1 AS bookmark, 0 AS visits, 0 AS date"
-            + "  FROM bookmarks "
-            + "  WHERE deleted = 0 AND folder = 0 "
-            + "  UNION ALL "
-            + "  SELECT _id, url, title, 0 AS bookmark, visits, date "
-            + "  FROM history "
-            + "  WHERE url NOT IN (SELECT url FROM bookmarks"
-            + "    WHERE deleted = 0 AND folder = 0) "
-            + "  ORDER BY bookmark DESC, visits DESC, date DESC ";
+    private static final String SQL_NOW = "(CAST(strftime('%s', 'now') AS INTEGER) * 1000)";
+
+    // log2 of the integer expression x >= 1, to within 0.09: the power of
+    // two at or below x plus the linear interpolation to the next one
+    private static String sqlLog2(String x) {
+        StringBuilder sql = new StringBuilder("(CASE");
+        for (int k = 24; k > 0; k--) {
+            sql.append(" WHEN ").append(x).append(" >= ").append(1 << k)
+                    .append(" THEN ").append(k - 1).append(" + ").append(x)
+                    .append(" * 1.0 / ").append(1 << k);
+        }
+        return sql.append(" ELSE ").append(x).append(" - 1 END)").toString();
+    }
+
+    // FrecencyRanker's score in the log domain, where it doesn't change with
+    // time: log2 of the weight of the visits plus the time of the last one
+    // in half-lives. A bookmark scores at least its bonus as of the write,
+    // which can only rank it lower than FrecencyRanker does as it ages.
+    private static final String SQL_SUGGESTION_SCORE =
+            "CAST(ROUND(1000 * max("
+            + "CASE WHEN weight > 0 THEN " + sqlLog2("weight")
+            + " + IFNULL(date, 0) * 1.0 / " + OmniboxSuggestions.SCORE_HALF_LIFE
+            + " ELSE 0 END,"
+            + " CASE WHEN bookmark_id IS NULL THEN 0 ELSE "
+            + (Math.log(OmniboxSuggestions.SCORE_BOOKMARK_BONUS) / Math.log(2))
+            + " + " + SQL_NOW + " * 1.0 / " + OmniboxSuggestions.SCORE_HALF_LIFE
+            + " END)) AS INTEGER)";
+
+    // Every url with a live bookmark or a history entry
+    private static final String SQL_SUGGESTION_URLS =
+            "SELECT url FROM bookmarks"
+            + " WHERE url IS NOT NULL AND deleted = 0 AND folder = 0"
+            + " UNION SELECT url FROM history";
+
+    /**
+     * Returns the query selecting the omnibox_suggestions rows of the urls
+     * selected by the given query. A bookmarked url takes the id and title
+     * of its oldest live bookmark, any url the visits of its history entry.
+     */
+    private static String sqlSelectSuggestions(String urls) {
+        String bookmark = " FROM bookmarks WHERE url = u.url AND deleted = 0 AND folder = 0"
+                + " ORDER BY _id LIMIT 1)";
+        String history = " FROM history WHERE url = u.url ORDER BY _id LIMIT 1)";
+        return " SELECT url, IFNULL(bookmark_id, history_id),"
+                + " CASE WHEN bookmark_id IS NULL THEN history_title ELSE bookmark_title END,"
+                + " bookmark_id IS NOT NULL, IFNULL(visits, 0), IFNULL(date, 0),"
+                + " IFNULL(user_entered, 0), " + SQL_SUGGESTION_SCORE
+                + " FROM (SELECT *, IFNULL(visits, 0) * (CASE WHEN IFNULL(user_entered, 0)"
+                + " != 0 THEN " + OmniboxSuggestions.SCORE_TYPED_BONUS + " ELSE 1 END)"
+                + " AS weight FROM (SELECT u.url AS url,"
+                + " (SELECT _id" + bookmark + " AS bookmark_id,"
+                + " (SELECT title" + bookmark + " AS bookmark_title,"
+                + " (SELECT _id" + history + " AS history_id,"
+                + " (SELECT title" + history + " AS history_title,"
+                + " (SELECT visits" + history + " AS visits,"
+                + " (SELECT date" + history + " AS date,"
+                + " (SELECT user_entered" + history + " AS user_entered"
+                + " FROM (" + urls + ") u))";
+    }
+
+    // Rewrites the suggestion of the url given by the SQL expression
+    private static String sqlRefreshSuggestion(String url) {
+        return "DELETE FROM omnibox_suggestions WHERE url = " + url + "; "
+                + "INSERT INTO omnibox_suggestions"
+                + sqlSelectSuggestions("SELECT url FROM bookmarks WHERE url = " + url
+                        + " AND deleted = 0 AND folder = 0"
+                        + " UNION SELECT url FROM history WHERE url = " + url) + "; ";
+    }
+
+    private static final String[] SQL_CREATE_TRIGGERS_OMNIBOX_SUGGESTIONS = {
+        "CREATE TRIGGER IF NOT EXISTS bookmarks_suggestions_insert "
+                + "AFTER INSERT ON bookmarks "
+                + "BEGIN " + sqlRefreshSuggestion("new.url") + "END",
+        "CREATE TRIGGER IF NOT EXISTS bookmarks_suggestions_update "
+                + "AFTER UPDATE OF url, title, deleted, folder ON bookmarks "
+                + "BEGIN " + sqlRefreshSuggestion("new.url") + "END",
+        "CREATE TRIGGER IF NOT EXISTS bookmarks_suggestions_update_url "
+                + "AFTER UPDATE OF url ON bookmarks "
+                + "WHEN old.url IS NOT new.url "
+                + "BEGIN " + sqlRefreshSuggestion("old.url") + "END",
+        "CREATE TRIGGER IF NOT EXISTS bookmarks_suggestions_delete "
+                + "AFTER DELETE ON bookmarks "
+                + "BEGIN " + sqlRefreshSuggestion("old.url") + "END",
+        "CREATE TRIGGER IF NOT EXISTS history_suggestions_insert "
+                + "AFTER INSERT ON history "
+                + "BEGIN " + sqlRefreshSuggestion("new.url") + "END",
+        "CREATE TRIGGER IF NOT EXISTS history_suggestions_update "
+                + "AFTER UPDATE OF url, title, visits, date, user_entered ON history "
+                + "BEGIN " + sqlRefreshSuggestion("new.url") + "END",
+        "CREATE TRIGGER IF NOT EXISTS history_suggestions_update_url "
+                + "AFTER UPDATE OF url ON history "
+                + "WHEN old.url IS NOT new.url "
+                + "BEGIN " + sqlRefreshSuggestion("old.url") + "END",
+        "CREATE TRIGGER IF NOT EXISTS history_suggestions_delete "
+                + "AFTER DELETE ON history "
+                + "BEGIN " + sqlRefreshSuggestion("old.url") + "END",
+    };
+
+    private static final String SQL_CREATE_TRIGGER_BOOKMARKS_HOST_INSERT =
+            "CREATE TRIGGER IF NOT EXISTS bookmarks_host_insert "
+            + "AFTER INSERT ON bookmarks "
+            + "BEGIN "
+            + "  UPDATE bookmarks SET host = " + sqlHostOf("new.url")
+            + "  WHERE _id = new._id; "
+            + "END";
+
+    private static final String SQL_CREATE_TRIGGER_BOOKMARKS_HOST_UPDATE =
+            "CREATE TRIGGER IF NOT EXISTS bookmarks_host_update "
+            + "AFTER UPDATE OF url ON bookmarks "
+            + "BEGIN "
+            + "  UPDATE bookmarks SET host = " + sqlHostOf("new.url")
+            + "  WHERE _id = new._id; "
+            + "END";
+
+    // The image of a url is kept while a live bookmark or a history entry
+    // has the url. These triggers queue the urls that may have lost their
+    // last reference, including images stored for urls without one.
+    private static final String SQL_CREATE_TRIGGER_BOOKMARKS_PRUNE_DELETE =
+            "CREATE TRIGGER IF NOT EXISTS bookmarks_image_prune_delete "
+            + "AFTER DELETE ON bookmarks "
+            + "WHEN old.url IS NOT NULL "
+            + "BEGIN "
+            + "  INSERT OR IGNORE INTO image_prune_candidates VALUES (old.url); "
+            + "END";
+
+    private static final String SQL_CREATE_TRIGGER_BOOKMARKS_PRUNE_UPDATE =
+            "CREATE TRIGGER IF NOT EXISTS bookmarks_image_prune_update "
+            + "AFTER UPDATE OF url, deleted ON bookmarks "
+            + "WHEN old.url IS NOT NULL "
+            + "BEGIN "
+            + "  INSERT OR IGNORE INTO image_prune_candidates VALUES (old.url); "
+            + "END";
+
+    private static final String SQL_CREATE_TRIGGER_HISTORY_PRUNE_DELETE =
+            "CREATE TRIGGER IF NOT EXISTS history_image_prune_delete "
+            + "AFTER DELETE ON history "
+            + "BEGIN "
+            + "  INSERT OR IGNORE INTO image_prune_candidates VALUES (old.url); "
+            + "END";
+
+    private static final String SQL_CREATE_TRIGGER_HISTORY_PRUNE_UPDATE =
+            "CREATE TRIGGER IF NOT EXISTS history_image_prune_update "
+            + "AFTER UPDATE OF url ON history "
+            + "BEGIN "
+            + "  INSERT OR IGNORE INTO image_prune_candidates VALUES (old.url); "
+            + "END";
+
+    private static final String SQL_CREATE_TRIGGER_IMAGES_PRUNE_INSERT =
+            "CREATE TRIGGER IF NOT EXISTS images_prune_insert "
+            + "AFTER INSERT ON images "
+            + "BEGIN "
+            + "  INSERT OR IGNORE INTO image_prune_candidates VALUES (new.url_key); "
+            + "END";
+
+    // Search suggestions for typed text: the visited urls with a live
+    // bookmark whose url or omnibox title starts with it. The urls are
+    // found through the NOCASE indices of omnibox_suggestions, then joined
+    // by url with their history entries and bookmarks.
+    private static final String SQL_SUGGEST_BOOKMARKED_HISTORY =
+            "SELECT history._id, history.url,"
+            + " CASE WHEN bookmarks.title IS NOT NULL"
+            + "  THEN bookmarks.title ELSE history.title END,"
+            + " '" + R.drawable.ic_bookmark_off + "', history.date "
+            + "FROM omnibox_suggestions s "
+            + "JOIN history ON history.url = s.url "
+            + "JOIN bookmarks ON bookmarks.url = s.url "
+            + "  AND bookmarks.deleted = 0 AND bookmarks.folder = 0 "
+            + "WHERE s.bookmark = 1 AND (s.url LIKE ? OR s.url LIKE ? OR s.url LIKE ?"
+            + "  OR s.url LIKE ? OR s.title LIKE ?)";
+
+    private static final String SQL_ORIGIN_TITLE =
+            "SELECT title "
+            + "FROM bookmarks "
+            + "WHERE host = ? AND url IN (?, ?) AND deleted = 0 AND folder = 0 "
+            + "LIMIT 1";
+
+    // Prefers the shortest url, which is the closest to the host's root
+    private static final String SQL_HOST_FAVICON =
+            "SELECT images.favicon "
+            + "FROM bookmarks JOIN images ON bookmarks.url = images.url_key "
+            + "WHERE bookmarks.host = ? AND bookmarks.deleted = 0 "
+            + "  AND bookmarks.folder = 0 AND images.favicon IS NOT NULL "
+            + "ORDER BY length(bookmarks.url) "
+            + "LIMIT 1";
 
     private static final String SQL_WHERE_ACCOUNT_HAS_BOOKMARKS =
             "0 < ( "
@@ -111,11 +111,16 @@ public abstract class SQLiteContentProvider extends ContentProvider {
         if (!applyingBatch) {
             mDb = mOpenHelper.getWritableDatabase();
             mDb.beginTransaction();
+            boolean successful = false;
             try {
                 result = insertInTransaction(uri, values, callerIsSyncAdapter);
                 mDb.setTransactionSuccessful();
+                successful = true;
             } finally {
                 mDb.endTransaction();
+                if (!successful) {
+                    onRollbackTransaction();
+                }
             }
 
             onEndTransaction(callerIsSyncAdapter);
@@ -131,14 +136,19 @@ public abstract class SQLiteContentProvider extends ContentProvider {
         boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
         mDb = mOpenHelper.getWritableDatabase();
         mDb.beginTransaction();
+        boolean successful = false;
         try {
             for (int i = 0; i < numValues; i++) {
                 Uri result = insertInTransaction(uri, values[i], callerIsSyncAdapter);
                 mDb.yieldIfContendedSafely();
             }
             mDb.setTransactionSuccessful();
+            successful = true;
         } finally {
             mDb.endTransaction();
+            if (!successful) {
+                onRollbackTransaction();
+            }
         }
 
         onEndTransaction(callerIsSyncAdapter);
@@ -153,12 +163,17 @@ public abstract class SQLiteContentProvider extends ContentProvider {
         if (!applyingBatch) {
             mDb = mOpenHelper.getWritableDatabase();
             mDb.beginTransaction();
+            boolean successful = false;
             try {
                 count = updateInTransaction(uri, values, selection, selectionArgs,
                         callerIsSyncAdapter);
                 mDb.setTransactionSuccessful();
+                successful = true;
             } finally {
                 mDb.endTransaction();
+                if (!successful) {
+                    onRollbackTransaction();
+                }
             }
 
             onEndTransaction(callerIsSyncAdapter);
@@ -177,11 +192,16 @@ public abstract class SQLiteContentProvider extends ContentProvider {
         if (!applyingBatch) {
             mDb = mOpenHelper.getWritableDatabase();
             mDb.beginTransaction();
+            boolean successful = false;
             try {
                 count = deleteInTransaction(uri, selection, selectionArgs, callerIsSyncAdapter);
                 mDb.setTransactionSuccessful();
+                successful = true;
             } finally {
                 mDb.endTransaction();
+                if (!successful) {
+                    onRollbackTransaction();
+                }
             }
 
             onEndTransaction(callerIsSyncAdapter);
@@ -197,6 +217,7 @@ public abstract class SQLiteContentProvider extends ContentProvider {
         int ypCount = 0;
         int opCount = 0;
         boolean callerIsSyncAdapter = false;
+        boolean successful = false;
         mDb = mOpenHelper.getWritableDatabase();
         mDb.beginTransaction();
         try {
@@ -223,14 +244,26 @@ public abstract class SQLiteContentProvider extends ContentProvider {
                 results[i] = operation.apply(this, results, i);
             }
             mDb.setTransactionSuccessful();
+            successful = true;
             return results;
         } finally {
             mApplyingBatch.set(false);
             mDb.endTransaction();
+            if (!successful) {
+                onRollbackTransaction();
+            }
             onEndTransaction(callerIsSyncAdapter);
         }
     }
 
+    /**
+     * Called on the thread of a transaction that rolled back, once it has
+     * ended. Subclasses drop what they recorded for it, which must not be
+     * acted on by {@link #onEndTransaction} or leak into the next one.
+     */
+    protected void onRollbackTransaction() {
+    }
+
     protected void onEndTransaction(boolean callerIsSyncAdapter) {
         Set<Uri> changed;
         synchronized (mChangedUris) {
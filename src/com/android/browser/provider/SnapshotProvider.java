@@ -27,13 +27,22 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.FileUtils;
+import android.os.Handler;
 import android.provider.BrowserContract;
 import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.browser.BackgroundHandler;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.regex.Pattern;
 
 public class SnapshotProvider extends ContentProvider {
 
+    private static final String LOGTAG = "SnapshotProvider";
+
     public static interface Snapshots {
 
         public static final Uri CONTENT_URI = Uri.withAppendedPath(
@@ -49,6 +58,20 @@ public class SnapshotProvider extends ContentProvider {
         public static final String DATE_CREATED = "date_created";
         public static final String VIEWSTATE_PATH = "viewstate_path";
         public static final String VIEWSTATE_SIZE = "viewstate_size";
+        public static final String DATE_ACCESSED = "date_accessed";
+    }
+
+    /**
+     * Read-only view of the storage used by each snapshot, including the
+     * viewstate file and the favicon/thumbnail blobs.
+     */
+    public static interface SnapshotStats {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(
+                Snapshots.CONTENT_URI, "stats");
+        public static final String _ID = "_id";
+        public static final String BYTES_USED = "bytes_used";
+        public static final String DATE_ACCESSED = "date_accessed";
     }
 
     public static final String AUTHORITY = "com.android.browser.snapshots";
@@ -57,21 +80,41 @@ public class SnapshotProvider extends ContentProvider {
     static final String TABLE_SNAPSHOTS = "snapshots";
     static final int SNAPSHOTS = 10;
     static final int SNAPSHOTS_ID = 11;
+    static final int SNAPSHOTS_STATS = 12;
     static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
     // Workaround that we can't remove the "NOT NULL" constraint on VIEWSTATE
     static final byte[] NULL_BLOB_HACK = new byte[0];
 
+    // Total storage budget for all snapshots, blobs and viewstate files
+    static final long MAX_STORAGE_BYTES = 50 * 1024 * 1024;
+    // How long the provider must be quiet before orphaned files are reclaimed
+    static final long COMPACTION_DELAY_MS = 30 * 1000;
+    // Files newer than this may belong to a snapshot that is still being saved
+    static final long ORPHAN_MIN_AGE_MS = 10 * 60 * 1000;
+    // Viewstate files are named with a random UUID
+    static final Pattern VIEWSTATE_FILE_PATTERN = Pattern.compile(
+            "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+    static final String SQL_BYTES_USED = "IFNULL(" + Snapshots.VIEWSTATE_SIZE + ", 0)"
+            + " + IFNULL(length(" + Snapshots.FAVICON + "), 0)"
+            + " + IFNULL(length(" + Snapshots.THUMBNAIL + "), 0)";
+    static final String SQL_LAST_USED = "IFNULL(" + Snapshots.DATE_ACCESSED + ", "
+            + Snapshots.DATE_CREATED + ")";
+
     SnapshotDatabaseHelper mOpenHelper;
+    Handler mBackgroundHandler;
+    long mMaxStorageBytes = MAX_STORAGE_BYTES;
 
     static {
         URI_MATCHER.addURI(AUTHORITY, "snapshots", SNAPSHOTS);
         URI_MATCHER.addURI(AUTHORITY, "snapshots/#", SNAPSHOTS_ID);
+        URI_MATCHER.addURI(AUTHORITY, "snapshots/stats", SNAPSHOTS_STATS);
     }
 
     final static class SnapshotDatabaseHelper extends SQLiteOpenHelper {
 
         static final String DATABASE_NAME = "snapshots.db";
-        static final int DATABASE_VERSION = 3;
+        static final int DATABASE_VERSION = 4;
 
         public SnapshotDatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -89,7 +132,8 @@ public class SnapshotProvider extends ContentProvider {
                     Snapshots.BACKGROUND + " INTEGER," +
                     Snapshots.VIEWSTATE + " BLOB NOT NULL," +
                     Snapshots.VIEWSTATE_PATH + " TEXT," +
-                    Snapshots.VIEWSTATE_SIZE + " INTEGER" +
+                    Snapshots.VIEWSTATE_SIZE + " INTEGER," +
+                    Snapshots.DATE_ACCESSED + " INTEGER" +
                     ");");
         }
 
@@ -98,6 +142,7 @@ public class SnapshotProvider extends ContentProvider {
             if (oldVersion < 2) {
                 db.execSQL("DROP TABLE " + TABLE_SNAPSHOTS);
                 onCreate(db);
+                return;
             }
             if (oldVersion < 3) {
                 db.execSQL("ALTER TABLE " + TABLE_SNAPSHOTS + " ADD COLUMN "
@@ -108,6 +153,13 @@ public class SnapshotProvider extends ContentProvider {
                         + Snapshots.VIEWSTATE_SIZE + " = length("
                         + Snapshots.VIEWSTATE + ")");
             }
+            if (oldVersion < 4) {
+                db.execSQL("ALTER TABLE " + TABLE_SNAPSHOTS + " ADD COLUMN "
+                        + Snapshots.DATE_ACCESSED + " INTEGER");
+                db.execSQL("UPDATE " + TABLE_SNAPSHOTS + " SET "
+                        + Snapshots.DATE_ACCESSED + " = "
+                        + Snapshots.DATE_CREATED);
+            }
         }
 
     }
@@ -136,6 +188,8 @@ public class SnapshotProvider extends ContentProvider {
     public boolean onCreate() {
         migrateToDataFolder();
         mOpenHelper = new SnapshotDatabaseHelper(getContext());
+        mBackgroundHandler = new Handler(BackgroundHandler.getLooper());
+        scheduleCompaction();
         return true;
     }
 
@@ -166,6 +220,13 @@ public class SnapshotProvider extends ContentProvider {
         case SNAPSHOTS:
             qb.setTables(TABLE_SNAPSHOTS);
             break;
+        case SNAPSHOTS_STATS:
+            qb.setTables(TABLE_SNAPSHOTS);
+            if (projection == null) {
+                projection = STATS_PROJECTION;
+            }
+            qb.setProjectionMap(STATS_PROJECTION_MAP);
+            break;
 
         default:
             throw new UnsupportedOperationException("Unknown URL " + uri.toString());
@@ -195,7 +256,13 @@ public class SnapshotProvider extends ContentProvider {
             if (!values.containsKey(Snapshots.VIEWSTATE)) {
                 values.put(Snapshots.VIEWSTATE, NULL_BLOB_HACK);
             }
+            if (!values.containsKey(Snapshots.DATE_ACCESSED)) {
+                values.put(Snapshots.DATE_ACCESSED, System.currentTimeMillis());
+            }
             id = db.insert(TABLE_SNAPSHOTS, Snapshots.TITLE, values);
+            if (id >= 0) {
+                enforceQuota(db, id);
+            }
             break;
         default:
             throw new UnsupportedOperationException("Unknown insert URI " + uri);
@@ -208,6 +275,115 @@ public class SnapshotProvider extends ContentProvider {
         return inserted;
     }
 
+    static final String[] STATS_PROJECTION = new String[] {
+        SnapshotStats._ID,
+        SnapshotStats.BYTES_USED,
+        SnapshotStats.DATE_ACCESSED,
+    };
+    static final HashMap<String, String> STATS_PROJECTION_MAP =
+            new HashMap<String, String>();
+    static {
+        STATS_PROJECTION_MAP.put(SnapshotStats._ID, Snapshots._ID);
+        STATS_PROJECTION_MAP.put(SnapshotStats.BYTES_USED,
+                SQL_BYTES_USED + " AS " + SnapshotStats.BYTES_USED);
+        STATS_PROJECTION_MAP.put(SnapshotStats.DATE_ACCESSED,
+                SQL_LAST_USED + " AS " + SnapshotStats.DATE_ACCESSED);
+    }
+
+    static final String[] QUOTA_PROJECTION = new String[] {
+        Snapshots._ID,
+        SQL_BYTES_USED,
+    };
+
+    /**
+     * Evicts the least recently accessed snapshots until the total storage
+     * used fits in the budget. The snapshot identified by keepId is never
+     * evicted, so a freshly inserted snapshot always survives.
+     */
+    private void enforceQuota(SQLiteDatabase db, long keepId) {
+        Cursor c = db.query(TABLE_SNAPSHOTS, QUOTA_PROJECTION, null, null,
+                null, null, SQL_LAST_USED + " ASC");
+        try {
+            long total = 0;
+            while (c.moveToNext()) {
+                total += c.getLong(1);
+            }
+            if (total <= mMaxStorageBytes) {
+                return;
+            }
+            c.moveToPosition(-1);
+            while (total > mMaxStorageBytes && c.moveToNext()) {
+                long id = c.getLong(0);
+                if (id == keepId) {
+                    continue;
+                }
+                String[] args = new String[] { Long.toString(id) };
+                deleteDataFiles(db, "_id=?", args);
+                if (db.delete(TABLE_SNAPSHOTS, "_id=?", args) > 0) {
+                    total -= c.getLong(1);
+                    Log.d(LOGTAG, "Evicted snapshot " + id + " over quota");
+                }
+            }
+        } finally {
+            c.close();
+        }
+        getContext().getContentResolver().notifyChange(
+                Snapshots.CONTENT_URI, null, false);
+    }
+
+    private void scheduleCompaction() {
+        mBackgroundHandler.removeCallbacks(mCompaction);
+        mBackgroundHandler.postDelayed(mCompaction, COMPACTION_DELAY_MS);
+    }
+
+    private final Runnable mCompaction = new Runnable() {
+        @Override
+        public void run() {
+            compactDataFiles();
+        }
+    };
+
+    /**
+     * Deletes viewstate files that are no longer referenced by any snapshot,
+     * for example because a delete was interrupted or a save failed midway.
+     */
+    int compactDataFiles() {
+        SQLiteDatabase db = getReadableDatabase();
+        if (db == null) {
+            return 0;
+        }
+        HashSet<String> referenced = new HashSet<String>();
+        Cursor c = db.query(TABLE_SNAPSHOTS, DELETE_PROJECTION,
+                Snapshots.VIEWSTATE_PATH + " IS NOT NULL", null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                referenced.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        String[] files = getContext().fileList();
+        if (files == null) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - ORPHAN_MIN_AGE_MS;
+        int reclaimed = 0;
+        for (String name : files) {
+            if (referenced.contains(name)
+                    || !VIEWSTATE_FILE_PATTERN.matcher(name).matches()) {
+                continue;
+            }
+            File f = getContext().getFileStreamPath(name);
+            if (f.lastModified() < cutoff && f.delete()) {
+                reclaimed++;
+            }
+        }
+        if (reclaimed > 0) {
+            Log.d(LOGTAG, "Reclaimed " + reclaimed + " orphaned viewstate files");
+        }
+        return reclaimed;
+    }
+
     static final String[] DELETE_PROJECTION = new String[] {
         Snapshots.VIEWSTATE_PATH,
     };
@@ -255,6 +431,7 @@ public class SnapshotProvider extends ContentProvider {
         }
         if (deleted > 0) {
             getContext().getContentResolver().notifyChange(uri, null, false);
+            scheduleCompaction();
         }
         return deleted;
     }
@@ -262,7 +439,35 @@ public class SnapshotProvider extends ContentProvider {
     @Override
     public int update(Uri uri, ContentValues values, String selection,
             String[] selectionArgs) {
-        throw new UnsupportedOperationException("not implemented");
+        SQLiteDatabase db = getWritableDatabase();
+        if (db == null) {
+            return 0;
+        }
+        int match = URI_MATCHER.match(uri);
+        int updated = 0;
+        switch (match) {
+        case SNAPSHOTS_ID: {
+            selection = DatabaseUtils.concatenateWhere(selection, TABLE_SNAPSHOTS + "._id=?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    new String[] { Long.toString(ContentUris.parseId(uri)) });
+            // fall through
+        }
+        case SNAPSHOTS:
+            updated = db.update(TABLE_SNAPSHOTS, values, selection, selectionArgs);
+            break;
+        default:
+            throw new UnsupportedOperationException("Unknown update URI " + uri);
+        }
+        // Touching the access time alone doesn't change anything that is displayed
+        boolean onlyTouched = values.size() == 1
+                && values.containsKey(Snapshots.DATE_ACCESSED);
+        if (updated > 0 && !onlyTouched) {
+            getContext().getContentResolver().notifyChange(uri, null, false);
+        }
+        if (values.containsKey(Snapshots.VIEWSTATE_PATH)) {
+            scheduleCompaction();
+        }
+        return updated;
     }
 
 }
@@ -31,11 +31,13 @@ import android.net.Uri;
 import android.os.Binder;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.Images;
 import android.text.TextUtils;
 import android.util.Log;
 import android.widget.RemoteViews;
 import android.widget.RemoteViewsService;
 
+import com.android.browser.BatchImageLoader;
 import com.android.browser.BrowserActivity;
 import com.android.browser.R;
 import com.android.browser.provider.BrowserProvider2;
@@ -59,18 +61,16 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
             BrowserContract.Bookmarks._ID,
             BrowserContract.Bookmarks.TITLE,
             BrowserContract.Bookmarks.URL,
-            BrowserContract.Bookmarks.FAVICON,
+            BrowserProvider2.IMAGE_ID,
             BrowserContract.Bookmarks.IS_FOLDER,
             BrowserContract.Bookmarks.POSITION, /* needed for order by */
-            BrowserContract.Bookmarks.THUMBNAIL,
             BrowserContract.Bookmarks.PARENT};
     private static final int BOOKMARK_INDEX_ID = 0;
     private static final int BOOKMARK_INDEX_TITLE = 1;
     private static final int BOOKMARK_INDEX_URL = 2;
-    private static final int BOOKMARK_INDEX_FAVICON = 3;
+    private static final int BOOKMARK_INDEX_IMAGE_ID = 3;
     private static final int BOOKMARK_INDEX_IS_FOLDER = 4;
-    private static final int BOOKMARK_INDEX_THUMBNAIL = 6;
-    private static final int BOOKMARK_INDEX_PARENT_ID = 7;
+    private static final int BOOKMARK_INDEX_PARENT_ID = 6;
 
     @Override
     public RemoteViewsFactory onGetViewFactory(Intent intent) {
@@ -166,10 +166,15 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
         private long mCurrentFolder = -1;
         private long mRootFolder = -1;
         private SharedPreferences mPreferences = null;
+        private BatchImageLoader mThumbnails, mFavicons;
 
         public BookmarkFactory(Context context, int widgetId) {
             mContext = context.getApplicationContext();
             mWidgetId = widgetId;
+            mThumbnails = new BatchImageLoader(mContext.getContentResolver(),
+                    Images.THUMBNAIL);
+            mFavicons = new BatchImageLoader(mContext.getContentResolver(),
+                    Images.FAVICON);
         }
 
         void syncState() {
@@ -251,7 +256,7 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
                 Options options = new Options();
                 options.inPreferredConfig = Config.ARGB_8888;
                 Bitmap thumbnail = null, favicon = null;
-                byte[] blob = mBookmarks.getBlob(BOOKMARK_INDEX_THUMBNAIL);
+                byte[] blob = mThumbnails.get(mBookmarks, BOOKMARK_INDEX_IMAGE_ID);
                 views.setDrawableParameters(R.id.thumb, true, 255, -1, null, -1);
                 if (blob != null && blob.length > 0) {
                     thumbnail = BitmapFactory.decodeByteArray(
@@ -261,7 +266,7 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
                     views.setImageViewResource(R.id.thumb,
                             R.drawable.browser_thumbnail);
                 }
-                blob = mBookmarks.getBlob(BOOKMARK_INDEX_FAVICON);
+                blob = mFavicons.get(mBookmarks, BOOKMARK_INDEX_IMAGE_ID);
                 if (blob != null && blob.length > 0) {
                     favicon = BitmapFactory.decodeByteArray(
                             blob, 0, blob.length, options);
@@ -331,6 +336,8 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
                 mBookmarks.close();
                 mBookmarks = null;
             }
+            mThumbnails.clear();
+            mFavicons.clear();
         }
 
         void loadBookmarks() {
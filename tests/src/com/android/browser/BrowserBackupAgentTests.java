@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.BrowserContract.Bookmarks;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+@MediumTest
+public class BrowserBackupAgentTests extends BP2TestCaseHelper {
+
+    private static final String TAG = "BrowserBackupAgentTests";
+
+    public void testRestoreSkipsExistingAndDuplicateUrls() throws IOException {
+        insertBookmark("http://www.example.com/", "Existing");
+        DataInputStream in = createBackup(new String[] {
+                "http://www.example.com/",
+                "http://www.example.com/a",
+                "http://www.example.com/b",
+                "http://www.example.com/a",
+        });
+        ContentResolver cr = getMockContentResolver();
+        assertEquals(2, BrowserBackupAgent.restoreBookmarks(cr, in));
+        assertEquals(3, countBookmarks(cr));
+    }
+
+    public void testRestoreLargeBackup() throws IOException {
+        final int count = 10000;
+        String[] urls = new String[count];
+        for (int i = 0; i < count; i++) {
+            urls[i] = "http://www.example.com/page" + i;
+        }
+        DataInputStream in = createBackup(urls);
+        ContentResolver cr = getMockContentResolver();
+        long start = System.currentTimeMillis();
+        int restored = BrowserBackupAgent.restoreBookmarks(cr, in);
+        long elapsed = System.currentTimeMillis() - start;
+        Log.i(TAG, "Restored " + restored + " bookmarks in " + elapsed + "ms");
+        assertEquals(count, restored);
+        assertEquals(count, countBookmarks(cr));
+    }
+
+    public void testTruncatedBackupRestoresNothing() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(2);
+        writeBookmark(out, "http://www.example.com/a");
+        out.close();
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        ContentResolver cr = getMockContentResolver();
+        try {
+            BrowserBackupAgent.restoreBookmarks(cr, in);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, countBookmarks(cr));
+    }
+
+    // Same layout as BrowserBackupAgent.onBackup
+    private static DataInputStream createBackup(String[] urls) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(urls.length);
+        for (String url : urls) {
+            writeBookmark(out, url);
+        }
+        out.close();
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static void writeBookmark(DataOutputStream out, String url)
+            throws IOException {
+        long now = System.currentTimeMillis();
+        out.writeUTF(url);
+        out.writeInt(1);
+        out.writeLong(now);
+        out.writeLong(now);
+        out.writeUTF("Title for " + url);
+    }
+
+    private static int countBookmarks(ContentResolver cr) {
+        Cursor c = cr.query(Bookmarks.CONTENT_URI, new String[] { Bookmarks._ID },
+                Bookmarks.IS_FOLDER + " = 0", null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -6,6 +6,9 @@ import android.test.LaunchPerformanceBase;
 
 public class BrowserLaunchPerformance extends LaunchPerformanceBase {
 
+    // How long to wait for the deferred start-up steps after launch
+    private static final long STARTUP_IDLE_TIMEOUT = 10 * 1000;
+
     @Override
     public void onCreate(Bundle arguments) {
         super.onCreate(arguments);
@@ -21,6 +24,21 @@ public class BrowserLaunchPerformance extends LaunchPerformanceBase {
     public void onStart() {
         super.onStart();
         LaunchApp();
+        addStartupTimings();
         finish(Activity.RESULT_OK, mResults);
     }
+
+    /**
+     * Adds how long each start-up step waited and ran to the results.
+     */
+    private void addStartupTimings() {
+        StartupScheduler scheduler = StartupScheduler.getInstance();
+        if (!scheduler.awaitIdle(STARTUP_IDLE_TIMEOUT)) {
+            mResults.putBoolean("startup_timed_out", true);
+        }
+        for (StartupScheduler.Timing timing : scheduler.getTimings()) {
+            mResults.putLong("startup_" + timing.name + "_wait", timing.getWaitTime());
+            mResults.putLong("startup_" + timing.name + "_run", timing.getRunTime());
+        }
+    }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import com.android.browser.FrecencyRanker.Candidate;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests the scoring and top-k selection of FrecencyRanker.
+ */
+public class FrecencyRankerTests extends AndroidTestCase {
+
+    private static final String LOGTAG = "FrecencyRankerTests";
+    private static final long NOW = 1000L * FrecencyRanker.DAY;
+
+    private static Candidate history(String url, int visits, long age, boolean typed) {
+        return new Candidate(url, url, false, visits, NOW - age, typed);
+    }
+
+    @SmallTest
+    public void testScore() {
+        FrecencyRanker ranker = new FrecencyRanker(NOW);
+        assertEquals(10.0, ranker.score(history("a", 10, 0, false)), 1e-9);
+        // One half-life later a visit counts half
+        assertEquals(5.0, ranker.score(history("a", 10, FrecencyRanker.HALF_LIFE, false)), 1e-9);
+        assertEquals(20.0, ranker.score(history("a", 10, 0, true)), 1e-9);
+        assertEquals(FrecencyRanker.BOOKMARK_BONUS,
+                ranker.score(new Candidate("b", "b", true, 0, 0, false)), 1e-9);
+        // Visits in the future, e.g. after a clock change, are not boosted
+        assertEquals(1.0, ranker.score(history("a", 1, -FrecencyRanker.DAY, false)), 1e-9);
+    }
+
+    @SmallTest
+    public void testRanking() {
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        candidates.add(history("http://stale.com/", 50, 180 * FrecencyRanker.DAY, false));
+        candidates.add(history("http://recent.com/", 4, FrecencyRanker.DAY, false));
+        candidates.add(history("http://typed.com/", 3, FrecencyRanker.DAY, true));
+        candidates.add(new Candidate("http://bookmark.com/", "bookmark", true, 0, 0, false));
+        candidates.add(history("http://once.com/", 1, 30 * FrecencyRanker.DAY, false));
+
+        List<Candidate> top = new FrecencyRanker(NOW).topK(candidates, 3);
+        assertEquals(3, top.size());
+        assertEquals("http://typed.com/", top.get(0).url);
+        assertEquals("http://bookmark.com/", top.get(1).url);
+        assertEquals("http://recent.com/", top.get(2).url);
+
+        assertEquals(5, new FrecencyRanker(NOW).topK(candidates, 10).size());
+        assertTrue(new FrecencyRanker(NOW).topK(candidates, 0).isEmpty());
+    }
+
+    @SmallTest
+    public void testTiesAreStable() {
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        candidates.add(history("http://b.com/", 1, 0, false));
+        candidates.add(history("http://a.com/", 1, 0, false));
+        candidates.add(history("http://c.com/", 1, 0, false));
+        List<Candidate> top = new FrecencyRanker(NOW).topK(candidates, 2);
+        assertEquals("http://a.com/", top.get(0).url);
+        assertEquals("http://b.com/", top.get(1).url);
+    }
+
+    @LargeTest
+    public void testTopKMatchesSort() {
+        Random random = new Random(42);
+        List<Candidate> candidates = new ArrayList<Candidate>(100000);
+        for (int i = 0; i < 100000; i++) {
+            candidates.add(new Candidate("http://site" + i + ".com/", null,
+                    random.nextInt(20) == 0, random.nextInt(100),
+                    NOW - (long) (random.nextDouble() * 365 * FrecencyRanker.DAY),
+                    random.nextBoolean()));
+        }
+        final FrecencyRanker ranker = new FrecencyRanker(NOW);
+
+        long start = SystemClock.uptimeMillis();
+        List<Candidate> top = ranker.topK(candidates, 8);
+        long heapTime = SystemClock.uptimeMillis() - start;
+
+        start = SystemClock.uptimeMillis();
+        List<Candidate> sorted = new ArrayList<Candidate>(candidates);
+        Collections.sort(sorted, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate lhs, Candidate rhs) {
+                int c = Double.compare(ranker.score(rhs), ranker.score(lhs));
+                if (c != 0) {
+                    return c;
+                }
+                if (lhs.lastVisited != rhs.lastVisited) {
+                    return lhs.lastVisited > rhs.lastVisited ? -1 : 1;
+                }
+                return lhs.url.compareTo(rhs.url);
+            }
+        });
+        long sortTime = SystemClock.uptimeMillis() - start;
+        Log.i(LOGTAG, "Top 8 of 100k candidates: heap " + heapTime + "ms, sort "
+                + sortTime + "ms");
+
+        for (int i = 0; i < top.size(); i++) {
+            assertSame(sorted.get(i), top.get(i));
+        }
+    }
+}
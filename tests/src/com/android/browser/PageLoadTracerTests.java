@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Unit tests for the page load timelines kept by PageLoadTracer.
+ */
+@SmallTest
+public class PageLoadTracerTests extends AndroidTestCase {
+
+    private void load(PageLoadTracer tracer, long tab, String url, long start, long duration) {
+        tracer.onPageStarted(tab, url, start, 0, start);
+        tracer.onEvent(tab, PageLoadTracer.EVENT_FIRST_PROGRESS, start + 10, 1);
+        tracer.onEvent(tab, PageLoadTracer.EVENT_FINISH, start + duration, 5);
+    }
+
+    public void testTimeline() {
+        PageLoadTracer tracer = new PageLoadTracer(10);
+        tracer.onPageStarted(1, "http://www.example.com/a", 1000, 100, 5000);
+        tracer.onEvent(1, PageLoadTracer.EVENT_FIRST_PROGRESS, 1050, 110);
+        // Only the first occurrence of an event is recorded
+        tracer.onEvent(1, PageLoadTracer.EVENT_FIRST_PROGRESS, 1070, 120);
+        tracer.onEvent(1, PageLoadTracer.EVENT_TITLE, 1200, 130);
+        tracer.addCost(1, PageLoadTracer.COST_THUMBNAIL, 7);
+        tracer.addCost("http://www.example.com/a", PageLoadTracer.COST_HISTORY_WRITE, 3);
+        assertTrue(tracer.getTimelines().isEmpty());
+
+        tracer.onEvent(1, PageLoadTracer.EVENT_FINISH, 1900, 180);
+        // Costs arriving after the finish go to the last load of the tab
+        tracer.addCost(1, PageLoadTracer.COST_THUMBNAIL, 5);
+
+        List<PageLoadTracer.Timeline> timelines = tracer.getTimelines();
+        assertEquals(1, timelines.size());
+        PageLoadTracer.Timeline t = timelines.get(0);
+        assertEquals("www.example.com", t.host);
+        assertTrue(t.isFinished());
+        assertEquals(50, t.getOffset(PageLoadTracer.EVENT_FIRST_PROGRESS));
+        assertEquals(200, t.getOffset(PageLoadTracer.EVENT_TITLE));
+        assertEquals(-1, t.getOffset(PageLoadTracer.EVENT_FIRST_PICTURE));
+        assertEquals(900, t.getOffset(PageLoadTracer.EVENT_FINISH));
+        assertEquals(10, t.getUiTime(PageLoadTracer.EVENT_FIRST_PROGRESS));
+        assertEquals(20, t.getUiTime(PageLoadTracer.EVENT_TITLE));
+        assertEquals(50, t.getUiTime(PageLoadTracer.EVENT_FINISH));
+        assertEquals(12, t.getCost(PageLoadTracer.COST_THUMBNAIL));
+        assertEquals(3, t.getCost(PageLoadTracer.COST_HISTORY_WRITE));
+    }
+
+    public void testRingBuffer() {
+        PageLoadTracer tracer = new PageLoadTracer(3);
+        for (int i = 0; i < 5; i++) {
+            load(tracer, 1, "http://example.com/" + i, i * 1000, 100);
+        }
+        // A restarted load drops the unfinished timeline
+        tracer.onPageStarted(2, "http://example.com/x", 0, 0, 0);
+        tracer.onPageStarted(2, "http://example.com/y", 10, 0, 0);
+        tracer.onEvent(2, PageLoadTracer.EVENT_FINISH, 20, 0);
+
+        List<PageLoadTracer.Timeline> timelines = tracer.getTimelines();
+        assertEquals(3, timelines.size());
+        assertEquals("http://example.com/3", timelines.get(0).url);
+        assertEquals("http://example.com/4", timelines.get(1).url);
+        assertEquals("http://example.com/y", timelines.get(2).url);
+    }
+
+    public void testHostSummaries() throws Exception {
+        PageLoadTracer tracer = new PageLoadTracer(200);
+        for (int i = 1; i <= 100; i++) {
+            load(tracer, 1, "http://a.com/" + i, i * 10000, i * 10);
+        }
+        load(tracer, 2, "http://b.com/", 0, 500);
+
+        List<PageLoadTracer.HostSummary> summaries = tracer.getHostSummaries();
+        assertEquals(2, summaries.size());
+        PageLoadTracer.HostSummary a = summaries.get(0);
+        assertEquals("a.com", a.host);
+        assertEquals(100, a.count);
+        assertEquals(500, a.loadTimes[0]);
+        assertEquals(900, a.loadTimes[1]);
+        assertEquals(990, a.loadTimes[2]);
+        assertEquals(5, a.uiTimes[0]);
+        PageLoadTracer.HostSummary b = summaries.get(1);
+        assertEquals(1, b.count);
+        assertEquals(500, b.loadTimes[2]);
+
+        JSONObject json = new JSONObject(tracer.toJson("test-build"));
+        assertEquals("test-build", json.getString("build"));
+        assertEquals(101, json.getJSONArray("timelines").length());
+        JSONObject timeline = json.getJSONArray("timelines").getJSONObject(0);
+        assertEquals("a.com", timeline.getString("host"));
+        assertFalse(timeline.has("url"));
+        assertEquals(2, json.getJSONArray("hosts").length());
+        assertEquals(500, json.getJSONArray("hosts").getJSONObject(1).getLong("loadP50"));
+    }
+
+    public void testPercentile() {
+        assertEquals(-1, PageLoadTracer.percentile(new long[0], 50));
+        assertEquals(7, PageLoadTracer.percentile(new long[] { 7 }, 99));
+        long[] values = { 1, 2, 3, 4 };
+        assertEquals(2, PageLoadTracer.percentile(values, 50));
+        assertEquals(4, PageLoadTracer.percentile(values, 90));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.Looper;
+import android.os.Process;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the ordering, deferral and timing of StartupScheduler steps.
+ */
+@MediumTest
+public class StartupSchedulerTests extends AndroidTestCase {
+
+    private static final long TIMEOUT = 2000;
+
+    private final List<String> mOrder = Collections.synchronizedList(new ArrayList<String>());
+
+    private Runnable step(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mOrder.add(name);
+            }
+        };
+    }
+
+    public void testDependencies() {
+        StartupScheduler scheduler = new StartupScheduler();
+        scheduler.onFirstPaint();
+        scheduler.add("c", step("c"), 0, "a", "b");
+        scheduler.add("b", step("b"), 0, "a");
+        scheduler.add("a", step("a"), 0);
+        assertTrue(scheduler.awaitIdle(TIMEOUT));
+        assertEquals(3, mOrder.size());
+        assertEquals("a", mOrder.get(0));
+        assertEquals("b", mOrder.get(1));
+        assertEquals("c", mOrder.get(2));
+        assertEquals(3, scheduler.getTimings().size());
+    }
+
+    public void testIndependentStepsRunInParallel() throws Exception {
+        StartupScheduler scheduler = new StartupScheduler();
+        // Each step waits for the other, so this only finishes if both run
+        // at the same time
+        final CountDownLatch latch = new CountDownLatch(2);
+        Runnable meet = new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+                try {
+                    latch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        scheduler.add("x", meet, 0);
+        scheduler.add("y", meet, 0);
+        assertTrue(latch.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(scheduler.awaitIdle(TIMEOUT));
+    }
+
+    public void testDeferredWaitsForFirstPaint() throws Exception {
+        StartupScheduler scheduler = new StartupScheduler();
+        scheduler.add("critical", step("critical"), 0);
+        scheduler.add("deferred", step("deferred"), StartupScheduler.FLAG_DEFERRED);
+        assertFalse(scheduler.awaitIdle(200));
+        assertTrue(scheduler.isFinished("critical"));
+        assertFalse(scheduler.isFinished("deferred"));
+
+        scheduler.onFirstPaint();
+        assertTrue(scheduler.awaitIdle(TIMEOUT));
+        assertTrue(scheduler.isFinished("deferred"));
+        StartupScheduler.Timing deferred = scheduler.getTimings().get(1);
+        assertEquals("deferred", deferred.name);
+        assertTrue(deferred.deferred);
+        assertTrue(deferred.getWaitTime() >= 200);
+    }
+
+    public void testPriorities() {
+        StartupScheduler scheduler = new StartupScheduler();
+        scheduler.onFirstPaint();
+        final int[] priorities = new int[2];
+        // Run one after the other, so both are likely on the same thread
+        scheduler.add("deferred", new Runnable() {
+            @Override
+            public void run() {
+                priorities[0] = Process.getThreadPriority(Process.myTid());
+            }
+        }, StartupScheduler.FLAG_DEFERRED);
+        scheduler.add("critical", new Runnable() {
+            @Override
+            public void run() {
+                priorities[1] = Process.getThreadPriority(Process.myTid());
+            }
+        }, 0, "deferred");
+        assertTrue(scheduler.awaitIdle(TIMEOUT));
+        assertEquals(Process.THREAD_PRIORITY_BACKGROUND, priorities[0]);
+        assertEquals(Process.THREAD_PRIORITY_DEFAULT, priorities[1]);
+    }
+
+    public void testRecordedStepReleasesDependents() {
+        StartupScheduler scheduler = new StartupScheduler();
+        scheduler.add("tab", step("tab"), 0, "prelogin");
+        assertFalse(scheduler.awaitIdle(100));
+        scheduler.record("prelogin", 10, 25);
+        assertTrue(scheduler.awaitIdle(TIMEOUT));
+        StartupScheduler.Timing prelogin = scheduler.getTimings().get(0);
+        assertEquals("prelogin", prelogin.name);
+        assertEquals(15, prelogin.getRunTime());
+    }
+
+    public void testUiThreadStep() {
+        StartupScheduler scheduler = new StartupScheduler();
+        final boolean[] onUiThread = new boolean[1];
+        scheduler.add("ui", new Runnable() {
+            @Override
+            public void run() {
+                onUiThread[0] = Looper.myLooper() == Looper.getMainLooper();
+            }
+        }, StartupScheduler.FLAG_UI_THREAD);
+        assertTrue(scheduler.awaitIdle(TIMEOUT));
+        assertTrue(onUiThread[0]);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests TouchIconCache against a local HTTP server.
+ */
+@MediumTest
+public class TouchIconCacheTests extends AndroidTestCase {
+
+    private static final byte[] ICON = { 1, 2, 3, 4, 5 };
+    private static final String ETAG = "\"v1\"";
+
+    /**
+     * Serves ICON with an ETag, answering 304 to a matching If-None-Match,
+     * and records the requests it gets.
+     */
+    private static class IconServer extends Thread {
+        final ServerSocket mSocket;
+        final List<String> mConditional = new ArrayList<String>();
+        volatile long mDelay = 0;
+        int mRequests;
+
+        IconServer() throws IOException {
+            mSocket = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        }
+
+        String getUrl(String path) {
+            return "http://127.0.0.1:" + mSocket.getLocalPort() + path;
+        }
+
+        synchronized int getRequests() {
+            return mRequests;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Socket s = mSocket.accept();
+                    try {
+                        handle(s);
+                    } finally {
+                        s.close();
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void handle(Socket s) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            String ifNoneMatch = null;
+            String line = in.readLine();
+            while ((line = in.readLine()) != null && line.length() > 0) {
+                if (line.toLowerCase().startsWith("if-none-match:")) {
+                    ifNoneMatch = line.substring(line.indexOf(':') + 1).trim();
+                }
+            }
+            synchronized (this) {
+                mRequests++;
+                if (ifNoneMatch != null) {
+                    mConditional.add(ifNoneMatch);
+                }
+            }
+            try {
+                Thread.sleep(mDelay);
+            } catch (InterruptedException e) {
+            }
+            OutputStream out = s.getOutputStream();
+            if (ETAG.equals(ifNoneMatch)) {
+                out.write(("HTTP/1.1 304 Not Modified\r\nETag: " + ETAG
+                        + "\r\nConnection: close\r\n\r\n").getBytes());
+            } else {
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: image/png\r\nETag: " + ETAG
+                        + "\r\nContent-Length: " + ICON.length
+                        + "\r\nConnection: close\r\n\r\n").getBytes());
+                out.write(ICON);
+            }
+            out.flush();
+        }
+    }
+
+    // Runs background revalidations right away, so the tests are deterministic
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private IconServer mServer;
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new IconServer();
+        mServer.start();
+        mDir = new File(getContext().getCacheDir(), "touch_icon_test");
+        deleteDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.mSocket.close();
+        deleteDir();
+        super.tearDown();
+    }
+
+    private void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    public void testHitServedWithoutNetwork() {
+        String url = mServer.getUrl("/icon.png");
+        TouchIconCache cache = new TouchIconCache(mDir, DIRECT, TouchIconCache.REVALIDATE_INTERVAL);
+        assertTrue(Arrays.equals(ICON, cache.get(url, null)));
+        assertTrue(Arrays.equals(ICON, cache.get(url, null)));
+        assertEquals(1, mServer.getRequests());
+        assertEquals(1, cache.getHitCount());
+
+        // The entry survives a new cache instance
+        cache = new TouchIconCache(mDir, DIRECT, TouchIconCache.REVALIDATE_INTERVAL);
+        assertTrue(Arrays.equals(ICON, cache.get(url, null)));
+        assertEquals(1, mServer.getRequests());
+    }
+
+    public void testUserAgentsCachedSeparately() {
+        String url = mServer.getUrl("/icon.png");
+        TouchIconCache cache = new TouchIconCache(mDir, DIRECT, TouchIconCache.REVALIDATE_INTERVAL);
+        assertTrue(Arrays.equals(ICON, cache.get(url, "mobile")));
+        assertTrue(Arrays.equals(ICON, cache.get(url, "desktop")));
+        assertEquals(2, mServer.getRequests());
+        assertTrue(Arrays.equals(ICON, cache.get(url, "mobile")));
+        assertTrue(Arrays.equals(ICON, cache.get(url, "desktop")));
+        assertEquals(2, mServer.getRequests());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    public void testRevalidation() {
+        String url = mServer.getUrl("/icon.png");
+        // Every hit is stale, so it is revalidated after being served
+        TouchIconCache cache = new TouchIconCache(mDir, DIRECT, 0);
+        assertTrue(Arrays.equals(ICON, cache.get(url, null)));
+        assertTrue(mServer.mConditional.isEmpty());
+        assertTrue(Arrays.equals(ICON, cache.get(url, null)));
+        assertEquals(2, mServer.getRequests());
+        assertEquals(1, mServer.mConditional.size());
+        assertEquals(ETAG, mServer.mConditional.get(0));
+        // The 304 kept the cached icon
+        assertTrue(Arrays.equals(ICON, cache.get(url, null)));
+    }
+
+    public void testConcurrentRequestsShareDownload() throws Exception {
+        final String url = mServer.getUrl("/slow.png");
+        mServer.mDelay = 500;
+        final TouchIconCache cache =
+                new TouchIconCache(mDir, DIRECT, TouchIconCache.REVALIDATE_INTERVAL);
+        final byte[][] results = new byte[4][];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    results[index] = cache.get(url, null);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (byte[] result : results) {
+            assertTrue(Arrays.equals(ICON, result));
+        }
+        assertEquals(1, mServer.getRequests());
+    }
+
+    public void testFailedFetch() throws Exception {
+        String url = mServer.getUrl("/icon.png");
+        mServer.mSocket.close();
+        TouchIconCache cache = new TouchIconCache(mDir, DIRECT, TouchIconCache.REVALIDATE_INTERVAL);
+        assertNull(cache.get(url, null));
+    }
+}
@@ -18,8 +18,15 @@ package com.android.browser;
 
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.MediumTest;
+import android.webkit.ValueCallback;
 import android.webkit.WebStorage;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
 /**
  * This is a series of unit tests for the WebStorageSizeManager class.
  *
@@ -299,4 +306,280 @@ public class WebStorageSizeManagerUnitTests extends AndroidTestCase {
         assertEquals(database1EstimatedSize + database2EstimatedSize + database4EstimatedSize +
                 bytes(1) + database5EstimatedSize, mNewQuota);
     }
+
+    /**
+     * Test the usage snapshot used for accounting.
+     */
+    public void testAccountingSnapshot() {
+        mDiskInfo.setTotalSizeBytes(bytes(75));
+        mDiskInfo.setFreeSpaceSizeBytes(bytes(24));
+        mAppCacheInfo.setAppCacheSizeBytes(bytes(1));
+        ArrayList<WebStorageAccounting.OriginUsage> origins =
+                new ArrayList<WebStorageAccounting.OriginUsage>();
+        origins.add(new WebStorageAccounting.OriginUsage("http://a", bytes(1), bytes(3)));
+        origins.add(new WebStorageAccounting.OriginUsage("http://b", bytes(2.5), bytes(3)));
+        origins.add(new WebStorageAccounting.OriginUsage("http://c", bytes(0.5), bytes(1)));
+        WebStorageAccounting.Snapshot snapshot = WebStorageAccounting.createSnapshot(
+                0, origins, mDiskInfo, mAppCacheInfo);
+
+        assertEquals(bytes(4), snapshot.totalUsage);
+        assertEquals(bytes(7), snapshot.totalQuota);
+        assertEquals(bytes(24), snapshot.freeSpaceBytes);
+        assertEquals(bytes(75), snapshot.totalSpaceBytes);
+        assertEquals(bytes(1), snapshot.appCacheBytes);
+        assertEquals(bytes(2.5), snapshot.getOrigin("http://b").usage);
+        assertNull(snapshot.getOrigin("http://d"));
+
+        List<WebStorageAccounting.OriginUsage> top = snapshot.getTopOrigins(2);
+        assertEquals(2, top.size());
+        assertEquals("http://b", top.get(0).origin);
+        assertEquals("http://a", top.get(1).origin);
+        assertEquals(3, snapshot.getTopOrigins(10).size());
+    }
+
+    // Accounting whose WebStorage requests are answered by the test
+    private class MockAccounting extends WebStorageAccounting {
+        final ArrayList<ValueCallback<Collection<OriginUsage>>> mRequests =
+                new ArrayList<ValueCallback<Collection<OriginUsage>>>();
+
+        MockAccounting() {
+            super(mDiskInfo, mAppCacheInfo);
+        }
+
+        @Override
+        void requestOrigins(ValueCallback<Collection<OriginUsage>> callback) {
+            mRequests.add(callback);
+        }
+
+        void answer(int request, WebStorageAccounting.OriginUsage... origins) {
+            mRequests.get(request).onReceiveValue(Arrays.asList(origins));
+        }
+    }
+
+    /**
+     * Test that a refresh started before an invalidation is not served.
+     */
+    public void testAccountingDiscardsStaleRefresh() {
+        mDiskInfo.setTotalSizeBytes(bytes(75));
+        mDiskInfo.setFreeSpaceSizeBytes(bytes(24));
+        mAppCacheInfo.setAppCacheSizeBytes(0);
+        MockAccounting accounting = new MockAccounting();
+        final ArrayList<WebStorageAccounting.Snapshot> received =
+                new ArrayList<WebStorageAccounting.Snapshot>();
+        ValueCallback<WebStorageAccounting.Snapshot> callback =
+                new ValueCallback<WebStorageAccounting.Snapshot>() {
+            @Override
+            public void onReceiveValue(WebStorageAccounting.Snapshot snapshot) {
+                received.add(snapshot);
+            }
+        };
+
+        accounting.getSnapshot(callback);
+        assertEquals(1, accounting.mRequests.size());
+        // The origin is deleted while WebStorage is counting
+        accounting.invalidate();
+        accounting.answer(0, new WebStorageAccounting.OriginUsage("http://a", bytes(1), bytes(3)));
+        assertTrue(received.isEmpty());
+        assertNull(accounting.peekSnapshot());
+        assertEquals(2, accounting.mRequests.size());
+        accounting.answer(1);
+        assertEquals(1, received.size());
+        assertEquals(0, received.get(0).totalUsage);
+
+        // Served without asking WebStorage again until invalidated, and the
+        // last snapshot can still be peeked at after that
+        accounting.getSnapshot(callback);
+        assertEquals(2, accounting.mRequests.size());
+        assertSame(received.get(0), received.get(1));
+        accounting.invalidate();
+        assertSame(received.get(0), accounting.peekSnapshot());
+        accounting.requestRefresh();
+        assertEquals(3, accounting.mRequests.size());
+    }
+
+    /**
+     * Test that every refresh listener receives a new snapshot, until it is
+     * removed.
+     */
+    public void testAccountingRefreshListeners() {
+        mDiskInfo.setTotalSizeBytes(bytes(75));
+        mDiskInfo.setFreeSpaceSizeBytes(bytes(24));
+        mAppCacheInfo.setAppCacheSizeBytes(0);
+        MockAccounting accounting = new MockAccounting();
+        final ArrayList<WebStorageAccounting.Snapshot> first =
+                new ArrayList<WebStorageAccounting.Snapshot>();
+        final ArrayList<WebStorageAccounting.Snapshot> second =
+                new ArrayList<WebStorageAccounting.Snapshot>();
+        ValueCallback<WebStorageAccounting.Snapshot> firstListener =
+                new ValueCallback<WebStorageAccounting.Snapshot>() {
+            @Override
+            public void onReceiveValue(WebStorageAccounting.Snapshot snapshot) {
+                first.add(snapshot);
+            }
+        };
+        accounting.addRefreshListener(firstListener);
+        accounting.addRefreshListener(new ValueCallback<WebStorageAccounting.Snapshot>() {
+            @Override
+            public void onReceiveValue(WebStorageAccounting.Snapshot snapshot) {
+                second.add(snapshot);
+            }
+        });
+
+        accounting.requestRefresh();
+        accounting.answer(0, new WebStorageAccounting.OriginUsage("http://a", bytes(1), bytes(3)));
+        assertEquals(1, first.size());
+        assertEquals(1, second.size());
+        assertSame(first.get(0), second.get(0));
+
+        accounting.removeRefreshListener(firstListener);
+        accounting.invalidate();
+        accounting.requestRefresh();
+        accounting.answer(1);
+        assertEquals(1, first.size());
+        assertEquals(2, second.size());
+        assertEquals(0, second.get(1).totalUsage);
+    }
+
+    private static WebStorageEvictionPolicy.Candidate candidate(String host, long usage,
+            long lastUsed) {
+        return new WebStorageEvictionPolicy.Candidate("http://" + host, host, usage, lastUsed);
+    }
+
+    /**
+     * Test that nothing is evicted while under the limit.
+     */
+    public void testEvictionUnderLimit() {
+        mDiskInfo.setTotalSizeBytes(bytes(75));
+        mDiskInfo.setFreeSpaceSizeBytes(bytes(24));
+        mAppCacheInfo.setAppCacheSizeBytes(bytes(1));
+        ArrayList<WebStorageEvictionPolicy.Candidate> candidates =
+                new ArrayList<WebStorageEvictionPolicy.Candidate>();
+        candidates.add(candidate("a", bytes(3), 0));
+        WebStorageEvictionPolicy.Result result = WebStorageEvictionPolicy.selectOrigins(
+                candidates, new HashSet<String>(), bytes(12), mDiskInfo, mAppCacheInfo);
+        assertTrue(result.evicted.isEmpty());
+        assertEquals(1, result.log.size());
+    }
+
+    /**
+     * Test the check made on every snapshot.
+     */
+    public void testNeedsEviction() {
+        mDiskInfo.setTotalSizeBytes(bytes(75));
+        mDiskInfo.setFreeSpaceSizeBytes(bytes(24));
+        mAppCacheInfo.setAppCacheSizeBytes(bytes(1));
+        ArrayList<WebStorageAccounting.OriginUsage> origins =
+                new ArrayList<WebStorageAccounting.OriginUsage>();
+        origins.add(new WebStorageAccounting.OriginUsage("http://a", bytes(10), bytes(10)));
+        WebStorageAccounting.Snapshot snapshot = WebStorageAccounting.createSnapshot(
+                0, origins, mDiskInfo, mAppCacheInfo);
+        assertFalse(WebStorageEvictionPolicy.needsEviction(snapshot, bytes(12)));
+        // The appcache counts toward the limit
+        assertTrue(WebStorageEvictionPolicy.needsEviction(snapshot, bytes(10.5)));
+        // Less than 1/20th of the disk free
+        mDiskInfo.setFreeSpaceSizeBytes(bytes(3));
+        snapshot = WebStorageAccounting.createSnapshot(0, origins, mDiskInfo, mAppCacheInfo);
+        assertTrue(WebStorageEvictionPolicy.needsEviction(snapshot, bytes(12)));
+    }
+
+    /**
+     * Test that the least recently used origins are evicted first, largest
+     * first within a day, until usage is back under the target.
+     */
+    public void testEvictionLeastRecentlyUsed() {
+        final long day = 24 * 60 * 60 * 1000;
+        mDiskInfo.setTotalSizeBytes(bytes(75));
+        mDiskInfo.setFreeSpaceSizeBytes(bytes(24));
+        mAppCacheInfo.setAppCacheSizeBytes(bytes(1));
+        ArrayList<WebStorageEvictionPolicy.Candidate> candidates =
+                new ArrayList<WebStorageEvictionPolicy.Candidate>();
+        candidates.add(candidate("recent", bytes(5), 10 * day));
+        candidates.add(candidate("old-small", bytes(1), 2 * day));
+        candidates.add(candidate("old-large", bytes(3), 2 * day + 1000));
+        candidates.add(candidate("older", bytes(2), day));
+        // 12MB used against an 11.5MB limit: evict down to the 8.6MB target
+        WebStorageEvictionPolicy.Result result = WebStorageEvictionPolicy.selectOrigins(
+                candidates, new HashSet<String>(), bytes(11.5), mDiskInfo, mAppCacheInfo);
+        assertEquals(2, result.evicted.size());
+        assertEquals("http://older", result.evicted.get(0));
+        assertEquals("http://old-large", result.evicted.get(1));
+        assertEquals(bytes(5), result.bytesFreed);
+    }
+
+    /**
+     * Test that low free space only evicts what makes up for it, and
+     * nothing when the space is taken by something else.
+     */
+    public void testEvictionDiskPressureBounded() {
+        final long day = 24 * 60 * 60 * 1000;
+        // 75MB partition: at least 3.75MB must be free, the 12MB limit is not hit
+        mDiskInfo.setTotalSizeBytes(bytes(75));
+        mAppCacheInfo.setAppCacheSizeBytes(0);
+        ArrayList<WebStorageEvictionPolicy.Candidate> candidates =
+                new ArrayList<WebStorageEvictionPolicy.Candidate>();
+        candidates.add(candidate("oldest", bytes(1), day));
+        candidates.add(candidate("old", bytes(1), 2 * day));
+        candidates.add(candidate("recent", bytes(1), 3 * day));
+
+        // Free space stays under the minimum whatever is evicted
+        mDiskInfo.setFreeSpaceSizeBytes(bytes(0.5));
+        WebStorageEvictionPolicy.Result result = WebStorageEvictionPolicy.selectOrigins(
+                candidates, new HashSet<String>(), bytes(12), mDiskInfo, mAppCacheInfo);
+        assertTrue(result.evicted.isEmpty());
+        assertEquals(0, result.bytesFreed);
+        assertFalse(result.reachedTarget);
+
+        // 0.75MB short: only the oldest origin goes
+        mDiskInfo.setFreeSpaceSizeBytes(bytes(3));
+        result = WebStorageEvictionPolicy.selectOrigins(
+                candidates, new HashSet<String>(), bytes(12), mDiskInfo, mAppCacheInfo);
+        assertEquals(1, result.evicted.size());
+        assertEquals("http://oldest", result.evicted.get(0));
+        assertEquals(bytes(1), result.bytesFreed);
+        assertTrue(result.reachedTarget);
+    }
+
+    /**
+     * Test that bookmarked and open hosts are never evicted.
+     */
+    public void testEvictionSkipsProtectedHosts() {
+        mDiskInfo.setTotalSizeBytes(bytes(75));
+        mDiskInfo.setFreeSpaceSizeBytes(bytes(24));
+        mAppCacheInfo.setAppCacheSizeBytes(0);
+        ArrayList<WebStorageEvictionPolicy.Candidate> candidates =
+                new ArrayList<WebStorageEvictionPolicy.Candidate>();
+        candidates.add(candidate("bookmarked", bytes(6), 0));
+        candidates.add(candidate("open", bytes(6), 0));
+        candidates.add(candidate("other", bytes(2), 1));
+        HashSet<String> protectedHosts = new HashSet<String>();
+        protectedHosts.add("bookmarked");
+        protectedHosts.add("open");
+        WebStorageEvictionPolicy.Result result = WebStorageEvictionPolicy.selectOrigins(
+                candidates, protectedHosts, bytes(12), mDiskInfo, mAppCacheInfo);
+        assertEquals(1, result.evicted.size());
+        assertEquals("http://other", result.evicted.get(0));
+        // Start, two kept, one evicted, target not reached
+        assertEquals(5, result.log.size());
+    }
+
+    /**
+     * Test that low free space triggers eviction even under the limit.
+     */
+    public void testEvictionLowDisk() {
+        // 1/20th of 100MB is 5MB minimum free space
+        mDiskInfo.setTotalSizeBytes(bytes(100));
+        mDiskInfo.setFreeSpaceSizeBytes(bytes(4));
+        mAppCacheInfo.setAppCacheSizeBytes(0);
+        ArrayList<WebStorageEvictionPolicy.Candidate> candidates =
+                new ArrayList<WebStorageEvictionPolicy.Candidate>();
+        candidates.add(candidate("a", bytes(0.5), 0));
+        candidates.add(candidate("b", bytes(1), 1));
+        candidates.add(candidate("c", bytes(1), 2));
+        WebStorageEvictionPolicy.Result result = WebStorageEvictionPolicy.selectOrigins(
+                candidates, new HashSet<String>(), bytes(12), mDiskInfo, mAppCacheInfo);
+        // Evicting b alone brings free space back to 5MB
+        assertEquals(1, result.evicted.size());
+        assertEquals("http://b", result.evicted.get(0));
+        assertEquals(bytes(1), result.bytesFreed);
+    }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.Combined;
+import android.provider.BrowserContract.History;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks Combined.CONTENT_URI against the UNION query it used to run.
+ */
+public class BP2CombinedTests extends BP2TestCaseHelper {
+
+    private static final String LOGTAG = "BP2CombinedTests";
+
+    private static final String[] PROJECTION = new String[] {
+        Combined._ID, Combined.URL, Combined.TITLE, Combined.IS_BOOKMARK, Combined.VISITS
+    };
+
+    // The query behind Combined.CONTENT_URI before it was driven by url
+    private static final String UNION_QUERY =
+            "SELECT _id, url, title, bookmark, visits FROM ("
+            + "SELECT CASE WHEN bookmarks._id IS NOT NULL"
+            + " THEN bookmarks._id ELSE history._id END AS _id,"
+            + " CASE WHEN bookmarks.title IS NOT NULL"
+            + " THEN bookmarks.title ELSE history.title END AS title,"
+            + " history.url AS url,"
+            + " CASE WHEN bookmarks._id IS NOT NULL THEN 1 ELSE 0 END AS bookmark, visits"
+            + " FROM history LEFT OUTER JOIN (SELECT * FROM bookmarks WHERE deleted = 0)"
+            + " bookmarks ON history.url = bookmarks.url"
+            + " LEFT OUTER JOIN images ON history.url = images.url_key"
+            + " UNION SELECT _id, title, url, 1 AS bookmark, 0 AS visits"
+            + " FROM bookmarks LEFT OUTER JOIN images ON bookmarks.url = images.url_key"
+            + " WHERE deleted = 0 AND url NOT IN (SELECT url FROM history))";
+
+    private static final String URL_SELECTION = Combined.URL + " == ?";
+
+    // Rows as "_id url title bookmark visits", sorted
+    private static List<String> rows(Cursor c) {
+        ArrayList<String> rows = new ArrayList<String>();
+        try {
+            while (c.moveToNext()) {
+                rows.add(c.getLong(0) + " " + c.getString(1) + " " + c.getString(2)
+                        + " " + c.getInt(3) + " " + c.getInt(4));
+            }
+        } finally {
+            c.close();
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private List<String> unionRows(String selection, String[] args) {
+        String sql = UNION_QUERY;
+        if (selection != null) {
+            sql += " WHERE " + selection;
+        }
+        return rows(getDatabase().rawQuery(sql, args));
+    }
+
+    private List<String> combinedRows(String selection, String[] args) {
+        return rows(getMockContentResolver().query(Combined.CONTENT_URI, PROJECTION,
+                selection, args, null));
+    }
+
+    private void assertMatchesUnion() {
+        assertEquals(unionRows(null, null), combinedRows(null, null));
+    }
+
+    @SmallTest
+    public void testMatchesUnion() {
+        Uri both = insertBookmark("http://both.com/", "bookmark title");
+        insertHistory("http://both.com/", "history title");
+        insertBookmark("http://bookmark.com/", "bookmark");
+        Uri deleted = insertBookmark("http://deleted.com/", "deleted");
+        Uri visited = insertHistory("http://visited.com/", "visited");
+        ContentValues folder = new ContentValues();
+        folder.put(Bookmarks.TITLE, "folder");
+        folder.put(Bookmarks.IS_FOLDER, 1);
+        insertBookmark(folder);
+        ContentValues visit = new ContentValues();
+        visit.put(History.VISITS, 3);
+        updateHistory(visited, visit);
+        assertMatchesUnion();
+
+        getMockContentResolver().delete(deleted, null, null);
+        assertMatchesUnion();
+
+        // The history entry stays once its url is no longer bookmarked
+        getMockContentResolver().delete(both, null, null);
+        assertMatchesUnion();
+        List<String> rows = combinedRows(URL_SELECTION, new String[] { "http://both.com/" });
+        assertEquals(1, rows.size());
+        assertTrue(rows.get(0), rows.get(0).endsWith("history title 0 0"));
+    }
+
+    @LargeTest
+    public void testLookupAndListingLatency() {
+        // The first half of the bookmarks are in history too
+        insertFixtures(100000, 10000, 20);
+
+        // What Bookmarks.queryCombinedForUrl asks for on icon updates
+        String[] urls = { fixtureUrl(7), fixtureUrl(40), fixtureUrl(150000),
+                "http://www.example.com/missing" };
+        long unionTime = 0;
+        long combinedTime = 0;
+        for (String url : urls) {
+            String[] args = new String[] { url };
+            long start = SystemClock.uptimeMillis();
+            List<String> expected = unionRows(URL_SELECTION, args);
+            unionTime += SystemClock.uptimeMillis() - start;
+            start = SystemClock.uptimeMillis();
+            List<String> actual = combinedRows(URL_SELECTION, args);
+            combinedTime += SystemClock.uptimeMillis() - start;
+            assertEquals(expected, actual);
+        }
+        Log.i(LOGTAG, urls.length + " url lookups: union " + unionTime + "ms, combined "
+                + combinedTime + "ms");
+
+        // What BrowserHistoryPage lists
+        long start = SystemClock.uptimeMillis();
+        List<String> expected = unionRows(null, null);
+        unionTime = SystemClock.uptimeMillis() - start;
+        start = SystemClock.uptimeMillis();
+        List<String> actual = combinedRows(null, null);
+        combinedTime = SystemClock.uptimeMillis() - start;
+        assertEquals(expected, actual);
+        Log.i(LOGTAG, "Listing " + actual.size() + " rows: union " + unionTime
+                + "ms, combined " + combinedTime + "ms");
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.BatchImageLoader;
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.Images;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Compares listing bookmarks with their thumbnails inline against listing
+ * BrowserProvider2.IMAGE_ID and loading thumbnails for the visible rows.
+ */
+public class BP2LightweightProjectionTests extends BP2TestCaseHelper {
+
+    private static final String LOGTAG = "BP2LightweightProjectionTests";
+
+    private static final String[] FULL_PROJECTION = new String[] {
+        Bookmarks._ID, Bookmarks.URL, Bookmarks.TITLE, Bookmarks.THUMBNAIL
+    };
+    private static final String[] LIGHT_PROJECTION = new String[] {
+        Bookmarks._ID, Bookmarks.URL, Bookmarks.TITLE, BrowserProvider2.IMAGE_ID
+    };
+    private static final String SELECTION = Bookmarks.PARENT + "="
+            + BrowserProvider2.FIXED_ID_ROOT;
+    private static final String SORT_ORDER = Bookmarks._ID;
+
+    private static final int BOOKMARKS = 5000;
+    private static final int THUMBNAIL_SIZE = 8 * 1024;
+    private static final int SCREEN = 24;
+    private static final int SCREENS = 40;
+
+    private Cursor query(String[] projection) {
+        return getMockContentResolver().query(Bookmarks.CONTENT_URI, projection,
+                SELECTION, null, SORT_ORDER);
+    }
+
+    @SmallTest
+    public void testImageId() {
+        insertBookmark("http://none.com/", "none");
+        insertBookmark("http://image.com/", "image");
+        ContentValues values = new ContentValues();
+        values.put(Images.URL, "http://image.com/");
+        values.put(Images.THUMBNAIL, new byte[] { 1, 2, 3 });
+        assertTrue(updateBookmark(Images.CONTENT_URI, values));
+
+        BatchImageLoader loader = new BatchImageLoader(getMockContentResolver(),
+                Images.THUMBNAIL);
+        Cursor full = query(FULL_PROJECTION);
+        Cursor light = query(LIGHT_PROJECTION);
+        try {
+            assertEquals(2, light.getCount());
+            while (full.moveToNext()) {
+                assertTrue(light.moveToNext());
+                assertEquals(full.getString(1), light.getString(1));
+                int position = light.getPosition();
+                byte[] blob = loader.get(light, 3);
+                assertTrue(Arrays.equals(full.getBlob(3), blob));
+                assertEquals(position, light.getPosition());
+                assertTrue(Arrays.equals(full.getBlob(3), BatchImageLoader.fetch(
+                        getMockContentResolver(), Images.THUMBNAIL, light, 3)));
+            }
+            light.moveToPosition(0);
+            assertTrue(light.isNull(3));
+        } finally {
+            full.close();
+            light.close();
+        }
+    }
+
+    @LargeTest
+    public void testScrollLatencyAndMemory() {
+        SQLiteDatabase db = getProvider().getDatabaseHelper(getMockContext())
+                .getWritableDatabase();
+        byte[] thumbnail = new byte[THUMBNAIL_SIZE];
+        db.beginTransaction();
+        try {
+            SQLiteStatement bookmarks = db.compileStatement(
+                    "INSERT INTO bookmarks (title, url, parent, position) VALUES (?, ?, ?, ?)");
+            SQLiteStatement images = db.compileStatement(
+                    "INSERT INTO images (url_key, thumbnail) VALUES (?, ?)");
+            for (int i = 0; i < BOOKMARKS; i++) {
+                String url = "http://www.example.com/page/" + i;
+                bookmarks.bindString(1, "bookmark " + i);
+                bookmarks.bindString(2, url);
+                bookmarks.bindLong(3, BrowserProvider2.FIXED_ID_ROOT);
+                bookmarks.bindLong(4, i);
+                bookmarks.executeInsert();
+                thumbnail[0] = (byte) i;
+                images.bindString(1, url);
+                images.bindBlob(2, thumbnail);
+                images.executeInsert();
+            }
+            bookmarks.close();
+            images.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // Scroll through SCREENS screens of the list, as the bookmarks page
+        // would, keeping the worst time to fill a screen. The thumbnails of
+        // the full projection are all read into its cursor window.
+        byte[][] expected = new byte[SCREENS * SCREEN][];
+        long start = SystemClock.uptimeMillis();
+        Cursor full = query(FULL_PROJECTION);
+        long fullWorst = 0;
+        for (int screen = 0, row = 0; screen < SCREENS; screen++) {
+            long screenStart = SystemClock.uptimeMillis();
+            for (int i = 0; i < SCREEN && full.moveToNext(); i++) {
+                expected[row++] = full.getBlob(3);
+            }
+            fullWorst = Math.max(fullWorst, SystemClock.uptimeMillis() - screenStart);
+        }
+        long fullTime = SystemClock.uptimeMillis() - start;
+        full.close();
+
+        byte[][] actual = new byte[SCREENS * SCREEN][];
+        start = SystemClock.uptimeMillis();
+        Cursor light = query(LIGHT_PROJECTION);
+        BatchImageLoader loader = new BatchImageLoader(getMockContentResolver(),
+                Images.THUMBNAIL);
+        long lightWorst = 0;
+        for (int screen = 0, row = 0; screen < SCREENS; screen++) {
+            long screenStart = SystemClock.uptimeMillis();
+            for (int i = 0; i < SCREEN && light.moveToNext(); i++) {
+                actual[row++] = loader.get(light, 3);
+            }
+            lightWorst = Math.max(lightWorst, SystemClock.uptimeMillis() - screenStart);
+        }
+        long lightTime = SystemClock.uptimeMillis() - start;
+        assertEquals(BOOKMARKS, light.getCount());
+        light.close();
+
+        long shownBytes = 0;
+        for (int row = 0; row < expected.length; row++) {
+            assertTrue("row " + row, Arrays.equals(expected[row], actual[row]));
+            shownBytes += actual[row].length;
+        }
+        Log.i(LOGTAG, SCREENS + " screens of " + SCREEN + " of " + BOOKMARKS
+                + " bookmarks: full projection " + fullTime + "ms (worst screen "
+                + fullWorst + "ms), image id " + lightTime + "ms (worst screen "
+                + lightWorst + "ms)");
+        Log.i(LOGTAG, shownBytes + " bytes of thumbnails shown, each also copied into"
+                + " the cursor window of the full projection; the image id cursor holds"
+                + " none and its loader caches at most 1MB");
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.BrowserContract;
+import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.History;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks the omnibox_suggestions table against the v_omnibox_suggestions
+ * view it replaced.
+ */
+public class BP2OmniboxSuggestionsTests extends BP2TestCaseHelper {
+
+    private static final String LOGTAG = "BP2OmniboxSuggestionsTests";
+
+    // The definition of v_omnibox_suggestions before version 36
+    private static final String VIEW_QUERY =
+            "SELECT _id, url, title, 1 AS bookmark, 0 AS visits, 0 AS date"
+            + " FROM bookmarks"
+            + " WHERE deleted = 0 AND folder = 0"
+            + " UNION ALL"
+            + " SELECT _id, url, title, 0 AS bookmark, visits, date"
+            + " FROM history"
+            + " WHERE url NOT IN (SELECT url FROM bookmarks"
+            + " WHERE deleted = 0 AND folder = 0)"
+            + " ORDER BY bookmark DESC, visits DESC, date DESC";
+
+    private static final String TABLE_QUERY =
+            "SELECT _id, url, title, bookmark FROM omnibox_suggestions";
+
+    // The query SuggestionsAdapter.CombinedCursor makes on every keystroke
+    private static final String[] SUGGEST_PROJECTION = new String[] {
+            OmniboxSuggestions._ID, OmniboxSuggestions.TITLE, OmniboxSuggestions.URL,
+            OmniboxSuggestions.IS_BOOKMARK, OmniboxSuggestions.VISITS,
+            OmniboxSuggestions.DATE_LAST_VISITED, OmniboxSuggestions.USER_ENTERED
+    };
+    private static final String SUGGEST_SELECTION =
+            "(url LIKE ? OR url LIKE ? OR url LIKE ? OR url LIKE ? OR title LIKE ?)";
+    private static final int SUGGEST_LIMIT = 50;
+
+    // Rows as "_id url title bookmark", sorted
+    private List<String> rows(String sql, String[] args) {
+        ArrayList<String> rows = new ArrayList<String>();
+        Cursor c = getDatabase().rawQuery(sql, args);
+        try {
+            int id = c.getColumnIndexOrThrow("_id");
+            int url = c.getColumnIndexOrThrow("url");
+            int title = c.getColumnIndexOrThrow("title");
+            int bookmark = c.getColumnIndexOrThrow("bookmark");
+            while (c.moveToNext()) {
+                rows.add(c.getLong(id) + " " + c.getString(url) + " "
+                        + c.getString(title) + " " + c.getInt(bookmark));
+            }
+        } finally {
+            c.close();
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private void assertMatchesView() {
+        assertEquals(rows(VIEW_QUERY, null), rows(TABLE_QUERY, null));
+    }
+
+    @SmallTest
+    public void testMatchesView() {
+        Uri bookmarked = insertBookmark("http://bookmarked.com/", "bookmarked");
+        Uri moved = insertBookmark("http://moved.com/", "moved");
+        Uri deleted = insertBookmark("http://deleted.com/", "deleted");
+        insertHistory("http://bookmarked.com/", "visited bookmark");
+        Uri visited = insertHistory("http://visited.com/", "visited");
+        Uri removed = insertHistory("http://removed.com/", "removed");
+        ContentValues folder = new ContentValues();
+        folder.put(Bookmarks.TITLE, "folder");
+        folder.put(Bookmarks.IS_FOLDER, 1);
+        insertBookmark(folder);
+        assertMatchesView();
+
+        updateBookmark(moved, "http://elsewhere.com/", "moved");
+        updateBookmark(bookmarked, "http://bookmarked.com/", "renamed");
+        ContentValues visit = new ContentValues();
+        visit.put(History.VISITS, 5);
+        visit.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
+        updateHistory(visited, visit);
+        assertMatchesView();
+
+        getMockContentResolver().delete(deleted, null, null);
+        getMockContentResolver().delete(removed, null, null);
+        assertMatchesView();
+
+        // The history entry takes over once its url is no longer bookmarked
+        getMockContentResolver().delete(bookmarked, null, null);
+        assertMatchesView();
+        List<String> rows = rows(TABLE_QUERY + " WHERE url = ?",
+                new String[] { "http://bookmarked.com/" });
+        assertEquals(1, rows.size());
+        assertTrue(rows.get(0), rows.get(0).endsWith("visited bookmark 0"));
+    }
+
+    @SmallTest
+    public void testRanking() {
+        insertHistory("http://www.example.com/old", "old");
+        Uri recent = insertHistory("http://www.example.com/recent", "recent");
+        insertBookmark("http://www.example.com/bookmark", "bookmark");
+        ContentValues visit = new ContentValues();
+        visit.put(History.VISITS, 3);
+        visit.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
+        updateHistory(recent, visit);
+
+        Uri uri = OmniboxSuggestions.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BrowserContract.PARAM_LIMIT, "2").build();
+        Cursor c = getMockContentResolver().query(uri,
+                new String[] { OmniboxSuggestions.URL },
+                "url LIKE ?", new String[] { "http://www.example.com/%" }, null);
+        try {
+            assertEquals(2, c.getCount());
+            c.moveToNext();
+            assertEquals("http://www.example.com/bookmark", c.getString(0));
+            c.moveToNext();
+            assertEquals("http://www.example.com/recent", c.getString(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    @SmallTest
+    public void testScoreFollowsFrecency() {
+        // visits, days since the last visit, typed; in FrecencyRanker's order
+        long[][] visits = {
+            { 20, 0, 1 },  // 40
+            { 4, 0, 1 },   // 8
+            { 10, 14, 0 }, // 5
+            { 3, 0, 0 },   // 3
+            { 16, 56, 0 }, // 1
+        };
+        long now = System.currentTimeMillis();
+        for (int i = visits.length - 1; i >= 0; i--) {
+            Uri uri = insertHistory("http://www.example.com/" + i, "page " + i);
+            ContentValues values = new ContentValues();
+            values.put(History.VISITS, visits[i][0]);
+            values.put(History.DATE_LAST_VISITED,
+                    now - visits[i][1] * OmniboxSuggestions.SCORE_HALF_LIFE / 14);
+            values.put(History.USER_ENTERED, visits[i][2]);
+            updateHistory(uri, values);
+        }
+        Cursor c = getMockContentResolver().query(OmniboxSuggestions.CONTENT_URI,
+                new String[] { OmniboxSuggestions.URL }, null, null, null);
+        try {
+            assertEquals(visits.length, c.getCount());
+            for (int i = 0; c.moveToNext(); i++) {
+                assertEquals("http://www.example.com/" + i, c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    @LargeTest
+    public void testSuggestLatency() {
+        insertFixtures(100000, 10000, 10);
+        assertMatchesView();
+
+        // What SuggestionsAdapter asks for as "site12" is typed
+        String[] prefixes = { "s", "si", "sit", "site", "site1", "site12" };
+        Uri uri = OmniboxSuggestions.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BrowserContract.PARAM_LIMIT,
+                        Integer.toString(SUGGEST_LIMIT)).build();
+        long viewTime = 0;
+        long tableTime = 0;
+        for (String prefix : prefixes) {
+            String like = prefix + "%";
+            String[] args = new String[] { "http://" + like, "http://www." + like,
+                    "https://" + like, "https://www." + like, like };
+            long start = SystemClock.uptimeMillis();
+            List<String> expected = rows("SELECT * FROM (" + VIEW_QUERY + ") WHERE "
+                    + SUGGEST_SELECTION + " LIMIT " + SUGGEST_LIMIT, args);
+            viewTime += SystemClock.uptimeMillis() - start;
+            start = SystemClock.uptimeMillis();
+            Cursor c = getMockContentResolver().query(uri, SUGGEST_PROJECTION,
+                    SUGGEST_SELECTION, args, null);
+            int count;
+            try {
+                count = c.getCount();
+            } finally {
+                c.close();
+            }
+            tableTime += SystemClock.uptimeMillis() - start;
+            assertEquals(expected.size(), count);
+        }
+        Log.i(LOGTAG, "Suggestions for " + prefixes.length + " keystrokes: view "
+                + viewTime + "ms, table " + tableTime + "ms");
+    }
+}
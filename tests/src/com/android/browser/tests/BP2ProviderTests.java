@@ -16,19 +16,34 @@
 
 package com.android.browser.tests;
 
+import com.android.browser.BatchImageLoader;
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.provider.BrowserProvider2.FolderCacheStats;
+import com.android.browser.provider.BrowserProvider2.ImageBatch;
+import com.android.browser.provider.BrowserProvider2.OriginMetadata;
+import com.android.browser.provider.BrowserProvider2.VisitedUrls;
 import com.android.browser.tests.utils.BP2TestCaseHelper;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.net.Uri;
+import android.os.Bundle;
 import android.provider.BrowserContract;
+import android.provider.BrowserContract.History;
 import android.provider.BrowserContract.Images;
+import android.provider.BrowserContract.Settings;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 
 @SmallTest
 public class BP2ProviderTests extends BP2TestCaseHelper {
@@ -135,4 +150,350 @@ public class BP2ProviderTests extends BP2TestCaseHelper {
             c.close();
         }
     }
+
+    public void testOriginMetadata() {
+        insertBookmark("http://www.example.com/", "Example");
+        String pageUrl = "http://WWW.Example.com/page";
+        Uri page = insertBookmark(pageUrl, "Example page");
+        ContentValues values = new ContentValues();
+        values.put(Images.URL, pageUrl);
+        Bitmap bitmap = Bitmap.createBitmap(1, 1, Config.ARGB_8888);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
+        values.put(Images.FAVICON, os.toByteArray());
+        assertTrue(updateBookmark(Images.CONTENT_URI, values));
+
+        String[] origins = new String[] {
+                "http://www.example.com",
+                "https://www.example.com",
+                "http://other.com",
+        };
+        Cursor c = getMockContentResolver().query(OriginMetadata.CONTENT_URI,
+                null, null, origins, null);
+        try {
+            assertEquals(2, c.getCount());
+            while (c.moveToNext()) {
+                String origin = c.getString(c.getColumnIndex(OriginMetadata.ORIGIN));
+                String title = c.getString(c.getColumnIndex(OriginMetadata.TITLE));
+                assertEquals("www.example.com",
+                        c.getString(c.getColumnIndex(OriginMetadata.HOST)));
+                assertNotNull(c.getBlob(c.getColumnIndex(OriginMetadata.FAVICON)));
+                if (origins[0].equals(origin)) {
+                    assertEquals("Example", title);
+                } else {
+                    assertEquals(origins[1], origin);
+                    assertNull(title);
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        // Changing the url moves the bookmark to the new host
+        assertTrue(updateBookmark(page, "http://other.com/", "Other"));
+        c = getMockContentResolver().query(OriginMetadata.CONTENT_URI,
+                null, null, new String[] { origins[2] }, null);
+        try {
+            assertEquals(1, c.getCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testPruneImages() {
+        String historyUrl = "http://history.com/";
+        String bookmarkUrl = "http://bookmark.com/";
+        String orphanUrl = "http://orphan.com/";
+        Uri history = insertHistory(historyUrl, "history");
+        insertBookmark(bookmarkUrl, "bookmark");
+        for (String url : new String[] { historyUrl, bookmarkUrl, orphanUrl }) {
+            ContentValues values = new ContentValues();
+            values.put(Images.URL, url);
+            values.put(Images.FAVICON, new byte[] { 1 });
+            getMockContentResolver().update(Images.CONTENT_URI, values, null, null);
+        }
+        // An image nothing refers to is dropped as soon as it is stored
+        assertTrue(hasImage(historyUrl));
+        assertTrue(hasImage(bookmarkUrl));
+        assertFalse(hasImage(orphanUrl));
+
+        getMockContentResolver().delete(history, null, null);
+        assertFalse(hasImage(historyUrl));
+        assertTrue(hasImage(bookmarkUrl));
+    }
+
+    private boolean hasImage(String url) {
+        Cursor c = getMockContentResolver().query(Images.CONTENT_URI, null,
+                Images.URL + "=?", new String[] { url }, null);
+        try {
+            return c.getCount() > 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testDeepFolderTree() {
+        long top = insertFolder(BrowserProvider2.FIXED_ID_ROOT);
+        long parent = top;
+        for (int i = 0; i < 10; i++) {
+            insertBookmark(folderValues(parent, "http://level" + i + ".com/"));
+            if (i < 9) {
+                parent = insertFolder(parent);
+            }
+        }
+        // 9 nested folders and 10 bookmarks below the top folder
+        assertEquals(19, countDescendants(top));
+        assertEquals(1, countDescendants(parent));
+
+        // A folder cannot be moved under one of its descendants
+        ContentValues move = new ContentValues();
+        move.put(BrowserContract.Bookmarks.PARENT, parent);
+        try {
+            getMockContentResolver().update(
+                    ContentUris.withAppendedId(BrowserContract.Bookmarks.CONTENT_URI, top),
+                    move, null, null);
+            fail("Moved a folder into its own descendant");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        getMockContentResolver().delete(
+                ContentUris.withAppendedId(BrowserContract.Bookmarks.CONTENT_URI, top),
+                null, null);
+        assertEquals(0, countDescendants(top));
+    }
+
+    @LargeTest
+    public void testLargeFolderTree() {
+        long top = insertFolder(BrowserProvider2.FIXED_ID_ROOT);
+        long[] folders = new long[100];
+        for (int i = 0; i < folders.length; i++) {
+            folders[i] = insertFolder(top);
+        }
+        // 10k bookmarks and folders in all, far more than SQLite allows
+        // bound parameters in one statement
+        ContentValues[] bookmarks = new ContentValues[10000 - folders.length];
+        for (int i = 0; i < bookmarks.length; i++) {
+            bookmarks[i] = folderValues(folders[i % folders.length],
+                    "http://bookmark" + i + ".com/");
+        }
+        getMockContentResolver().bulkInsert(BrowserContract.Bookmarks.CONTENT_URI, bookmarks);
+        assertEquals(10000, countDescendants(top));
+
+        getMockContentResolver().delete(
+                ContentUris.withAppendedId(BrowserContract.Bookmarks.CONTENT_URI, top),
+                null, null);
+        assertEquals(0, countDescendants(top));
+    }
+
+    public void testFolderCache() {
+        long a = insertFolder(BrowserProvider2.FIXED_ID_ROOT);
+        long b = insertFolder(BrowserProvider2.FIXED_ID_ROOT);
+        insertBookmark(folderValues(a, "http://a.com/"));
+        insertBookmark(folderValues(b, "http://b.com/"));
+        int[] start = folderCacheStats();
+
+        assertEquals(1, listFolder(a).size());
+        assertEquals(1, listFolder(a).size());
+        // A change in another folder keeps the listing
+        insertBookmark(folderValues(b, "http://b2.com/"));
+        assertEquals(1, listFolder(a).size());
+        assertEquals(2, listFolder(b).size());
+        // A change in the folder drops it
+        insertBookmark(folderValues(a, "http://a2.com/"));
+        assertEquals(2, listFolder(a).size());
+        // So does a new favicon of one of its bookmarks
+        ContentValues values = new ContentValues();
+        values.put(Images.URL, "http://a.com/");
+        values.put(Images.FAVICON, new byte[] { 1, 2, 3 });
+        assertTrue(updateBookmark(Images.CONTENT_URI, values));
+        assertTrue(listFolder(a).contains("http://a.com/ favicon"));
+
+        int[] stats = folderCacheStats();
+        assertEquals(2, stats[0] - start[0]);
+        assertEquals(4, stats[1] - start[1]);
+    }
+
+    public void testVisitedUrls() {
+        TriggeredObserver visited = new TriggeredObserver(VisitedUrls.CONTENT_URI);
+        Uri history = insertHistory("http://visited.com/", "visited");
+        assertObserversTriggered(true, visited);
+        assertEquals(0, visitedUrlsGeneration());
+
+        // The url becomes visited, then is visited again
+        ContentValues values = new ContentValues();
+        values.put(History.VISITS, 1);
+        assertTrue(updateHistory(history, values));
+        assertObserversTriggered(true, visited);
+        assertEquals(1, visitedUrlsGeneration());
+        values.put(History.VISITS, 2);
+        assertTrue(updateHistory(history, values));
+        assertTrue(updateHistory(history, "http://visited.com/", "new title"));
+        assertObserversTriggered(false, visited);
+        assertEquals(1, visitedUrlsGeneration());
+
+        // Nothing is reported for a transaction that rolls back
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        ops.add(ContentProviderOperation.newDelete(History.CONTENT_URI).build());
+        ops.add(ContentProviderOperation.newInsert(
+                Uri.withAppendedPath(BrowserContract.AUTHORITY_URI, "unknown")).build());
+        try {
+            getMockContentResolver().applyBatch(BrowserContract.AUTHORITY, ops);
+            fail("Batch should have failed");
+        } catch (Exception expected) {
+        }
+        assertObserversTriggered(false, visited);
+        assertEquals(1, visitedUrlsGeneration());
+
+        assertEquals(1, getMockContentResolver().delete(history, null, null));
+        assertObserversTriggered(true, visited);
+        assertEquals(2, visitedUrlsGeneration());
+    }
+
+    private long visitedUrlsGeneration() {
+        Cursor c = getMockContentResolver().query(Settings.CONTENT_URI,
+                new String[] { Settings.VALUE }, Settings.KEY + "=?",
+                new String[] { VisitedUrls.KEY_GENERATION }, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testImageBatch() {
+        byte[] favicon = new byte[] { 1, 2, 3 };
+        byte[] thumbnail = new byte[] { 4, 5 };
+        insertBookmark("http://a.com/", "a");
+        insertBookmark("http://b.com/", "b");
+        ContentValues values = new ContentValues();
+        values.put(Images.URL, "http://a.com/");
+        values.put(Images.FAVICON, favicon);
+        values.put(Images.THUMBNAIL, thumbnail);
+        assertTrue(updateBookmark(Images.CONTENT_URI, values));
+        values = new ContentValues();
+        values.put(Images.URL, "http://b.com/");
+        values.put(Images.THUMBNAIL, thumbnail);
+        assertTrue(updateBookmark(Images.CONTENT_URI, values));
+
+        String[] urls = { "http://a.com/", "http://b.com/", "http://missing.com/" };
+        Bundle result = getImages(urls, new String[] { Images.FAVICON, Images.THUMBNAIL },
+                false);
+        Bundle favicons = result.getBundle(Images.FAVICON);
+        assertEquals(1, favicons.size());
+        assertTrue(Arrays.equals(favicon, favicons.getByteArray("http://a.com/")));
+        Bundle thumbnails = result.getBundle(Images.THUMBNAIL);
+        assertEquals(2, thumbnails.size());
+        assertTrue(Arrays.equals(thumbnail, thumbnails.getByteArray("http://b.com/")));
+        assertEquals(0, result.getStringArray(ImageBatch.REMAINING).length);
+
+        favicons = getImages(urls, null, true).getBundle(Images.FAVICON);
+        assertEquals(1, favicons.size());
+        assertEquals(BrowserProvider2.hashImage(favicon), favicons.getLong("http://a.com/"));
+        assertTrue(BrowserProvider2.hashImage(favicon)
+                != BrowserProvider2.hashImage(thumbnail));
+
+        try {
+            getImages(urls, new String[] { Images.URL }, false);
+            fail("Only image columns may be asked for");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testImageBatchSplitsLargeResults() {
+        int count = 3;
+        ArrayList<String> urls = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            String url = "http://large.com/" + i;
+            insertBookmark(url, "large " + i);
+            ContentValues values = new ContentValues();
+            values.put(Images.URL, url);
+            values.put(Images.THUMBNAIL, new byte[100 * 1024]);
+            assertTrue(updateBookmark(Images.CONTENT_URI, values));
+            urls.add(url);
+        }
+        Bundle result = getImages(urls.toArray(new String[count]),
+                new String[] { Images.THUMBNAIL }, false);
+        int returned = result.getBundle(Images.THUMBNAIL).size();
+        String[] remaining = result.getStringArray(ImageBatch.REMAINING);
+        assertTrue(returned > 0 && remaining.length > 0);
+        assertEquals(count, returned + remaining.length);
+
+        HashMap<String, byte[]> thumbnails = BatchImageLoader.fetchForUrls(
+                getMockContentResolver(), Images.THUMBNAIL, urls);
+        assertEquals(count, thumbnails.size());
+        assertEquals(100 * 1024, thumbnails.get(urls.get(count - 1)).length);
+    }
+
+    private Bundle getImages(String[] urls, String[] columns, boolean hashesOnly) {
+        Bundle extras = new Bundle();
+        extras.putStringArray(ImageBatch.URLS, urls);
+        extras.putStringArray(ImageBatch.COLUMNS, columns);
+        extras.putBoolean(ImageBatch.HASHES_ONLY, hashesOnly);
+        return getMockContentResolver().call(BrowserContract.AUTHORITY_URI,
+                ImageBatch.METHOD, null, extras);
+    }
+
+    // The children of the folder as "url" or "url favicon"
+    private List<String> listFolder(long folder) {
+        Uri uri = ContentUris.withAppendedId(
+                BrowserContract.Bookmarks.CONTENT_URI_DEFAULT_FOLDER, folder);
+        Cursor c = getMockContentResolver().query(uri, new String[] {
+                BrowserContract.Bookmarks.URL, BrowserContract.Bookmarks.FAVICON },
+                null, null, null);
+        ArrayList<String> children = new ArrayList<String>();
+        try {
+            while (c.moveToNext()) {
+                children.add(c.getString(0) + (c.isNull(1) ? "" : " favicon"));
+            }
+        } finally {
+            c.close();
+        }
+        return children;
+    }
+
+    // Hits and misses of the folder cache
+    private int[] folderCacheStats() {
+        Cursor c = getMockContentResolver().query(FolderCacheStats.CONTENT_URI,
+                null, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return new int[] {
+                    c.getInt(c.getColumnIndexOrThrow(FolderCacheStats.HITS)),
+                    c.getInt(c.getColumnIndexOrThrow(FolderCacheStats.MISSES)) };
+        } finally {
+            c.close();
+        }
+    }
+
+    private long insertFolder(long parent) {
+        ContentValues values = new ContentValues();
+        values.put(BrowserContract.Bookmarks.TITLE, "folder");
+        values.put(BrowserContract.Bookmarks.IS_FOLDER, 1);
+        values.put(BrowserContract.Bookmarks.PARENT, parent);
+        return ContentUris.parseId(insertBookmark(values));
+    }
+
+    private ContentValues folderValues(long parent, String url) {
+        ContentValues values = new ContentValues();
+        values.put(BrowserContract.Bookmarks.TITLE, url);
+        values.put(BrowserContract.Bookmarks.URL, url);
+        values.put(BrowserContract.Bookmarks.PARENT, parent);
+        return values;
+    }
+
+    private int countDescendants(long folder) {
+        Uri uri = ContentUris.withAppendedId(
+                BrowserContract.Bookmarks.CONTENT_URI_DEFAULT_FOLDER, folder)
+                .buildUpon()
+                .appendQueryParameter(BrowserProvider2.PARAM_DESCENDANTS, "true")
+                .build();
+        Cursor c = getMockContentResolver().query(uri,
+                new String[] { BrowserContract.Bookmarks._ID }, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
 }
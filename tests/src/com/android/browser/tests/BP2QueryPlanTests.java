@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs EXPLAIN QUERY PLAN over the queries the browser makes on every page
+ * load and bookmark listing, and fails if any of them scans a whole table.
+ */
+public class BP2QueryPlanTests extends BP2TestCaseHelper {
+
+    private static final String LOGTAG = "BP2QueryPlanTests";
+
+    private static final int HISTORY_FIXTURES = 100000;
+    private static final int BOOKMARK_FIXTURES = 10000;
+
+    private static final String[] TABLES = {
+        "bookmarks", "history", "images", "searches", "settings", "thumbnails",
+        "omnibox_suggestions"
+    };
+
+    // "SCAN TABLE history" on older SQLite versions, "SCAN history" on newer
+    private static final Pattern SCAN = Pattern.compile("^SCAN (?:TABLE )?(\\w+)");
+
+    /**
+     * A query made through the provider, written out as the SQL it runs.
+     */
+    private static class HotQuery {
+        final String name;
+        final String sql;
+        final String[] args;
+        // Tables the query has to read in full, e.g. to prune them
+        final List<String> fullScans;
+
+        HotQuery(String name, String sql, String[] args, String... fullScans) {
+            this.name = name;
+            this.sql = sql;
+            this.args = args;
+            this.fullScans = Arrays.asList(fullScans);
+        }
+    }
+
+    private static final String URL = fixtureUrl(42);
+
+    private static final HotQuery[] HOT_QUERIES = {
+        // DataController, once per page load
+        new HotQuery("visited history",
+                "SELECT _id, visits FROM history WHERE url=?",
+                new String[] { URL }),
+        new HotQuery("history title",
+                "UPDATE history SET title=? WHERE url=?",
+                new String[] { "title", URL }),
+        new HotQuery("bookmark status",
+                "SELECT url FROM bookmarks LEFT OUTER JOIN images"
+                + " ON bookmarks.url = images.url_key"
+                + " WHERE deleted=0 AND (url == ?)",
+                new String[] { URL }),
+        // Bookmarks.queryCombinedForUrl, on favicon and touch icon updates
+        new HotQuery("combined for url",
+                "SELECT url FROM ("
+                + "SELECT combined.url AS url, favicon FROM omnibox_suggestions combined"
+                + " LEFT OUTER JOIN history ON history.url = combined.url"
+                + " LEFT OUTER JOIN bookmarks"
+                + " ON bookmarks.url = combined.url AND bookmarks.deleted = 0"
+                + " LEFT OUTER JOIN images ON combined.url = images.url_key"
+                + " WHERE history._id IS NOT NULL OR bookmarks._id IS NOT NULL)"
+                + " WHERE url == ? OR url == ?",
+                new String[] { URL, URL }),
+        // BOOKMARKS_FOLDER, for every bookmarks page and widget refresh
+        new HotQuery("bookmarks folder",
+                "SELECT bookmarks._id, title, url, favicon FROM bookmarks"
+                + " LEFT OUTER JOIN images ON bookmarks.url = images.url_key"
+                + " WHERE parent=? AND deleted=0"
+                + " ORDER BY folder DESC, position ASC, _id ASC",
+                new String[] { Long.toString(BrowserProvider2.FIXED_ID_ROOT) }),
+        // IMAGE_PRUNE, after every write
+        new HotQuery("image prune",
+                "DELETE FROM images WHERE url_key IN (SELECT url_key FROM image_prune_candidates)"
+                + " AND NOT EXISTS (SELECT 1 FROM bookmarks"
+                + " WHERE bookmarks.url = images.url_key AND deleted == 0)"
+                + " AND NOT EXISTS (SELECT 1 FROM history WHERE history.url = images.url_key)",
+                null),
+        // SuggestionsAdapter, on every keystroke
+        new HotQuery("omnibox suggestions",
+                "SELECT _id, title, url, bookmark, visits, date, user_entered"
+                + " FROM omnibox_suggestions"
+                + " WHERE (url LIKE ? OR url LIKE ? OR url LIKE ? OR url LIKE ? OR title LIKE ?)"
+                + " ORDER BY score DESC LIMIT 50",
+                new String[] { "http://sit%", "http://www.sit%", "https://sit%",
+                        "https://www.sit%", "sit%" }),
+        // Search suggestions of the legacy authority, on every keystroke
+        new HotQuery("legacy search suggestions",
+                "SELECT history._id, history.url, bookmarks.title, history.date"
+                + " FROM omnibox_suggestions s"
+                + " JOIN history ON history.url = s.url"
+                + " JOIN bookmarks ON bookmarks.url = s.url"
+                + " AND bookmarks.deleted = 0 AND bookmarks.folder = 0"
+                + " WHERE s.bookmark = 1 AND (s.url LIKE ? OR s.url LIKE ? OR s.url LIKE ?"
+                + " OR s.url LIKE ? OR s.title LIKE ?)",
+                new String[] { "http://sit%", "http://www.sit%", "https://sit%",
+                        "https://www.sit%", "sit%" }),
+    };
+
+    private List<String> explain(SQLiteDatabase db, HotQuery query) {
+        ArrayList<String> plan = new ArrayList<String>();
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + query.sql, query.args);
+        try {
+            int detail = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                plan.add(c.getString(detail));
+            }
+        } finally {
+            c.close();
+        }
+        return plan;
+    }
+
+    private void assertNoFullScan(SQLiteDatabase db, HotQuery query) {
+        List<String> plan = explain(db, query);
+        for (String step : plan) {
+            Matcher m = SCAN.matcher(step);
+            if (!m.find()) {
+                continue;
+            }
+            String table = m.group(1);
+            if (Arrays.asList(TABLES).contains(table) && !query.fullScans.contains(table)) {
+                fail(query.name + " scans " + table + ": " + plan);
+            }
+        }
+    }
+
+    @SmallTest
+    public void testHotQueriesUseIndices() {
+        SQLiteDatabase db = getDatabase();
+        for (HotQuery query : HOT_QUERIES) {
+            assertNoFullScan(db, query);
+        }
+    }
+
+    @LargeTest
+    public void testHotQueriesWithFixtures() {
+        // Every bookmark is in history too
+        insertFixtures(HISTORY_FIXTURES, BOOKMARK_FIXTURES, 2);
+        SQLiteDatabase db = getDatabase();
+        for (HotQuery query : HOT_QUERIES) {
+            assertNoFullScan(db, query);
+            long start = SystemClock.uptimeMillis();
+            if (query.sql.startsWith("SELECT")) {
+                Cursor c = db.rawQuery(query.sql, query.args);
+                c.getCount();
+                c.close();
+            } else {
+                db.execSQL(query.sql, query.args != null ? query.args : new Object[0]);
+            }
+            Log.i(LOGTAG, query.name + ": " + (SystemClock.uptimeMillis() - start) + "ms");
+        }
+    }
+}
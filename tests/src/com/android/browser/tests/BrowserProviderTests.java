@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.R;
+import com.android.browser.provider.BrowserProvider;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import android.app.SearchManager;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Browser;
+import android.provider.Browser.BookmarkColumns;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks the search suggestions of the legacy "browser" authority against
+ * what they were before they were read once per row and, in
+ * BrowserProvider2, through omnibox_suggestions.
+ */
+@SmallTest
+public class BrowserProviderTests extends BP2TestCaseHelper {
+
+    private static final Uri SUGGEST_URI = Uri.parse("content://browser/"
+            + SearchManager.SUGGEST_URI_PATH_QUERY);
+    private static final Uri BOOKMARKS_SUGGEST_URI = Uri.parse("content://browser/bookmarks/"
+            + SearchManager.SUGGEST_URI_PATH_QUERY);
+
+    // BrowserProvider2's query for typed text before it used omnibox_suggestions
+    private static final String OLD_SUGGEST_QUERY =
+            "SELECT history._id AS _id, history.url AS url,"
+            + " CASE WHEN bookmarks.title IS NOT NULL"
+            + " THEN bookmarks.title ELSE history.title END AS title,"
+            + " CASE WHEN bookmarks.url IS NOT NULL THEN \"" + R.drawable.ic_bookmark_off
+            + "\" ELSE \"" + R.drawable.ic_history + "\" END,"
+            + " history.date AS date"
+            + " FROM history LEFT OUTER JOIN bookmarks ON history.url = bookmarks.url"
+            + " WHERE (history.url LIKE ? OR history.url LIKE ? OR history.url LIKE ?"
+            + " OR history.url LIKE ? OR history.title LIKE ? OR bookmarks.title LIKE ?)"
+            + " AND (deleted=0 AND folder=0)";
+
+    private static final String ICON_BOOKMARK =
+            Integer.toString(R.drawable.ic_search_category_bookmark);
+    private static final String ICON_HISTORY =
+            Integer.toString(R.drawable.ic_search_category_history);
+    private static final String ICON_SUGGEST =
+            Integer.toString(R.drawable.ic_search_category_suggest);
+
+    private BrowserProvider mBp1;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBp1 = new BrowserProvider();
+        mBp1.attachInfo(getMockContext(), null);
+    }
+
+    public void testSuggestionsMatchOldQuery() {
+        insertBookmark("http://www.example.com/", "Example");
+        insertHistory("http://www.example.com/", "Example page");
+        insertBookmark("http://news.com/", "Exams");
+        insertHistory("http://news.com/", "News");
+        insertBookmark("https://example.net/", null);
+        insertHistory("https://example.net/", "Net");
+        // Not bookmarked, not visited, and no longer bookmarked
+        insertHistory("http://exact.com/", "Exact");
+        insertBookmark("http://unvisited.com/", "Exact");
+        Uri deleted = insertBookmark("http://exam.com/", "Exam");
+        insertHistory("http://exam.com/", "Exam");
+        getMockContentResolver().delete(deleted, null, null);
+        insertBookmark("http://nomatch.com/", "nothing");
+        insertHistory("http://nomatch.com/", "nothing");
+
+        for (String typed : new String[] { "exa", "EXA", "www.ex", "news", "e", "zzz" }) {
+            String like = typed + "%";
+            List<String> expected = new ArrayList<String>();
+            Cursor c = getProvider().getDatabaseHelper(getMockContext()).getReadableDatabase()
+                    .rawQuery(OLD_SUGGEST_QUERY, new String[] { "http://" + like,
+                    "http://www." + like, "https://" + like, "https://www." + like,
+                    like, like });
+            try {
+                while (c.moveToNext()) {
+                    expected.add(c.getString(0) + " " + c.getString(1) + " "
+                            + c.getString(2) + " " + c.getString(3) + " " + c.getString(4));
+                }
+            } finally {
+                c.close();
+            }
+            Collections.sort(expected);
+
+            List<String> actual = new ArrayList<String>();
+            c = getMockContentResolver().query(BOOKMARKS_SUGGEST_URI, null, null,
+                    new String[] { typed }, null);
+            try {
+                int id = c.getColumnIndexOrThrow("_id");
+                int data = c.getColumnIndexOrThrow(SearchManager.SUGGEST_COLUMN_INTENT_DATA);
+                int title = c.getColumnIndexOrThrow(SearchManager.SUGGEST_COLUMN_TEXT_1);
+                int icon = c.getColumnIndexOrThrow(SearchManager.SUGGEST_COLUMN_ICON_1);
+                int hint = c.getColumnIndexOrThrow(
+                        SearchManager.SUGGEST_COLUMN_LAST_ACCESS_HINT);
+                while (c.moveToNext()) {
+                    actual.add(c.getString(id) + " " + c.getString(data) + " "
+                            + c.getString(title) + " " + c.getString(icon) + " "
+                            + c.getString(hint));
+                }
+            } finally {
+                c.close();
+            }
+            Collections.sort(actual);
+            assertEquals(typed, expected, actual);
+        }
+    }
+
+    public void testLegacySuggestionCursor() {
+        insertLegacy("http://www.example.com/", "Example", true, false, 5, 100);
+        insertLegacy("http://example.org/", "", false, true, 3, 200);
+        insertLegacy("http://other.com/", "Exact", true, false, 1, 300);
+        insertLegacy("http://nomatch.com/", "nothing", true, false, 9, 400);
+
+        String[] example = { null, Intent.ACTION_VIEW, "http://www.example.com/", "Example",
+                null, "www.example.com", ICON_BOOKMARK, "0", "http://www.example.com/", null };
+        // Without a title the stripped url is the first line
+        String[] exampleOrg = { null, Intent.ACTION_VIEW, "http://example.org/", "example.org",
+                null, null, ICON_HISTORY, "0", "http://example.org/", null };
+        String[] other = { null, Intent.ACTION_VIEW, "http://other.com/", "Exact",
+                null, "other.com", ICON_BOOKMARK, "0", "http://other.com/", null };
+        String[] webSearch = { null, Intent.ACTION_SEARCH, null, "exa",
+                getMockContext().getString(R.string.search_the_web), null, ICON_SUGGEST, "0",
+                "exa", null };
+
+        assertRows(mBp1.query(BOOKMARKS_SUGGEST_URI, null, null, new String[] { "exa" }, null),
+                example, exampleOrg, other);
+        // "Search the web" comes second when there are matches
+        assertRows(mBp1.query(SUGGEST_URI, null, null, new String[] { "exa" }, null),
+                example, webSearch, exampleOrg, other);
+    }
+
+    private void insertLegacy(String url, String title, boolean bookmark,
+            boolean userEntered, int visits, long date) {
+        ContentValues values = new ContentValues();
+        values.put(BookmarkColumns.URL, url);
+        values.put(BookmarkColumns.TITLE, title);
+        values.put(BookmarkColumns.BOOKMARK, bookmark ? 1 : 0);
+        values.put("user_entered", userEntered ? 1 : 0);
+        values.put(BookmarkColumns.VISITS, visits);
+        values.put(BookmarkColumns.DATE, date);
+        mBp1.insert(Browser.BOOKMARKS_URI, values);
+    }
+
+    private static void assertRows(Cursor c, String[]... rows) {
+        try {
+            assertEquals(rows.length, c.getCount());
+            for (String[] row : rows) {
+                assertTrue(c.moveToNext());
+                String[] actual = new String[c.getColumnCount()];
+                for (int i = 0; i < actual.length; i++) {
+                    actual[i] = c.getString(i);
+                }
+                assertEquals(Arrays.toString(row), Arrays.toString(actual));
+                // Reading a row again gives the same values
+                assertEquals(row[2], c.getString(2));
+            }
+        } finally {
+            c.close();
+        }
+    }
+}
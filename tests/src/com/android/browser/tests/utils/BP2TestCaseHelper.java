@@ -23,7 +23,10 @@ import java.io.FilenameFilter;
 
 import android.content.ContentValues;
 import android.database.ContentObserver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.Browser;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.Bookmarks;
@@ -39,6 +42,9 @@ public abstract class BP2TestCaseHelper extends ProviderTestCase3<BrowserProvide
     // Tag for potential performance impacts
     private static final String PERFTAG = "BP2-PerfCheck";
 
+    // Hosts the fixture urls are spread over
+    private static final int FIXTURE_HOSTS = 5000;
+
     private TriggeredObserver mLegacyObserver;
     private TriggeredObserver mRootObserver;
     private TriggeredObserver mBookmarksObserver;
@@ -212,6 +218,58 @@ public abstract class BP2TestCaseHelper extends ProviderTestCase3<BrowserProvide
         return updated;
     }
 
+    public SQLiteDatabase getDatabase() {
+        return getProvider().getDatabaseHelper(getMockContext()).getWritableDatabase();
+    }
+
+    /**
+     * Returns the url of the i-th history fixture, on one of FIXTURE_HOSTS
+     * hosts "www.site<n>.com".
+     */
+    public static String fixtureUrl(int i) {
+        return "http://www.site" + (i % FIXTURE_HOSTS) + ".com/page/" + i;
+    }
+
+    /**
+     * Inserts history and bookmarks fixtures straight into the database, in
+     * one transaction, for the latency tests. History entry i has the url
+     * fixtureUrl(i), i % 20 visits and was last visited at i. Bookmark i, in
+     * the root folder, has the url of history entry i * bookmarkStride, so
+     * it is in history too if that entry exists.
+     */
+    public void insertFixtures(int historyCount, int bookmarkCount, int bookmarkStride) {
+        SQLiteDatabase db = getDatabase();
+        long start = SystemClock.uptimeMillis();
+        db.beginTransaction();
+        try {
+            SQLiteStatement history = db.compileStatement(
+                    "INSERT INTO history (title, url, date, visits) VALUES (?, ?, ?, ?)");
+            for (int i = 0; i < historyCount; i++) {
+                history.bindString(1, "page " + i);
+                history.bindString(2, fixtureUrl(i));
+                history.bindLong(3, i);
+                history.bindLong(4, i % 20);
+                history.executeInsert();
+            }
+            history.close();
+            SQLiteStatement bookmarks = db.compileStatement(
+                    "INSERT INTO bookmarks (title, url, parent, position) VALUES (?, ?, ?, ?)");
+            for (int i = 0; i < bookmarkCount; i++) {
+                bookmarks.bindString(1, "bookmark " + i);
+                bookmarks.bindString(2, fixtureUrl(i * bookmarkStride));
+                bookmarks.bindLong(3, BrowserProvider2.FIXED_ID_ROOT);
+                bookmarks.bindLong(4, i);
+                bookmarks.executeInsert();
+            }
+            bookmarks.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.i(PERFTAG, "Inserted " + historyCount + " history entries and " + bookmarkCount
+                + " bookmarks in " + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
     @Override
     protected void tearDown() throws Exception {
         super.tearDown();